@@ -102,7 +102,11 @@ public class ServerNode {
         ssh.exec("cp " + COMET_LOADTEST_SERVER_WAR + " jetty/webapps/comet-loadtest-server.war");
     }
 
+    // the comet connections are drained first so that they reconnect spread out over the
+    // server's retry window rather than all at once (the drain fails harmlessly if jetty isn't
+    // running)
     public void restartJettyServer() throws IOException {
+        ssh.exec("wget -q -O - http://localhost:8080/comet-loadtest-server/drain");
         ssh.exec("./jetty/bin/jetty.sh stop");
         ssh.exec("./jetty/bin/jetty.sh start");
     }
@@ -0,0 +1,27 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.comet.loadtest.client;
+
+/**
+ * @author Trask Stalnaker
+ */
+public enum ChannelDistribution {
+
+    // connections and messages are spread round robin over the channels
+    UNIFORM,
+    // the channel of rank k gets a share proportional to 1 / k^s (hot channel skew)
+    ZIPF
+}
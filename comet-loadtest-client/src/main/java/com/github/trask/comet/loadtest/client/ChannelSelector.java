@@ -0,0 +1,96 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.comet.loadtest.client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Picks the channel for each comet connection and each message.
+ *
+ * Messages are sent to the channel of a comet connection (round robin for uniform, randomly
+ * chosen for zipf), so messages follow the same distribution as the connections and are never
+ * sent to a channel that nobody is subscribed to.
+ *
+ * Not thread safe, this is only used from the thread driving the controller.
+ *
+ * @author Trask Stalnaker
+ */
+class ChannelSelector {
+
+    private final int nChannels;
+    private final ChannelDistribution distribution;
+    // cumulative probability by channel rank, only used for zipf
+    private final double[] cumulativeProbabilities;
+    private final Random random = new Random();
+
+    private final List<String> connectionChannels = new ArrayList<String>();
+    private int nextConnectionChannel;
+    private int nextMessageConnection;
+
+    ChannelSelector(int nChannels, ChannelDistribution distribution, double zipfExponent) {
+        this.nChannels = nChannels;
+        this.distribution = distribution;
+        cumulativeProbabilities = new double[nChannels];
+        if (distribution == ChannelDistribution.ZIPF) {
+            double total = 0;
+            for (int i = 0; i < nChannels; i++) {
+                total += 1 / Math.pow(i + 1, zipfExponent);
+                cumulativeProbabilities[i] = total;
+            }
+            for (int i = 0; i < nChannels; i++) {
+                cumulativeProbabilities[i] /= total;
+            }
+        }
+    }
+
+    // returns null when channels are not being used
+    String selectForConnection() {
+        if (nChannels == 0) {
+            return null;
+        }
+        String channel;
+        if (distribution == ChannelDistribution.ZIPF) {
+            int index = Arrays.binarySearch(cumulativeProbabilities, random.nextDouble());
+            // binarySearch returns (-(insertion point) - 1) when there isn't an exact match
+            index = index < 0 ? -index - 1 : index;
+            // guard against the last cumulative probability rounding to slightly less than 1
+            channel = channelName(Math.min(index, nChannels - 1));
+        } else {
+            channel = channelName(nextConnectionChannel++ % nChannels);
+        }
+        connectionChannels.add(channel);
+        return channel;
+    }
+
+    // returns null when channels are not being used
+    String selectForMessage() {
+        if (nChannels == 0) {
+            return null;
+        }
+        if (distribution == ChannelDistribution.ZIPF) {
+            return connectionChannels.get(random.nextInt(connectionChannels.size()));
+        } else {
+            return connectionChannels.get(nextMessageConnection++ % connectionChannels.size());
+        }
+    }
+
+    private static String channelName(int index) {
+        return "channel" + index;
+    }
+}
@@ -0,0 +1,29 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.comet.loadtest.client;
+
+/**
+ * @author Trask Stalnaker
+ */
+public enum ClientAddressing {
+
+    // messages are sent to a channel (or the default pool), not to a client
+    NONE,
+    // each message is sent to the mailbox of a randomly chosen client
+    RANDOM,
+    // messages are sent to the clients' mailboxes in turn
+    ROUND_ROBIN
+}
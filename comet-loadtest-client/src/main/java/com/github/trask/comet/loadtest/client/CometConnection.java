@@ -16,8 +16,14 @@
 package com.github.trask.comet.loadtest.client;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -35,19 +41,51 @@ public class CometConnection implements Runnable {
     private static final Logger logger = LoggerFactory.getLogger(CometConnection.class);
 
     private final String cometUrl;
+    private final String channel;
+    private final String clientId;
+    private final boolean replay;
+    private final boolean reconnectBackoff;
+    // null unless compression was asked for
+    private final PayloadDecompressor decompressor;
+    private final boolean stageTimestamps;
     private final DataCollector dataCollector;
     private final AsyncHttpClient asyncHttpClient;
     private final ExecutorService executorService;
+    private final ScheduledExecutorService scheduledExecutorService;
 
     private volatile ListenableFuture<Response> listenableFuture;
+    // the highest message id received, -1 if none yet
+    private volatile long lastMessageId = -1;
+    // the highest message payload received, only tracked for addressed clients, whose messages
+    // are numbered in the order they are sent to them
+    private volatile long lastPayload = -1;
+    // reset by any response other than a RETRY or 503
+    private final ReconnectBackoff backoff = new ReconnectBackoff();
+    private volatile boolean terminated;
 
-    public CometConnection(String cometUrl, DataCollector dataCollector,
-            AsyncHttpClient asyncHttpClient, ExecutorService executorService) {
+    // channel is null for the default (unnamed) channel, clientId is null unless the connection
+    // is parked on its own mailbox (in which case channel is ignored)
+    // without reconnectBackoff, the comet connection is re-established straight away after a
+    // RETRY or a failure, ignoring the window the server asks for
+    // decompressor is null to have messages sent uncompressed
+    // with stageTimestamps, each pingback carries when its message was received and when the
+    // pingback was sent
+    public CometConnection(String cometUrl, String channel, String clientId, boolean replay,
+            boolean reconnectBackoff, PayloadDecompressor decompressor, boolean stageTimestamps,
+            DataCollector dataCollector, AsyncHttpClient asyncHttpClient,
+            ExecutorService executorService, ScheduledExecutorService scheduledExecutorService) {
 
         this.cometUrl = cometUrl;
+        this.channel = channel;
+        this.clientId = clientId;
+        this.replay = replay;
+        this.reconnectBackoff = reconnectBackoff;
+        this.decompressor = decompressor;
+        this.stageTimestamps = stageTimestamps;
         this.dataCollector = dataCollector;
         this.asyncHttpClient = asyncHttpClient;
         this.executorService = executorService;
+        this.scheduledExecutorService = scheduledExecutorService;
     }
 
     @Override
@@ -55,6 +93,10 @@ public class CometConnection implements Runnable {
         try {
             runInternal();
         } catch (IOException e) {
+            if (terminated) {
+                // reconnecting after the test was terminated (and the http client closed)
+                return;
+            }
             dataCollector.collectError(e);
         } catch (InterruptedException e) {
             dataCollector.collectError(e);
@@ -72,25 +114,74 @@ public class CometConnection implements Runnable {
                 listenableFuture.get();
                 establishCometConnection();
             } catch (ExecutionException e) {
-                if (e.getCause() instanceof ManualTerminationException) {
+                if (terminated || e.getCause() instanceof ManualTerminationException) {
                     // test has been terminated
                     return;
                 }
-                logger.error(e.getMessage(), e);
-                establishCometConnection();
+                // a failed request is aborted, e.g. the server is restarting
+                logger.debug(e.getMessage(), e);
+                dataCollector.cometConnectFailed();
+                scheduleReconnect(0, 0);
             }
         } else {
             Response response = listenableFuture.get();
+            long receivedNanos = System.nanoTime();
             logger.debug("response.statusCode={}", response.getStatusCode());
             if (response.getStatusCode() == 200) {
-                logger.debug("response.body={}", response.getResponseBody());
-                String message = response.getResponseBody();
+                byte[] body = PayloadDecompressor.readBody(response);
+                long inflateNanos = 0;
+                String message;
+                if (decompressor != null && body.length > 0
+                        && body[0] == PayloadDecompressor.MARKER) {
+                    long startNanos = System.nanoTime();
+                    message = decompressor.decompress(body);
+                    inflateNanos = System.nanoTime() - startNanos;
+                } else {
+                    message = new String(body, "UTF-8");
+                }
+                logger.debug("response.body={}", message);
+                if (message.startsWith("RETRY:")) {
+                    // the server is draining (e.g. for a restart)
+                    dataCollector.cometRetryDirected();
+                    scheduleReconnect(message);
+                    return;
+                }
+                backoff.reset();
                 if ("TIMEOUT".equals(message)) {
+                    // the server jitters the comet timeouts, so these are already spread out
+                    establishCometConnection();
+                } else if (message.startsWith("BROADCAST:")) {
+                    logger.debug("received server broadcast {}", message);
+                    dataCollector.broadcastReceived();
                     establishCometConnection();
                 } else {
                     logger.info("received server message {}", message);
-                    dataCollector.cometResponse();
-                    establishCometConnection("?pingback=" + message);
+                    // the server may coalesce several messages into one response, one per line
+                    String[] pingbacks = message.split("\n");
+                    dataCollector.cometResponse(pingbacks.length);
+                    dataCollector.cometResponseBody(pingbacks.length, body.length, inflateNanos);
+                    if (replay) {
+                        updateLastMessageId(pingbacks);
+                    }
+                    if (clientId != null) {
+                        verifyOrder(pingbacks);
+                    }
+                    if (stageTimestamps) {
+                        establishCometConnection(stamp(pingbacks, receivedNanos));
+                    } else {
+                        establishCometConnection(Arrays.asList(pingbacks));
+                    }
+                }
+            } else if (response.getStatusCode() == 503) {
+                // the server is shedding load, any pingbacks were still processed
+                dataCollector.cometRejected();
+                String message = response.getResponseBody();
+                if (message.startsWith("RETRY:")) {
+                    scheduleReconnect(message);
+                } else {
+                    long retryAfterMillis = TimeUnit.SECONDS.toMillis(
+                            MessageConnection.getRetryAfterSeconds(response));
+                    scheduleReconnect(retryAfterMillis, retryAfterMillis);
                 }
             } else {
                 logger.error("Unexpected comet response status code {}", response.getStatusCode());
@@ -102,20 +193,123 @@ public class CometConnection implements Runnable {
     }
 
     public void terminate() {
+        terminated = true;
         listenableFuture.abort(new ManualTerminationException());
     }
 
     private void establishCometConnection() throws IOException {
-        establishCometConnection(null);
+        establishCometConnection(Collections.<String> emptyList());
     }
 
-    private void establishCometConnection(String queryString) throws IOException {
-        String url = queryString == null ? cometUrl : cometUrl + queryString;
-        BoundRequestBuilder request = asyncHttpClient.prepareGet(url);
+    private void establishCometConnection(List<String> pingbacks) throws IOException {
+        BoundRequestBuilder request = asyncHttpClient.prepareGet(cometUrl);
+        if (clientId != null) {
+            request.addQueryParameter("client", clientId);
+        } else if (channel != null) {
+            request.addQueryParameter("channel", channel);
+        }
+        for (String pingback : pingbacks) {
+            request.addQueryParameter("pingback", pingback);
+        }
+        if (decompressor != null) {
+            request.addQueryParameter("compression",
+                    Long.toString(decompressor.getDictionaryId()));
+        }
+        if (replay && lastMessageId != -1) {
+            request.addQueryParameter("lastMessageId", Long.toString(lastMessageId));
+        }
         listenableFuture = request.execute();
         listenableFuture.addListener(this, executorService);
     }
 
+    // "messageId,receivedNanos,pingbackNanos:payload"
+    private static List<String> stamp(String[] pingbacks, long receivedNanos) {
+        String stamps = "," + receivedNanos + "," + System.nanoTime();
+        List<String> stampedPingbacks = new ArrayList<String>(pingbacks.length);
+        for (String pingback : pingbacks) {
+            int index = pingback.indexOf(':');
+            if (index == -1) {
+                stampedPingbacks.add(pingback);
+            } else {
+                stampedPingbacks.add(pingback.substring(0, index) + stamps
+                        + pingback.substring(index));
+            }
+        }
+        return stampedPingbacks;
+    }
+
+    // "RETRY:minMillis:maxMillis"
+    private void scheduleReconnect(String retryDirective) {
+        String[] parts = retryDirective.split(":");
+        try {
+            long minMillis = Long.parseLong(parts[1]);
+            long maxMillis = Long.parseLong(parts[2]);
+            backoff.retryWindow(minMillis, maxMillis);
+            scheduleReconnect(minMillis, maxMillis);
+        } catch (RuntimeException e) {
+            // NumberFormatException or ArrayIndexOutOfBoundsException
+            logger.warn("unexpected retry directive {}", retryDirective);
+            scheduleReconnect(0, 0);
+        }
+    }
+
+    private void scheduleReconnect(long minMillis, long maxMillis) {
+        if (terminated) {
+            return;
+        }
+        long delayMillis = reconnectBackoff ? backoff.nextDelayMillis(minMillis, maxMillis) : 0;
+        scheduledExecutorService.schedule(new Retry(), delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void updateLastMessageId(String[] pingbacks) {
+        for (String pingback : pingbacks) {
+            int index = pingback.indexOf(':');
+            if (index != -1) {
+                try {
+                    lastMessageId = Math.max(lastMessageId,
+                            Long.parseLong(pingback.substring(0, index)));
+                } catch (NumberFormatException e) {
+                    logger.warn("unexpected message {}", pingback);
+                }
+            }
+        }
+    }
+
+    // the messages in a comet response are in the order the server queued them
+    private void verifyOrder(String[] pingbacks) {
+        for (String pingback : pingbacks) {
+            int index = pingback.indexOf(':');
+            long payload;
+            try {
+                payload = Long.parseLong(pingback.substring(index + 1));
+            } catch (NumberFormatException e) {
+                logger.warn("unexpected message {}", pingback);
+                continue;
+            }
+            if (payload <= lastPayload) {
+                logger.warn("client {} received message {} after message {}",
+                        new Object[] { clientId, payload, lastPayload });
+                dataCollector.outOfOrderMessage();
+            } else {
+                lastPayload = payload;
+            }
+        }
+    }
+
+    private class Retry implements Runnable {
+        @Override
+        public void run() {
+            if (terminated) {
+                return;
+            }
+            try {
+                establishCometConnection();
+            } catch (IOException e) {
+                dataCollector.collectError(e);
+            }
+        }
+    }
+
     @SuppressWarnings("serial")
     private static class ManualTerminationException extends Exception {}
 }
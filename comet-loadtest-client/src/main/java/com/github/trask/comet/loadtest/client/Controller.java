@@ -15,8 +15,12 @@
  */
 package com.github.trask.comet.loadtest.client;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
+import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
@@ -25,7 +29,10 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.LockSupport;
 
+import org.jboss.netty.channel.ChannelFactory;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -46,34 +53,147 @@ public class Controller {
     private static final int SCHEDULED_EXECUTOR_SERVICE_CORE_POOL_SIZE = 10;
 
     private final String url;
+    private final String messageUrl;
+    private final Transport transport;
+    private final boolean replay;
+    private final boolean reconnectBackoff;
+    private final ClientAddressing clientAddressing;
+    private final PayloadGenerator payloadGenerator;
+    private final boolean compression;
+    private final boolean stageTimestamps;
+    // null unless the histograms are also written to a file
+    private final File histogramLogFile;
+    private final ChannelSelector channelSelector;
     private final AsyncHttpClient asyncHttpClient;
     private final ExecutorService executorService;
+    private final ScheduledExecutorService scheduledExecutorService;
+    // only used by websocket connections, null otherwise
+    private final ChannelFactory channelFactory;
     private final DataCollector dataCollector = new DataCollector();
+    // created from the server's dictionary when the comet connections are established, only
+    // with compression
+    private volatile PayloadDecompressor decompressor;
+
+    // the ids of the addressed clients, only used from the thread driving the controller
+    private final List<String> clientIds = new ArrayList<String>();
+    private final Random clientRandom = new Random();
+    private int nextClient;
+
+    private volatile long messagesStartMillis;
+    private volatile long messagesStartServerCpuNanos;
+    private volatile long connectionsStartServerHeapBytes = -1;
+    private volatile boolean connectionsServerHeapMeasured;
 
     private final Set<CometConnection> cometConnections =
             Collections.newSetFromMap(new ConcurrentHashMap<CometConnection, Boolean>());
+    private final Set<StreamingCometConnection> streamingCometConnections =
+            Collections.newSetFromMap(
+                    new ConcurrentHashMap<StreamingCometConnection, Boolean>());
+    private final Set<SseCometConnection> sseCometConnections =
+            Collections.newSetFromMap(new ConcurrentHashMap<SseCometConnection, Boolean>());
+    private final Set<WebSocketCometConnection> webSocketCometConnections =
+            Collections.newSetFromMap(
+                    new ConcurrentHashMap<WebSocketCometConnection, Boolean>());
     private final Set<MessageConnection> messageConnections =
             Collections.newSetFromMap(new ConcurrentHashMap<MessageConnection, Boolean>());
 
     public Controller(String url) {
+        this(url, new Options());
+    }
+
+    public Controller(String url, Options options) {
         this.url = url;
+        messageUrl = options.getMessageUrl() == null ? url : options.getMessageUrl();
+        transport = options.getTransport();
+        replay = options.isReplay();
+        reconnectBackoff = options.isReconnectBackoff();
+        clientAddressing = options.getClientAddressing();
+        if (clientAddressing != ClientAddressing.NONE && transport != Transport.LONG_POLL) {
+            throw new IllegalArgumentException("Client addressing is only supported for long-poll"
+                    + " comet connections");
+        }
+        payloadGenerator = options.getPayloadGenerator();
+        if (clientAddressing != ClientAddressing.NONE
+                && payloadGenerator != PayloadGenerator.COUNTER) {
+            throw new IllegalArgumentException("Client addressing checks message order by the"
+                    + " message counter, so it needs the counter payload");
+        }
+        compression = options.isCompression();
+        histogramLogFile = options.getHistogramLogFile() == null ? null
+                : new File(options.getHistogramLogFile());
+        if (compression && transport != Transport.LONG_POLL) {
+            throw new IllegalArgumentException("Compression is only supported for long-poll"
+                    + " comet connections");
+        }
+        stageTimestamps = options.isStageTimestamps();
+        if (stageTimestamps && transport != Transport.LONG_POLL) {
+            throw new IllegalArgumentException("Stage timestamps are only supported for"
+                    + " long-poll comet connections");
+        }
+        channelSelector = new ChannelSelector(options.getChannels(),
+                options.getChannelDistribution(), options.getZipfExponent());
         executorService = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
                 .setDaemon(true)
                 .setNameFormat("CometClient-Executor-%d")
                 .setUncaughtExceptionHandler(dataCollector)
                 .build());
-        asyncHttpClient = makeAsyncHttpClient(executorService);
+        scheduledExecutorService =
+                Executors.newScheduledThreadPool(SCHEDULED_EXECUTOR_SERVICE_CORE_POOL_SIZE,
+                        new ThreadFactoryBuilder()
+                                .setDaemon(true)
+                                .setNameFormat("CometBenchmark-ScheduledExecutor-%d")
+                                .build());
+        asyncHttpClient = makeAsyncHttpClient(executorService, scheduledExecutorService);
+        if (transport == Transport.WEBSOCKET) {
+            channelFactory = new NioClientSocketChannelFactory(executorService, executorService);
+        } else {
+            channelFactory = null;
+        }
     }
 
     public void establishCometConnections(int nConnections, int throttleMillis)
-            throws InterruptedException {
+            throws IOException, InterruptedException, ExecutionException {
 
+        if (compression && decompressor == null) {
+            decompressor = new PayloadDecompressor(PayloadDecompressor.readBody(
+                    asyncHttpClient.prepareGet(url + "/dictionary").execute().get()));
+        }
+        connectionsStartServerHeapBytes = getServerHeapBytes();
         long startMillis = System.currentTimeMillis();
         for (int i = 0; i < nConnections; i++) {
-            CometConnection cometConnection = new CometConnection(
-                    url + "/comet", dataCollector, asyncHttpClient, executorService);
-            cometConnections.add(cometConnection);
-            executorService.execute(cometConnection);
+            if (transport == Transport.STREAMING) {
+                StreamingCometConnection streamingCometConnection = new StreamingCometConnection(
+                        url + "/stream", url + "/pingback",
+                        channelSelector.selectForConnection(), dataCollector, asyncHttpClient,
+                        executorService);
+                streamingCometConnections.add(streamingCometConnection);
+                executorService.execute(streamingCometConnection);
+            } else if (transport == Transport.SSE) {
+                SseCometConnection sseCometConnection = new SseCometConnection(url + "/events",
+                        url + "/pingback", channelSelector.selectForConnection(), dataCollector,
+                        asyncHttpClient, executorService);
+                sseCometConnections.add(sseCometConnection);
+                executorService.execute(sseCometConnection);
+            } else if (transport == Transport.WEBSOCKET) {
+                WebSocketCometConnection webSocketCometConnection = new WebSocketCometConnection(
+                        url + "/websocket", channelSelector.selectForConnection(),
+                        reconnectBackoff, dataCollector, channelFactory, executorService,
+                        scheduledExecutorService);
+                webSocketCometConnections.add(webSocketCometConnection);
+                executorService.execute(webSocketCometConnection);
+            } else {
+                String clientId = null;
+                if (clientAddressing != ClientAddressing.NONE) {
+                    clientId = "client" + clientIds.size();
+                    clientIds.add(clientId);
+                }
+                CometConnection cometConnection = new CometConnection(url + "/comet",
+                        channelSelector.selectForConnection(), clientId, replay,
+                        reconnectBackoff, decompressor, stageTimestamps, dataCollector,
+                        asyncHttpClient, executorService, scheduledExecutorService);
+                cometConnections.add(cometConnection);
+                executorService.execute(cometConnection);
+            }
             Thread.sleep(throttleMillis);
         }
         logger.info("established {} connections in {} milliseconds", nConnections,
@@ -90,6 +210,14 @@ public class Controller {
             int count = Integer.parseInt(countText);
             logger.debug("waitForConnections(): count={}", count);
             if (count >= nConnections) {
+                if (!connectionsServerHeapMeasured) {
+                    connectionsServerHeapMeasured = true;
+                    long endServerHeapBytes = getServerHeapBytes();
+                    if (connectionsStartServerHeapBytes != -1 && endServerHeapBytes != -1) {
+                        dataCollector.cometConnectionsParked(
+                                endServerHeapBytes - connectionsStartServerHeapBytes);
+                    }
+                }
                 return;
             } else if (System.currentTimeMillis() - startMillis >= timeoutMillis) {
                 throw new TimeoutException();
@@ -107,6 +235,11 @@ public class Controller {
             long count = dataCollector.getMessageResponseCount();
             logger.debug("waitForResponses(): count={}", count);
             if (count >= nMessages) {
+                long endServerCpuNanos = getServerCpuNanos();
+                long serverCpuNanos = messagesStartServerCpuNanos == -1 || endServerCpuNanos == -1
+                        ? -1 : endServerCpuNanos - messagesStartServerCpuNanos;
+                dataCollector.messagesCompleted(System.currentTimeMillis() - messagesStartMillis,
+                        serverCpuNanos);
                 return;
             } else if (System.currentTimeMillis() - startMillis >= timeoutMillis) {
                 throw new TimeoutException();
@@ -117,40 +250,203 @@ public class Controller {
     }
 
     public void sendMessages(int nMessages, int throttleMillis) throws InterruptedException {
-        long startMillis = System.currentTimeMillis();
+        messagesStartServerCpuNanos = getServerCpuNanos();
+        messagesStartMillis = System.currentTimeMillis();
+        long startMillis = messagesStartMillis;
         for (int i = 0; i < nMessages; i++) {
-            MessageConnection messageConnection = new MessageConnection(
-                    url + "/message", dataCollector, asyncHttpClient, executorService);
-            messageConnections.add(messageConnection);
-            executorService.execute(messageConnection);
+            sendNextMessage(-1);
             Thread.sleep(throttleMillis);
         }
         logger.info("sent {} messages over {} milliseconds",
                 nMessages, System.currentTimeMillis() - startMillis);
     }
 
+    // open loop: message i is due at i / messagesPerSecond from the start, whether or not the
+    // earlier messages have been answered, and its response time is also measured from then, so a
+    // stall (on either side) shows up as latency rather than as the sender slowing down
+    // (coordinated omission), a message that is late (e.g. the sender was descheduled) is sent
+    // straight away and the schedule is not shifted
+    public void sendMessagesAtRate(int nMessages, double messagesPerSecond)
+            throws InterruptedException {
+
+        messagesStartServerCpuNanos = getServerCpuNanos();
+        messagesStartMillis = System.currentTimeMillis();
+        double intervalNanos = TimeUnit.SECONDS.toNanos(1) / messagesPerSecond;
+        long startNanos = System.nanoTime();
+        long maxLagNanos = 0;
+        for (int i = 0; i < nMessages; i++) {
+            // from the start rather than from the previous message, so rounding doesn't drift
+            long intendedNanos = startNanos + (long) (i * intervalNanos);
+            long waitNanos;
+            while ((waitNanos = intendedNanos - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(waitNanos);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+            maxLagNanos = Math.max(maxLagNanos, -waitNanos);
+            sendNextMessage(intendedNanos);
+        }
+        dataCollector.messagesScheduled(messagesPerSecond, maxLagNanos);
+        logger.info("sent {} messages at {} messages per second over {} milliseconds",
+                new Object[] { nMessages, messagesPerSecond,
+                        System.currentTimeMillis() - messagesStartMillis });
+    }
+
+    // messages to a single client, e.g. client0, which don't need client addressing to be
+    // configured, as long as a comet connection was established with that client id
+    public void sendMessagesTo(String clientId, int nMessages, int throttleMillis)
+            throws InterruptedException {
+
+        messagesStartServerCpuNanos = getServerCpuNanos();
+        messagesStartMillis = System.currentTimeMillis();
+        for (int i = 0; i < nMessages; i++) {
+            sendMessage(null, clientId, -1);
+            Thread.sleep(throttleMillis);
+        }
+        logger.info("sent {} messages to {} over {} milliseconds", new Object[] { nMessages,
+                clientId, System.currentTimeMillis() - messagesStartMillis });
+    }
+
+    // each broadcast waits for all of the comet connections to re-park first, so that every
+    // broadcast fans out to the full set of connections
+    public void sendBroadcasts(int nBroadcasts, int nConnections, int throttleMillis)
+            throws IOException, InterruptedException, ExecutionException, TimeoutException {
+
+        long startMillis = System.currentTimeMillis();
+        for (int i = 0; i < nBroadcasts; i++) {
+            waitForConnections(nConnections, 60000);
+            BoundRequestBuilder request = asyncHttpClient.prepareGet(url + "/broadcast")
+                    .addQueryParameter("message", Integer.toString(i));
+            String channel = channelSelector.selectForMessage();
+            if (channel != null) {
+                request.addQueryParameter("channel", channel);
+            }
+            String responseText = request.execute().get().getResponseBody();
+            int index = responseText.indexOf(':');
+            int delivered = Integer.parseInt(responseText.substring(0, index));
+            long fanoutMicros = Long.parseLong(responseText.substring(index + 1));
+            logger.debug("sendBroadcasts(): delivered={}, fanoutMicros={}", delivered,
+                    fanoutMicros);
+            dataCollector.broadcastSent(delivered, fanoutMicros);
+            Thread.sleep(throttleMillis);
+        }
+        logger.info("sent {} broadcasts over {} milliseconds",
+                nBroadcasts, System.currentTimeMillis() - startMillis);
+    }
+
+    public void waitForBroadcasts(int timeoutMillis) throws InterruptedException,
+            TimeoutException {
+
+        long startMillis = System.currentTimeMillis();
+        while (true) {
+            long count = dataCollector.getBroadcastReceivedCount();
+            logger.debug("waitForBroadcasts(): count={}", count);
+            if (count >= dataCollector.getBroadcastDeliveredCount()) {
+                return;
+            } else if (System.currentTimeMillis() - startMillis >= timeoutMillis) {
+                throw new TimeoutException();
+            } else {
+                Thread.sleep(100);
+            }
+        }
+    }
+
     public void terminate() {
         for (CometConnection cometConnection : cometConnections) {
             cometConnection.terminate();
         }
+        for (StreamingCometConnection streamingCometConnection : streamingCometConnections) {
+            streamingCometConnection.terminate();
+        }
+        for (SseCometConnection sseCometConnection : sseCometConnections) {
+            sseCometConnection.terminate();
+        }
+        for (WebSocketCometConnection webSocketCometConnection : webSocketCometConnections) {
+            webSocketCometConnection.terminate();
+        }
         asyncHttpClient.close();
+        if (channelFactory != null) {
+            channelFactory.releaseExternalResources();
+        }
     }
 
-    public void printData() {
+    public void printData() throws IOException {
         dataCollector.printData();
+        if (histogramLogFile != null) {
+            dataCollector.writeHistogramLog(histogramLogFile);
+        }
     }
 
     public boolean successful() {
         return dataCollector.successful();
     }
 
-    private static AsyncHttpClient makeAsyncHttpClient(ExecutorService executorService) {
-        ScheduledExecutorService scheduledExecutorService =
-                Executors.newScheduledThreadPool(SCHEDULED_EXECUTOR_SERVICE_CORE_POOL_SIZE,
-                        new ThreadFactoryBuilder()
-                                .setDaemon(true)
-                                .setNameFormat("CometBenchmark-ScheduledExecutor-%d")
-                                .build());
+    // intendedNanos is -1 unless the message is sent open loop
+    private void sendNextMessage(long intendedNanos) {
+        if (clientAddressing == ClientAddressing.NONE) {
+            sendMessage(channelSelector.selectForMessage(), null, intendedNanos);
+        } else {
+            sendMessage(null, selectClient(), intendedNanos);
+        }
+    }
+
+    private void sendMessage(String channel, String to, long intendedNanos) {
+        MessageConnection messageConnection = new MessageConnection(messageUrl + "/message",
+                channel, to, payloadGenerator, intendedNanos, stageTimestamps, dataCollector,
+                asyncHttpClient, executorService, scheduledExecutorService);
+        messageConnections.add(messageConnection);
+        executorService.execute(messageConnection);
+    }
+
+    private String selectClient() {
+        if (clientAddressing == ClientAddressing.RANDOM) {
+            return clientIds.get(clientRandom.nextInt(clientIds.size()));
+        } else {
+            return clientIds.get(nextClient++ % clientIds.size());
+        }
+    }
+
+    // returns -1 if the server doesn't report its cpu time
+    private long getServerCpuNanos() {
+        try {
+            String cpuText = asyncHttpClient.prepareGet(url + "/cpu").execute().get()
+                    .getResponseBody();
+            return Long.parseLong(cpuText.trim());
+        } catch (IOException e) {
+            logger.warn("getServerCpuNanos(): {}", e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            logger.warn("getServerCpuNanos(): {}", e.getMessage());
+        } catch (NumberFormatException e) {
+            logger.warn("getServerCpuNanos(): {}", e.getMessage());
+        }
+        return -1;
+    }
+
+    // returns -1 if the server doesn't report its heap usage, the server collects garbage first
+    // so that this is (roughly) the live heap
+    private long getServerHeapBytes() {
+        try {
+            String heapText = asyncHttpClient.prepareGet(url + "/heap").execute().get()
+                    .getResponseBody();
+            return Long.parseLong(heapText.trim());
+        } catch (IOException e) {
+            logger.warn("getServerHeapBytes(): {}", e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            logger.warn("getServerHeapBytes(): {}", e.getMessage());
+        } catch (NumberFormatException e) {
+            logger.warn("getServerHeapBytes(): {}", e.getMessage());
+        }
+        return -1;
+    }
+
+    private static AsyncHttpClient makeAsyncHttpClient(ExecutorService executorService,
+            ScheduledExecutorService scheduledExecutorService) {
+
         AsyncHttpClientConfig.Builder builder = new AsyncHttpClientConfig.Builder()
                 .setAllowPoolingConnection(true)
                 .setMaxRequestRetry(0)
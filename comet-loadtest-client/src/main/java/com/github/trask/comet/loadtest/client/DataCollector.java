@@ -15,8 +15,16 @@
  */
 package com.github.trask.comet.loadtest.client;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
 import java.lang.Thread.UncaughtExceptionHandler;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.GZIPOutputStream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -28,29 +36,170 @@ public class DataCollector implements UncaughtExceptionHandler {
 
     private static final Logger logger = LoggerFactory.getLogger(DataCollector.class);
 
+    // larger comet response batches are all counted in the last bucket
+    private static final int MAX_BATCH_SIZE_BUCKET = 64;
+
+    private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+
     private final AtomicLong cometConnectionEstablishedCount = new AtomicLong();
+    private final AtomicLong cometRejectedCount = new AtomicLong();
+    private final AtomicLong cometRetryDirectedCount = new AtomicLong();
+    private final AtomicLong cometConnectFailedCount = new AtomicLong();
+    private final AtomicLong streamReconnectCount = new AtomicLong();
     private final AtomicLong cometResponseCount = new AtomicLong();
+    // index is the number of messages in the comet response
+    private final AtomicLongArray cometResponseBatchSizes =
+            new AtomicLongArray(MAX_BATCH_SIZE_BUCKET + 1);
+    // long-poll comet responses with messages only, as sent (i.e. compressed if it was asked
+    // for), not including the http headers
+    private final AtomicLong cometResponseBodyMessageCount = new AtomicLong();
+    private final AtomicLong cometResponseBodyBytes = new AtomicLong();
+    private final AtomicLong cometResponseCompressedCount = new AtomicLong();
+    private final AtomicLong cometResponseInflateNanos = new AtomicLong();
     private final AtomicLong errorCount = new AtomicLong();
     private final AtomicLong messageSentCount = new AtomicLong();
     private final AtomicLong messageResponseCount = new AtomicLong();
-    private final AtomicLong messageResponseTime = new AtomicLong();
+    private final AtomicLong messageRejectedCount = new AtomicLong();
+    // messages received by an addressed client before a message that was sent to it earlier
+    private final AtomicLong outOfOrderMessageCount = new AtomicLong();
+    // from the first message sent to the last message response
+    private volatile long messagesElapsedMillis;
+    // -1 if the server doesn't report its cpu time
+    private volatile long messagesServerCpuNanos = -1;
+    // from when the message was actually sent
+    private final LatencyHistogram messageResponseMicros = new LatencyHistogram();
+    // open loop only, from when the message was scheduled to be sent, which is what a user sending
+    // at that rate would see, as it includes any time the sender itself fell behind
+    private final LatencyHistogram correctedMessageResponseMicros = new LatencyHistogram();
+    // the stages of the message response time, only with stage timestamps
+    // message accept to comet write
+    private final LatencyHistogram serverDispatchMicros = new LatencyHistogram();
+    // comet write to the comet response being received
+    private final LatencyHistogram cometLegMicros = new LatencyHistogram();
+    // comet response received to pingback sent
+    private final LatencyHistogram clientTurnaroundMicros = new LatencyHistogram();
+    // pingback sent to pingback received
+    private final LatencyHistogram pingbackLegMicros = new LatencyHistogram();
+    // message sent to accepted, plus pingback received to message response received
+    private final LatencyHistogram messageLegsMicros = new LatencyHistogram();
+    // zero if the messages were sent closed loop
+    private volatile double messageRate;
+    private volatile long messageScheduleMaxLagNanos;
+    private final AtomicLong broadcastSentCount = new AtomicLong();
+    private final AtomicLong broadcastDeliveredCount = new AtomicLong();
+    private final AtomicLong broadcastReceivedCount = new AtomicLong();
+    private final AtomicLong broadcastFanoutMicros = new AtomicLong();
+    private final AtomicLong broadcastMaxFanoutMicros = new AtomicLong();
+    // -1 if the server doesn't report its heap usage
+    private volatile long cometConnectionsServerHeapBytes = -1;
 
     public void cometConnectionEstablished() {
         cometConnectionEstablishedCount.getAndIncrement();
     }
 
-    public void cometResponse() {
+    // the server is shedding load, the comet connection is re-established after the server's
+    // Retry-After
+    public void cometRejected() {
+        cometRejectedCount.getAndIncrement();
+    }
+
+    // the server told the comet connection to reconnect later (e.g. it is draining before a
+    // restart)
+    public void cometRetryDirected() {
+        cometRetryDirectedCount.getAndIncrement();
+    }
+
+    // the comet connection could not be re-established (e.g. the server is restarting), it is
+    // retried with backoff
+    public void cometConnectFailed() {
+        cometConnectFailedCount.getAndIncrement();
+    }
+
+    // growth in server heap usage from before the comet connections were established to after
+    // they were all parked
+    public void cometConnectionsParked(long serverHeapBytes) {
+        cometConnectionsServerHeapBytes = serverHeapBytes;
+    }
+
+    // streaming (server-sent events and websocket) connections only, a long-poll connection reconnects
+    // after every comet response
+    public void streamReconnected() {
+        streamReconnectCount.getAndIncrement();
+    }
+
+    public void cometResponse(int batchSize) {
         cometResponseCount.getAndIncrement();
+        cometResponseBatchSizes.getAndIncrement(Math.min(batchSize, MAX_BATCH_SIZE_BUCKET));
+    }
+
+    // inflateNanos is zero if the body wasn't compressed
+    public void cometResponseBody(int messageCount, int bodyBytes, long inflateNanos) {
+        cometResponseBodyMessageCount.getAndAdd(messageCount);
+        cometResponseBodyBytes.getAndAdd(bodyBytes);
+        if (inflateNanos > 0) {
+            cometResponseCompressedCount.getAndIncrement();
+            cometResponseInflateNanos.getAndAdd(inflateNanos);
+        }
     }
 
     public void messageSent() {
         messageSentCount.getAndIncrement();
     }
 
-    public void messageResponse(long responseTime) {
+    // correctedResponseNanos is from the time the message was scheduled for, -1 if it wasn't
+    // scheduled
+    public void messageResponse(long responseNanos, long correctedResponseNanos) {
+        messageResponseMicros.record(TimeUnit.NANOSECONDS.toMicros(responseNanos));
+        if (correctedResponseNanos != -1) {
+            correctedMessageResponseMicros.record(
+                    TimeUnit.NANOSECONDS.toMicros(correctedResponseNanos));
+        }
+        // counted last, since waitForResponses() returns once all of the responses are counted
         messageResponseCount.getAndIncrement();
-        messageResponseTime.getAndAdd(responseTime);
-        System.out.println(responseTime);
+    }
+
+    // the comet leg and pingback leg are measured across client and server clocks, so they are
+    // only meaningful when both are on the same host (a negative leg is counted as zero)
+    public void messageStages(long serverDispatchNanos, long cometLegNanos,
+            long clientTurnaroundNanos, long pingbackLegNanos, long messageLegsNanos) {
+        serverDispatchMicros.record(TimeUnit.NANOSECONDS.toMicros(serverDispatchNanos));
+        cometLegMicros.record(TimeUnit.NANOSECONDS.toMicros(cometLegNanos));
+        clientTurnaroundMicros.record(TimeUnit.NANOSECONDS.toMicros(clientTurnaroundNanos));
+        pingbackLegMicros.record(TimeUnit.NANOSECONDS.toMicros(pingbackLegNanos));
+        messageLegsMicros.record(TimeUnit.NANOSECONDS.toMicros(messageLegsNanos));
+    }
+
+    // the messages were sent open loop at the rate, maxLagNanos is the furthest the sender fell
+    // behind its schedule
+    public void messagesScheduled(double rate, long maxLagNanos) {
+        messageRate = rate;
+        messageScheduleMaxLagNanos = maxLagNanos;
+    }
+
+    // the server's backlog was full (or the server is shedding load), the message is re-sent
+    // after the server's Retry-After
+    public void messageRejected() {
+        messageRejectedCount.getAndIncrement();
+    }
+
+    public void outOfOrderMessage() {
+        outOfOrderMessageCount.getAndIncrement();
+    }
+
+    public void messagesCompleted(long elapsedMillis, long serverCpuNanos) {
+        messagesElapsedMillis = elapsedMillis;
+        messagesServerCpuNanos = serverCpuNanos;
+    }
+
+    public void broadcastSent(int delivered, long fanoutMicros) {
+        broadcastSentCount.getAndIncrement();
+        broadcastDeliveredCount.getAndAdd(delivered);
+        broadcastFanoutMicros.getAndAdd(fanoutMicros);
+        updateMax(broadcastMaxFanoutMicros, fanoutMicros);
+    }
+
+    public void broadcastReceived() {
+        broadcastReceivedCount.getAndIncrement();
     }
 
     public void collectError(Throwable t) {
@@ -62,18 +211,177 @@ public class DataCollector implements UncaughtExceptionHandler {
         return messageResponseCount.get();
     }
 
+    public long getOutOfOrderMessageCount() {
+        return outOfOrderMessageCount.get();
+    }
+
+    public long getBroadcastDeliveredCount() {
+        return broadcastDeliveredCount.get();
+    }
+
+    public long getBroadcastReceivedCount() {
+        return broadcastReceivedCount.get();
+    }
+
     public boolean successful() {
-        return errorCount.get() == 0 && messageSentCount.get() == messageResponseCount.get();
+        return errorCount.get() == 0 && messageSentCount.get() == messageResponseCount.get()
+                && outOfOrderMessageCount.get() == 0
+                && broadcastReceivedCount.get() == broadcastDeliveredCount.get();
     }
 
     public void printData() {
         System.out.println("comet connections established: " + cometConnectionEstablishedCount);
+        if (cometConnectionsServerHeapBytes >= 0 && cometConnectionEstablishedCount.get() > 0) {
+            System.out.format("server heap per comet connection: %d bytes\n",
+                    cometConnectionsServerHeapBytes / cometConnectionEstablishedCount.get());
+        }
+        if (cometRejectedCount.get() > 0) {
+            System.out.println("comet connections rejected (and retried): " + cometRejectedCount);
+        }
+        if (cometRetryDirectedCount.get() > 0) {
+            System.out.println("comet reconnects directed by the server: "
+                    + cometRetryDirectedCount);
+        }
+        if (cometConnectFailedCount.get() > 0) {
+            System.out.println("comet reconnects failed (and retried): " + cometConnectFailedCount);
+        }
+        if (streamReconnectCount.get() > 0) {
+            System.out.println("comet stream reconnects: " + streamReconnectCount);
+        }
         System.out.println("comet responses: " + cometResponseCount);
+        if (cometResponseCount.get() > 0) {
+            printBatchSizes();
+        }
+        if (cometResponseBodyMessageCount.get() > 0) {
+            System.out.format("comet response body bytes per message: %.1f\n",
+                    (double) cometResponseBodyBytes.get() / cometResponseBodyMessageCount.get());
+        }
+        if (cometResponseCompressedCount.get() > 0) {
+            System.out.format("compressed comet responses: %d, average %.1f microseconds to"
+                    + " inflate\n", cometResponseCompressedCount.get(),
+                    cometResponseInflateNanos.get() / 1000.0
+                            / cometResponseCompressedCount.get());
+        }
         System.out.println("error count: " + errorCount);
         System.out.println("message sent count: " + messageSentCount);
         System.out.println("message response count: " + messageResponseCount);
-        System.out.format("message average response time: %d milliseconds\n",
-                messageResponseTime.get() / messageResponseCount.get());
+        if (messageRejectedCount.get() > 0) {
+            System.out.println("message rejected (and retried) count: " + messageRejectedCount);
+        }
+        if (outOfOrderMessageCount.get() > 0) {
+            System.out.println("per-client out of order messages: " + outOfOrderMessageCount);
+        }
+        if (messageRate > 0) {
+            System.out.format("messages sent open loop at %.1f per second, sender max lag behind"
+                    + " schedule: %d microseconds\n", messageRate,
+                    TimeUnit.NANOSECONDS.toMicros(messageScheduleMaxLagNanos));
+        }
+        if (messageResponseCount.get() > 0) {
+            printLatency("message response time", messageResponseMicros.snapshot());
+            LatencyHistogram.Snapshot corrected = correctedMessageResponseMicros.snapshot();
+            if (corrected.getCount() > 0) {
+                printLatency("message response time from scheduled send time (corrected for"
+                        + " coordinated omission)", corrected);
+            }
+            LatencyHistogram.Snapshot serverDispatch = serverDispatchMicros.snapshot();
+            if (serverDispatch.getCount() > 0) {
+                System.out.format("message response time stages (%d of %d messages):\n",
+                        serverDispatch.getCount(), messageResponseCount.get());
+                printLatency("  server dispatch (accept to comet write)", serverDispatch);
+                printLatency("  comet leg (comet write to client receive)",
+                        cometLegMicros.snapshot());
+                printLatency("  client turnaround (client receive to pingback send)",
+                        clientTurnaroundMicros.snapshot());
+                printLatency("  pingback leg (pingback send to server receive)",
+                        pingbackLegMicros.snapshot());
+                printLatency("  message legs (send to accept, pingback to response)",
+                        messageLegsMicros.snapshot());
+            }
+            if (messagesElapsedMillis > 0) {
+                System.out.format("messages per second: %d\n",
+                        messageResponseCount.get() * 1000 / messagesElapsedMillis);
+                if (cometConnectionEstablishedCount.get() > 0) {
+                    System.out.format("messages per comet connection per second: %.3f\n",
+                            messageResponseCount.get() * 1000.0 / messagesElapsedMillis
+                                    / cometConnectionEstablishedCount.get());
+                }
+            }
+            if (messagesServerCpuNanos >= 0) {
+                System.out.format("server cpu per message: %d microseconds\n",
+                        messagesServerCpuNanos / 1000 / messageResponseCount.get());
+            }
+        }
+        if (broadcastSentCount.get() > 0) {
+            System.out.println("broadcast sent count: " + broadcastSentCount);
+            System.out.println("broadcast delivered count: " + broadcastDeliveredCount);
+            System.out.println("broadcast received count: " + broadcastReceivedCount);
+            System.out.format("broadcast average fan-out time: %d microseconds\n",
+                    broadcastFanoutMicros.get() / broadcastSentCount.get());
+            System.out.println("broadcast max fan-out time: " + broadcastMaxFanoutMicros
+                    + " microseconds");
+        }
+    }
+
+    public void writeHistogramLog(File file) throws IOException {
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(new GZIPOutputStream(
+                new FileOutputStream(file)), "UTF-8"));
+        try {
+            out.println("# message response time (microseconds)");
+            messageResponseMicros.snapshot().writeTo(out);
+            LatencyHistogram.Snapshot corrected = correctedMessageResponseMicros.snapshot();
+            if (corrected.getCount() > 0) {
+                out.println("# message response time from scheduled send time (microseconds)");
+                corrected.writeTo(out);
+            }
+            LatencyHistogram.Snapshot serverDispatch = serverDispatchMicros.snapshot();
+            if (serverDispatch.getCount() > 0) {
+                out.println("# server dispatch (microseconds)");
+                serverDispatch.writeTo(out);
+                out.println("# comet leg (microseconds)");
+                cometLegMicros.snapshot().writeTo(out);
+                out.println("# client turnaround (microseconds)");
+                clientTurnaroundMicros.snapshot().writeTo(out);
+                out.println("# pingback leg (microseconds)");
+                pingbackLegMicros.snapshot().writeTo(out);
+                out.println("# message legs (microseconds)");
+                messageLegsMicros.snapshot().writeTo(out);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void printLatency(String name, LatencyHistogram.Snapshot snapshot) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(name).append(" (microseconds): mean ").append(snapshot.getMean());
+        for (double percentile : PERCENTILES) {
+            sb.append(", p").append(percentile == (long) percentile
+                    ? Long.toString((long) percentile) : Double.toString(percentile));
+            sb.append(' ').append(snapshot.getValueAtPercentile(percentile));
+        }
+        sb.append(", max ").append(snapshot.getMax());
+        System.out.println(sb);
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        while (true) {
+            long current = max.get();
+            if (value <= current || max.compareAndSet(current, value)) {
+                return;
+            }
+        }
+    }
+
+    private void printBatchSizes() {
+        System.out.println("comet response batch sizes (messages per response: responses):");
+        for (int i = 1; i <= MAX_BATCH_SIZE_BUCKET; i++) {
+            long count = cometResponseBatchSizes.get(i);
+            if (count > 0) {
+                String batchSize = i == MAX_BATCH_SIZE_BUCKET ? i + "+" : Integer.toString(i);
+                System.out.format("  %s: %d (%.1f%%)\n", batchSize, count,
+                        100.0 * count / cometResponseCount.get());
+            }
+        }
     }
 
     @Override
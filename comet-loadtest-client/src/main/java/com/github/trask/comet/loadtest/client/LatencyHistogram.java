@@ -0,0 +1,210 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.comet.loadtest.client;
+
+import java.io.PrintWriter;
+import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A high dynamic range histogram of latencies in microseconds, laid out the same way as
+ * HdrHistogram's: values below 256 each have their own bucket, and above that each power of two
+ * is split into 128 buckets, so every recorded value is within 1% of its bucket's value (two
+ * significant digits) from one microsecond up to about 70 minutes, in 3328 buckets.
+ *
+ * Each recording thread has its own buckets, which only it writes, so record() is a few plain
+ * reads and ordered writes with no locks, compare-and-sets or contended cache lines on the
+ * response path. The threads' buckets are only added together by snapshot(), which is meant to
+ * be called once the run is over (a snapshot taken while threads are still recording may be
+ * missing their latest values).
+ *
+ * The response threads come from a cached pool, so threads come and go during a run. Whenever a
+ * new thread starts recording, the buckets of threads that have died since are folded into a
+ * shared total and dropped, so that there are only ever about as many per-thread buckets as there
+ * are live recording threads.
+ *
+ * @author Trask Stalnaker
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKET_HALF_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_COUNT = SUB_BUCKET_HALF_COUNT * 2;
+    // larger values are counted in the last bucket (max is still exact)
+    private static final long HIGHEST_TRACKABLE_VALUE = (1L << 32) - 1;
+    private static final int BUCKET_COUNT = bucketIndex(HIGHEST_TRACKABLE_VALUE) + 1;
+
+    private final List<Recorder> recorders = new CopyOnWriteArrayList<Recorder>();
+
+    // the values recorded by threads that have died, guarded by this
+    private final long[] retiredCounts = new long[BUCKET_COUNT];
+    private long retiredCount;
+    private long retiredSum;
+    private long retiredMax;
+
+    private final ThreadLocal<Recorder> threadRecorder = new ThreadLocal<Recorder>() {
+        @Override
+        protected Recorder initialValue() {
+            retireDeadRecorders();
+            Recorder recorder = new Recorder(Thread.currentThread());
+            recorders.add(recorder);
+            return recorder;
+        }
+    };
+
+    void record(long micros) {
+        long value = Math.max(micros, 0);
+        Recorder recorder = threadRecorder.get();
+        // only this thread writes to its recorder, so there are no lost updates without cas
+        int index = bucketIndex(Math.min(value, HIGHEST_TRACKABLE_VALUE));
+        recorder.counts.lazySet(index, recorder.counts.get(index) + 1);
+        recorder.count.lazySet(recorder.count.get() + 1);
+        recorder.sum.lazySet(recorder.sum.get() + value);
+        if (value > recorder.max.get()) {
+            recorder.max.lazySet(value);
+        }
+    }
+
+    // synchronized with retireDeadRecorders(), so that a recorder is counted exactly once
+    synchronized Snapshot snapshot() {
+        long[] counts = retiredCounts.clone();
+        long count = retiredCount;
+        long sum = retiredSum;
+        long max = retiredMax;
+        for (Recorder recorder : recorders) {
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                counts[i] += recorder.counts.get(i);
+            }
+            count += recorder.count.get();
+            sum += recorder.sum.get();
+            max = Math.max(max, recorder.max.get());
+        }
+        return new Snapshot(counts, count, sum, max);
+    }
+
+    // a dead thread's recorder can be read without racing its writes, since seeing that the
+    // thread has terminated happens after everything the thread did
+    private synchronized void retireDeadRecorders() {
+        for (Recorder recorder : recorders) {
+            Thread thread = recorder.thread.get();
+            if (thread == null || !thread.isAlive()) {
+                for (int i = 0; i < BUCKET_COUNT; i++) {
+                    retiredCounts[i] += recorder.counts.get(i);
+                }
+                retiredCount += recorder.count.get();
+                retiredSum += recorder.sum.get();
+                retiredMax = Math.max(retiredMax, recorder.max.get());
+                recorders.remove(recorder);
+            }
+        }
+    }
+
+    private static int bucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        // shift so that the value's top bit lands in the upper half of the sub-buckets
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+    }
+
+    private static long lowestEquivalentValue(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = (index >> SUB_BUCKET_BITS) - 1;
+        return (long) (index - (shift << SUB_BUCKET_BITS)) << shift;
+    }
+
+    private static long highestEquivalentValue(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = (index >> SUB_BUCKET_BITS) - 1;
+        return ((long) (index - (shift << SUB_BUCKET_BITS) + 1) << shift) - 1;
+    }
+
+    private static class Recorder {
+        // weak so that the recorder doesn't keep a dead thread around until it is retired
+        private final WeakReference<Thread> thread;
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+        private Recorder(Thread thread) {
+            this.thread = new WeakReference<Thread>(thread);
+        }
+    }
+
+    static class Snapshot {
+
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        private Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        long getMean() {
+            return count == 0 ? 0 : sum / count;
+        }
+
+        long getMax() {
+            return max;
+        }
+
+        // the highest value in the bucket holding the percentile (the same as HdrHistogram),
+        // so that it errs on the high side
+        long getValueAtPercentile(double percentile) {
+            long countAtPercentile = Math.max((long) Math.ceil(percentile / 100 * count), 1);
+            long total = 0;
+            for (int i = 0; i < counts.length; i++) {
+                total += counts[i];
+                if (total >= countAtPercentile) {
+                    return Math.min(highestEquivalentValue(i), max);
+                }
+            }
+            return max;
+        }
+
+        // one line per non-empty bucket: lowest value, highest value, count and the percentile
+        // of values up to and including the bucket
+        void writeTo(PrintWriter out) {
+            out.println("# count " + count + ", mean " + getMean() + ", max " + max);
+            out.println("# lowest\thighest\tcount\tpercentile");
+            long total = 0;
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] > 0) {
+                    total += counts[i];
+                    out.format("%d\t%d\t%d\t%.4f\n", lowestEquivalentValue(i),
+                            highestEquivalentValue(i), counts[i], 100.0 * total / count);
+                }
+            }
+        }
+    }
+}
@@ -34,29 +34,48 @@ public class Main {
     private final int nMessages;
     private final int connectionThrottleMillis;
     private final int messageThrottleMillis;
+    private final Options options;
 
     public Main(String url, int nConnections, int nMessages, int connectionThrottleMillis,
             int messageThrottleMillis) {
 
+        this(url, nConnections, nMessages, connectionThrottleMillis, messageThrottleMillis,
+                new Options());
+    }
+
+    public Main(String url, int nConnections, int nMessages, int connectionThrottleMillis,
+            int messageThrottleMillis, Options options) {
+
         this.url = url;
         this.nConnections = nConnections;
         this.nMessages = nMessages;
         this.connectionThrottleMillis = connectionThrottleMillis;
         this.messageThrottleMillis = messageThrottleMillis;
+        this.options = options;
     }
 
     public boolean run() throws InterruptedException, IOException, ExecutionException,
             TimeoutException {
 
-        Controller controller = new Controller(url);
+        Controller controller = new Controller(url, options);
 
         logger.debug("establishing comet connections ...");
         controller.establishCometConnections(nConnections, connectionThrottleMillis);
         controller.waitForConnections(nConnections, 60000);
 
-        logger.debug("sending messages ...");
-        controller.sendMessages(nMessages, messageThrottleMillis);
-        controller.waitForResponses(nMessages, 60000);
+        if (options.getWorkload() == Workload.BROADCAST) {
+            logger.debug("sending broadcasts ...");
+            controller.sendBroadcasts(nMessages, nConnections, messageThrottleMillis);
+            controller.waitForBroadcasts(60000);
+        } else {
+            logger.debug("sending messages ...");
+            if (options.getMessageRate() > 0) {
+                controller.sendMessagesAtRate(nMessages, options.getMessageRate());
+            } else {
+                controller.sendMessages(nMessages, messageThrottleMillis);
+            }
+            controller.waitForResponses(nMessages, 60000);
+        }
 
         System.out.println("====================");
         controller.printData();
@@ -80,8 +99,28 @@ public class Main {
         int nMessages = getIntProperty("messages", 1000);
         int connectionThrottleMillis = getIntProperty("connectionThrottle", 1);
         int messageThrottleMillis = getIntProperty("messageThrottle", 10);
-        new Main(url, nConnections, nMessages, connectionThrottleMillis, messageThrottleMillis)
-                .run();
+        Options options = new Options()
+                .setWorkload(Workload.valueOf(System.getProperty("workload", "MESSAGE")
+                        .toUpperCase()))
+                .setTransport(Transport.valueOf(System.getProperty("transport", "LONG_POLL")
+                        .toUpperCase()))
+                .setChannels(getIntProperty("channels", 0))
+                .setChannelDistribution(ChannelDistribution.valueOf(System.getProperty(
+                        "channelDistribution", "UNIFORM").toUpperCase()))
+                .setZipfExponent(getDoubleProperty("zipfExponent", 1.0))
+                .setMessageUrl(System.getProperty("messageUrl"))
+                .setReplay(Boolean.getBoolean("replay"))
+                .setReconnectBackoff(!"false".equals(System.getProperty("reconnectBackoff")))
+                .setClientAddressing(ClientAddressing.valueOf(System.getProperty(
+                        "clientAddressing", "NONE").toUpperCase()))
+                .setPayloadGenerator(PayloadGenerator.valueOf(System.getProperty("payload",
+                        "COUNTER").toUpperCase()))
+                .setCompression(Boolean.getBoolean("compression"))
+                .setMessageRate(getDoubleProperty("messageRate", 0))
+                .setStageTimestamps(Boolean.getBoolean("stageTimestamps"))
+                .setHistogramLogFile(System.getProperty("histogramLogFile"));
+        new Main(url, nConnections, nMessages, connectionThrottleMillis, messageThrottleMillis,
+                options).run();
     }
 
     private static int getIntProperty(String propertyName, int defaultValue) {
@@ -93,6 +132,15 @@ public class Main {
         }
     }
 
+    private static double getDoubleProperty(String propertyName, double defaultValue) {
+        String valueText = System.getProperty(propertyName);
+        if (valueText == null || valueText.length() == 0) {
+            return defaultValue;
+        } else {
+            return Double.parseDouble(valueText);
+        }
+    }
+
     private static void displayHelp() {
         System.out.println("Usage: java " + Main.class.getName() + "");
     }
@@ -18,6 +18,8 @@ package com.github.trask.comet.loadtest.client;
 import java.io.IOException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 import com.ning.http.client.AsyncHttpClient;
@@ -32,22 +34,46 @@ public class MessageConnection implements Runnable {
 
     private final static AtomicLong messageCounter = new AtomicLong();
 
+    // used when the server doesn't send a (parseable) Retry-After with its 503
+    private static final int DEFAULT_RETRY_AFTER_SECONDS = 1;
+
     private final String messageUrl;
+    private final String channel;
+    private final String to;
     private final DataCollector dataCollector;
     private final AsyncHttpClient asyncHttpClient;
     private final ExecutorService executorService;
+    private final ScheduledExecutorService scheduledExecutorService;
+
+    // assigned up front so that messages sent to the same client are numbered in the order
+    // they are sent
+    private final String message;
 
-    private volatile long startMillis;
-    private volatile String message;
+    // when the open-loop schedule meant the message to be sent, -1 if it isn't scheduled
+    private final long intendedNanos;
+    private final boolean stageTimestamps;
+    private volatile long startNanos;
     private volatile ListenableFuture<Response> listenableFuture;
 
-    public MessageConnection(String cometUrl, DataCollector dataCollector,
-            AsyncHttpClient asyncHttpClient, ExecutorService executorService) {
+    // channel is null for the default (unnamed) channel, to is the client id the message is
+    // addressed to, null if it is sent to the channel, intendedNanos is the System.nanoTime()
+    // the message was scheduled for, -1 if it isn't scheduled, with stageTimestamps the server is
+    // asked to return its stage timestamps (and the comet connection's) with the message response
+    public MessageConnection(String cometUrl, String channel, String to,
+            PayloadGenerator payloadGenerator, long intendedNanos, boolean stageTimestamps,
+            DataCollector dataCollector, AsyncHttpClient asyncHttpClient,
+            ExecutorService executorService, ScheduledExecutorService scheduledExecutorService) {
 
         this.messageUrl = cometUrl;
+        this.channel = channel;
+        this.to = to;
+        message = payloadGenerator.generate(messageCounter.getAndIncrement());
+        this.intendedNanos = intendedNanos;
+        this.stageTimestamps = stageTimestamps;
         this.dataCollector = dataCollector;
         this.asyncHttpClient = asyncHttpClient;
         this.executorService = executorService;
+        this.scheduledExecutorService = scheduledExecutorService;
     }
 
     @Override
@@ -69,35 +95,115 @@ public class MessageConnection implements Runnable {
 
     private void runInternal() throws InterruptedException, ExecutionException, IOException {
         if (listenableFuture == null) {
-            startMillis = System.currentTimeMillis();
+            startNanos = System.nanoTime();
             sendMessage();
             dataCollector.messageSent();
         } else {
-            verifyCompletedRequest();
-            dataCollector.messageResponse(System.currentTimeMillis() - startMillis);
+            Response response = listenableFuture.get();
+            if (response.getStatusCode() == 503) {
+                // the server's backlog is full (or the server is shedding load), the response
+                // time includes the retries
+                dataCollector.messageRejected();
+                scheduledExecutorService.schedule(new Retry(), getRetryAfterSeconds(response),
+                        TimeUnit.SECONDS);
+                return;
+            }
+            long endNanos = System.nanoTime();
+            verifyCompletedRequest(response, endNanos);
+            dataCollector.messageResponse(endNanos - startNanos,
+                    intendedNanos == -1 ? -1 : endNanos - intendedNanos);
         }
     }
 
     private void sendMessage() throws IOException {
-        message = Long.toString(messageCounter.getAndIncrement());
-        BoundRequestBuilder request =
-                asyncHttpClient.prepareGet(messageUrl + "?message=" + message);
+        BoundRequestBuilder request = asyncHttpClient.prepareGet(messageUrl)
+                .addQueryParameter("message", message);
+        if (channel != null) {
+            request.addQueryParameter("channel", channel);
+        }
+        if (to != null) {
+            request.addQueryParameter("to", to);
+        }
+        if (stageTimestamps) {
+            // the same on a retry, so the stages add up to the whole response time
+            request.addQueryParameter("sent", Long.toString(startNanos));
+        }
         listenableFuture = request.execute();
         listenableFuture.addListener(this, executorService);
     }
 
-    private void verifyCompletedRequest() throws InterruptedException, ExecutionException,
-            IOException {
-
+    private void verifyCompletedRequest(Response response, long endNanos) throws IOException {
         // TODO handle server side / firewall timeout
-        Response response = listenableFuture.get();
         String body = response.getResponseBody();
+        if (stageTimestamps) {
+            body = recordStages(body, endNanos);
+        }
         if (!body.equals(message)) {
             dataCollector.collectError(new IllegalStateException("recieved message '"
                     + body + "' but expecting message '" + message + "'"));
         }
     }
 
+    // "sentNanos,acceptedNanos,writtenNanos,pingedBackNanos,receivedNanos,pingbackNanos:message",
+    // returns the body without the stamps, which the server leaves off if the message was
+    // delivered on another node
+    private String recordStages(String body, long endNanos) {
+        int index = body.length() - message.length() - 1;
+        if (index <= 0 || body.charAt(index) != ':' || !body.endsWith(message)) {
+            return body;
+        }
+        String[] stamps = body.substring(0, index).split(",");
+        if (stamps.length != 6) {
+            return body;
+        }
+        long sentNanos;
+        long acceptedNanos;
+        long writtenNanos;
+        long pingedBackNanos;
+        long receivedNanos;
+        long pingbackNanos;
+        try {
+            sentNanos = Long.parseLong(stamps[0]);
+            acceptedNanos = Long.parseLong(stamps[1]);
+            writtenNanos = Long.parseLong(stamps[2]);
+            pingedBackNanos = Long.parseLong(stamps[3]);
+            receivedNanos = Long.parseLong(stamps[4]);
+            pingbackNanos = Long.parseLong(stamps[5]);
+        } catch (NumberFormatException e) {
+            return body;
+        }
+        // the message legs are the client's time less the server's, so they add up even when
+        // client and server clocks don't line up
+        dataCollector.messageStages(writtenNanos - acceptedNanos, receivedNanos - writtenNanos,
+                pingbackNanos - receivedNanos, pingedBackNanos - pingbackNanos,
+                (endNanos - sentNanos) - (pingedBackNanos - acceptedNanos));
+        return message;
+    }
+
+    static int getRetryAfterSeconds(Response response) {
+        String retryAfter = response.getHeader("Retry-After");
+        if (retryAfter == null) {
+            return DEFAULT_RETRY_AFTER_SECONDS;
+        }
+        try {
+            return Integer.parseInt(retryAfter.trim());
+        } catch (NumberFormatException e) {
+            // could be an http date, not worth parsing for a load test
+            return DEFAULT_RETRY_AFTER_SECONDS;
+        }
+    }
+
+    private class Retry implements Runnable {
+        @Override
+        public void run() {
+            try {
+                sendMessage();
+            } catch (IOException e) {
+                dataCollector.collectError(e);
+            }
+        }
+    }
+
     @SuppressWarnings("serial")
     public static final class AbortException extends Exception {
         private AbortException() {}
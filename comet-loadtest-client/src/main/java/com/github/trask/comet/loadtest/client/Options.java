@@ -0,0 +1,184 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.comet.loadtest.client;
+
+/**
+ * Load test knobs beyond the connection and message counts and throttles, all with defaults
+ * that match the original load test (single anonymous pool, point-to-point messages).
+ *
+ * @author Trask Stalnaker
+ */
+public class Options {
+
+    private Workload workload = Workload.MESSAGE;
+    private Transport transport = Transport.LONG_POLL;
+    // zero means don't use channels at all
+    private int channels;
+    private ChannelDistribution channelDistribution = ChannelDistribution.UNIFORM;
+    private double zipfExponent = 1.0;
+    // messages are sent to a different server node than the comet connections are made to,
+    // null means the same server
+    private String messageUrl;
+    // long-poll comet connections send the last message id they received when they reconnect, so
+    // that the server (with its message log enabled) can replay any messages they missed
+    private boolean replay;
+    // long-poll comet connections are given client ids and messages are sent to a client's
+    // mailbox rather than to a channel
+    private ClientAddressing clientAddressing = ClientAddressing.NONE;
+    // long-poll comet connections that are told to retry (or fail to reconnect) reconnect after a
+    // jittered, exponentially backed off delay, rather than straight away
+    private boolean reconnectBackoff = true;
+    // messages per second (fractions included) sent open loop, i.e. on a fixed schedule however
+    // long the responses take, zero means closed loop, paced by the message throttle instead
+    private double messageRate;
+    private PayloadGenerator payloadGenerator = PayloadGenerator.COUNTER;
+    // long-poll comet connections ask for their messages to be deflated with the server's preset
+    // dictionary (fetched from its /dictionary)
+    private boolean compression;
+    // long-poll only, messages and their pingbacks carry System.nanoTime() stamps from client and
+    // server, which break each message's response time down into stages (the stages that cross
+    // between client and server only add up when both are on the same host)
+    private boolean stageTimestamps;
+    // if set, the message response time histograms are also written to this file (gzipped), one
+    // line per bucket, for plotting or comparing runs
+    private String histogramLogFile;
+
+    public Workload getWorkload() {
+        return workload;
+    }
+
+    public Options setWorkload(Workload workload) {
+        this.workload = workload;
+        return this;
+    }
+
+    public Transport getTransport() {
+        return transport;
+    }
+
+    public Options setTransport(Transport transport) {
+        this.transport = transport;
+        return this;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    public Options setChannels(int channels) {
+        this.channels = channels;
+        return this;
+    }
+
+    public ChannelDistribution getChannelDistribution() {
+        return channelDistribution;
+    }
+
+    public Options setChannelDistribution(ChannelDistribution channelDistribution) {
+        this.channelDistribution = channelDistribution;
+        return this;
+    }
+
+    public double getZipfExponent() {
+        return zipfExponent;
+    }
+
+    public Options setZipfExponent(double zipfExponent) {
+        this.zipfExponent = zipfExponent;
+        return this;
+    }
+
+    public boolean isReplay() {
+        return replay;
+    }
+
+    public Options setReplay(boolean replay) {
+        this.replay = replay;
+        return this;
+    }
+
+    public ClientAddressing getClientAddressing() {
+        return clientAddressing;
+    }
+
+    public Options setClientAddressing(ClientAddressing clientAddressing) {
+        this.clientAddressing = clientAddressing;
+        return this;
+    }
+
+    public boolean isReconnectBackoff() {
+        return reconnectBackoff;
+    }
+
+    public Options setReconnectBackoff(boolean reconnectBackoff) {
+        this.reconnectBackoff = reconnectBackoff;
+        return this;
+    }
+
+    public double getMessageRate() {
+        return messageRate;
+    }
+
+    public Options setMessageRate(double messageRate) {
+        this.messageRate = messageRate;
+        return this;
+    }
+
+    public PayloadGenerator getPayloadGenerator() {
+        return payloadGenerator;
+    }
+
+    public Options setPayloadGenerator(PayloadGenerator payloadGenerator) {
+        this.payloadGenerator = payloadGenerator;
+        return this;
+    }
+
+    public boolean isCompression() {
+        return compression;
+    }
+
+    public Options setCompression(boolean compression) {
+        this.compression = compression;
+        return this;
+    }
+
+    public boolean isStageTimestamps() {
+        return stageTimestamps;
+    }
+
+    public Options setStageTimestamps(boolean stageTimestamps) {
+        this.stageTimestamps = stageTimestamps;
+        return this;
+    }
+
+    public String getHistogramLogFile() {
+        return histogramLogFile;
+    }
+
+    public Options setHistogramLogFile(String histogramLogFile) {
+        this.histogramLogFile = histogramLogFile;
+        return this;
+    }
+
+    public String getMessageUrl() {
+        return messageUrl;
+    }
+
+    public Options setMessageUrl(String messageUrl) {
+        this.messageUrl = messageUrl;
+        return this;
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.comet.loadtest.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import com.ning.http.client.Response;
+
+/**
+ * Inflates long-poll comet response bodies that the server compressed with raw deflate and the
+ * preset dictionary from its /dictionary.
+ *
+ * Each thread has its own inflater and output buffer, reset and re-primed with the dictionary
+ * for each response.
+ *
+ * @author Trask Stalnaker
+ */
+public class PayloadDecompressor {
+
+    // a compressed body starts with this byte, which no uncompressed body starts with
+    static final byte MARKER = 0;
+
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+
+    private final byte[] dictionary;
+    private final long dictionaryId;
+
+    private final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater(true);
+        }
+    };
+    private final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[INITIAL_BUFFER_SIZE];
+        }
+    };
+
+    public PayloadDecompressor(byte[] dictionary) {
+        this.dictionary = dictionary;
+        Adler32 adler32 = new Adler32();
+        adler32.update(dictionary);
+        dictionaryId = adler32.getValue();
+    }
+
+    // sent with each comet request, the server only compresses if it has the same dictionary
+    public long getDictionaryId() {
+        return dictionaryId;
+    }
+
+    // the response body as is (there is no way to get it as bytes other than from the stream)
+    static byte[] readBody(Response response) throws IOException {
+        InputStream in = response.getResponseBodyAsStream();
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    // the body includes the leading marker byte
+    String decompress(byte[] body) throws IOException {
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setDictionary(dictionary);
+        inflater.setInput(body, 1, body.length - 1);
+        byte[] buffer = buffers.get();
+        int length = 0;
+        try {
+            while (!inflater.finished()) {
+                if (length == buffer.length) {
+                    byte[] newBuffer = new byte[buffer.length * 2];
+                    System.arraycopy(buffer, 0, newBuffer, 0, length);
+                    buffer = newBuffer;
+                    buffers.set(buffer);
+                }
+                int n = inflater.inflate(buffer, length, buffer.length - length);
+                if (n == 0 && inflater.needsInput()) {
+                    throw new IOException("Truncated compressed comet response");
+                }
+                length += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid compressed comet response", e);
+        }
+        return new String(buffer, 0, length, "UTF-8");
+    }
+}
@@ -0,0 +1,64 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.comet.loadtest.client;
+
+import java.util.Random;
+
+/**
+ * @author Trask Stalnaker
+ */
+public enum PayloadGenerator {
+
+    // the message number, which is what addressed clients check their message order with
+    COUNTER {
+        @Override
+        String generate(long n) {
+            return Long.toString(n);
+        }
+    },
+    // a small json document with a fixed structure, which is what production payloads
+    // typically look like (and what the server's built-in compression dictionary is made from)
+    JSON {
+        @Override
+        String generate(long n) {
+            Random random = new Random(n);
+            int bidCents = 1000 + random.nextInt(60000);
+            return "{\"type\":\"quote\",\"seq\":" + n + ",\"symbol\":\""
+                    + SYMBOLS[random.nextInt(SYMBOLS.length)] + "\",\"bid\":"
+                    + price(bidCents) + ",\"ask\":" + price(bidCents + 1 + random.nextInt(20))
+                    + ",\"bidSize\":" + 100 * (1 + random.nextInt(50)) + ",\"askSize\":"
+                    + 100 * (1 + random.nextInt(50)) + ",\"exchange\":\""
+                    + EXCHANGES[random.nextInt(EXCHANGES.length)] + "\",\"status\":\""
+                    + STATUSES[random.nextInt(STATUSES.length)] + "\"}";
+        }
+    };
+
+    private static final String[] SYMBOLS = { "AAPL", "MSFT", "GOOG", "ORCL", "INTC", "CSCO",
+            "AMZN", "EBAY", "YHOO", "QCOM" };
+    private static final String[] EXCHANGES = { "NASDAQ", "NYSE", "ARCA", "BATS" };
+    // mostly open
+    private static final String[] STATUSES = { "open", "open", "open", "open", "open", "open",
+            "open", "halted", "closed" };
+
+    // the payload of the nth message, which must not contain a newline since the server
+    // separates coalesced messages with them
+    abstract String generate(long n);
+
+    private static String price(int cents) {
+        int remainder = cents % 100;
+        return cents / 100 + (remainder < 10 ? ".0" : ".") + remainder;
+    }
+}
@@ -0,0 +1,63 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.comet.loadtest.client;
+
+import java.util.Random;
+
+/**
+ * Jittered exponential backoff for a comet connection's reconnects, one per connection.
+ *
+ * Each delay is random within a window (full jitter), and the window's width doubles with each
+ * retry in a row, so that connections that are turned away (or fail to reconnect) together
+ * don't all come back together, and keep spreading out while the server stays away.
+ *
+ * @author Trask Stalnaker
+ */
+class ReconnectBackoff {
+
+    // the backoff window when the server hasn't given one (e.g. it can't be reached)
+    private static final int BASE_BACKOFF_MILLIS = 100;
+    private static final int MAX_BACKOFF_MILLIS = 30000;
+    private static final int MAX_BACKOFF_DOUBLINGS = 16;
+
+    // only used to pick reconnect delays, which are rare enough not to contend on it
+    private static final Random random = new Random();
+
+    // reconnects in a row that were turned away or failed, reset by any other response
+    private volatile int consecutiveRetries;
+    // the width of the last window the server gave, which failed reconnects also back off over
+    // (e.g. while the server is restarting after a drain), reset by any other response
+    private volatile long retryWindowMillis = BASE_BACKOFF_MILLIS;
+
+    // the connection got through
+    void reset() {
+        consecutiveRetries = 0;
+        retryWindowMillis = BASE_BACKOFF_MILLIS;
+    }
+
+    // the server asked for the reconnect to be within minMillis to maxMillis
+    void retryWindow(long minMillis, long maxMillis) {
+        retryWindowMillis = Math.max(maxMillis - minMillis, BASE_BACKOFF_MILLIS);
+    }
+
+    // minMillis and maxMillis are both zero if the server didn't give a window
+    long nextDelayMillis(long minMillis, long maxMillis) {
+        int doublings = Math.min(consecutiveRetries++, MAX_BACKOFF_DOUBLINGS);
+        long widthMillis = Math.min(Math.max(maxMillis - minMillis, retryWindowMillis)
+                << doublings, MAX_BACKOFF_MILLIS);
+        return minMillis + (long) (random.nextDouble() * widthMillis);
+    }
+}
@@ -0,0 +1,228 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.comet.loadtest.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ning.http.client.AsyncCompletionHandler;
+import com.ning.http.client.AsyncHandler;
+import com.ning.http.client.AsyncHttpClient;
+import com.ning.http.client.AsyncHttpClient.BoundRequestBuilder;
+import com.ning.http.client.HttpResponseBodyPart;
+import com.ning.http.client.HttpResponseHeaders;
+import com.ning.http.client.HttpResponseStatus;
+import com.ning.http.client.ListenableFuture;
+import com.ning.http.client.Response;
+
+/**
+ * Server-sent events counterpart of {@link StreamingCometConnection}. Each message (or batch of
+ * messages) arrives as an event with one data line per message, which is parsed incrementally
+ * as body parts arrive.
+ *
+ * The id of the last event received is sent back as Last-Event-ID on reconnect, so that the
+ * server can replay any events that were written to the previous stream but never received.
+ *
+ * @author Trask Stalnaker
+ */
+public class SseCometConnection implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(SseCometConnection.class);
+
+    private final String eventsUrl;
+    private final String pingbackUrl;
+    private final String channel;
+    private final DataCollector dataCollector;
+    private final AsyncHttpClient asyncHttpClient;
+    private final ExecutorService executorService;
+
+    private volatile ListenableFuture<Void> listenableFuture;
+    private volatile boolean terminated;
+    private volatile String lastEventId;
+
+    // channel is null for the default (unnamed) channel
+    public SseCometConnection(String eventsUrl, String pingbackUrl, String channel,
+            DataCollector dataCollector, AsyncHttpClient asyncHttpClient,
+            ExecutorService executorService) {
+
+        this.eventsUrl = eventsUrl;
+        this.pingbackUrl = pingbackUrl;
+        this.channel = channel;
+        this.dataCollector = dataCollector;
+        this.asyncHttpClient = asyncHttpClient;
+        this.executorService = executorService;
+    }
+
+    @Override
+    public void run() {
+        try {
+            boolean first = listenableFuture == null;
+            establishStream();
+            if (first) {
+                dataCollector.cometConnectionEstablished();
+            } else {
+                dataCollector.streamReconnected();
+            }
+        } catch (IOException e) {
+            dataCollector.collectError(e);
+        }
+    }
+
+    public void terminate() {
+        terminated = true;
+        listenableFuture.abort(new ManualTerminationException());
+    }
+
+    private void establishStream() throws IOException {
+        BoundRequestBuilder request = asyncHttpClient.prepareGet(eventsUrl)
+                .addHeader("Accept", "text/event-stream");
+        if (channel != null) {
+            request.addQueryParameter("channel", channel);
+        }
+        if (lastEventId != null) {
+            request.addHeader("Last-Event-ID", lastEventId);
+        }
+        listenableFuture = request.execute(new EventStreamHandler());
+    }
+
+    private void reconnect() {
+        if (!terminated) {
+            executorService.execute(this);
+        }
+    }
+
+    private void eventReceived(String data) throws IOException {
+        if (data.startsWith("BROADCAST:")) {
+            logger.debug("received server broadcast {}", data);
+            dataCollector.broadcastReceived();
+            return;
+        }
+        logger.info("received server message {}", data);
+        // the server may coalesce several messages into one event, one per data line
+        String[] pingbacks = data.split("\n");
+        dataCollector.cometResponse(pingbacks.length);
+        BoundRequestBuilder request = asyncHttpClient.prepareGet(pingbackUrl);
+        for (String pingback : pingbacks) {
+            request.addQueryParameter("pingback", pingback);
+        }
+        request.execute(new AsyncCompletionHandler<Response>() {
+            @Override
+            public Response onCompleted(Response response) {
+                if (response.getStatusCode() != 200) {
+                    dataCollector.collectError(new IllegalStateException(
+                            "Unexpected pingback response status code "
+                                    + response.getStatusCode()));
+                }
+                return response;
+            }
+            @Override
+            public void onThrowable(Throwable t) {
+                dataCollector.collectError(t);
+            }
+        });
+    }
+
+    // body parts for a single stream arrive in order on one thread
+    private class EventStreamHandler implements AsyncHandler<Void> {
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        // fields of the event being read, dispatched on the blank line that ends it
+        private String eventId;
+        private StringBuilder data;
+        @Override
+        public STATE onStatusReceived(HttpResponseStatus status) {
+            if (status.getStatusCode() != 200) {
+                logger.error("Unexpected event stream response status code {}",
+                        status.getStatusCode());
+                dataCollector.collectError(new IllegalStateException(
+                        "Unexpected event stream response status code "
+                                + status.getStatusCode()));
+                return STATE.ABORT;
+            }
+            return STATE.CONTINUE;
+        }
+        @Override
+        public STATE onHeadersReceived(HttpResponseHeaders headers) {
+            return STATE.CONTINUE;
+        }
+        @Override
+        public STATE onBodyPartReceived(HttpResponseBodyPart bodyPart) throws IOException {
+            for (byte b : bodyPart.getBodyPartBytes()) {
+                if (b == '\n') {
+                    lineReceived(line.toString("UTF-8"));
+                    line.reset();
+                } else if (b != '\r') {
+                    line.write(b);
+                }
+            }
+            return STATE.CONTINUE;
+        }
+        // the server ends the stream once per comet timeout
+        @Override
+        public Void onCompleted() {
+            reconnect();
+            return null;
+        }
+        @Override
+        public void onThrowable(Throwable t) {
+            if (terminated || t instanceof ManualTerminationException) {
+                // test has been terminated
+                return;
+            }
+            logger.error(t.getMessage(), t);
+            dataCollector.collectError(t);
+            reconnect();
+        }
+        private void lineReceived(String text) throws IOException {
+            if (text.length() == 0) {
+                if (data != null) {
+                    if (eventId != null) {
+                        lastEventId = eventId;
+                    }
+                    eventReceived(data.toString());
+                }
+                eventId = null;
+                data = null;
+                return;
+            }
+            if (text.startsWith(":")) {
+                // comment
+                return;
+            }
+            int index = text.indexOf(':');
+            String field = index == -1 ? text : text.substring(0, index);
+            String value = index == -1 ? "" : text.substring(index + 1);
+            if (value.startsWith(" ")) {
+                value = value.substring(1);
+            }
+            if (field.equals("id")) {
+                eventId = value;
+            } else if (field.equals("data")) {
+                if (data == null) {
+                    data = new StringBuilder(value);
+                } else {
+                    data.append('\n').append(value);
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static class ManualTerminationException extends Exception {}
+}
@@ -0,0 +1,212 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.comet.loadtest.client;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.ExecutorService;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.ning.http.client.AsyncCompletionHandler;
+import com.ning.http.client.AsyncHandler;
+import com.ning.http.client.AsyncHttpClient;
+import com.ning.http.client.AsyncHttpClient.BoundRequestBuilder;
+import com.ning.http.client.HttpResponseBodyPart;
+import com.ning.http.client.HttpResponseHeaders;
+import com.ning.http.client.HttpResponseStatus;
+import com.ning.http.client.ListenableFuture;
+import com.ning.http.client.Response;
+
+/**
+ * Streaming counterpart of {@link CometConnection}. The server keeps the response open and
+ * writes each message (or batch of messages) as a chunk of the form {@code <length>\n<payload>},
+ * which is parsed incrementally as body parts arrive. Messages are pinged back with a separate
+ * request since there is no reconnect to carry them.
+ *
+ * @author Trask Stalnaker
+ */
+public class StreamingCometConnection implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(StreamingCometConnection.class);
+
+    private final String streamUrl;
+    private final String pingbackUrl;
+    private final String channel;
+    private final DataCollector dataCollector;
+    private final AsyncHttpClient asyncHttpClient;
+    private final ExecutorService executorService;
+
+    private volatile ListenableFuture<Void> listenableFuture;
+    private volatile boolean terminated;
+
+    // channel is null for the default (unnamed) channel
+    public StreamingCometConnection(String streamUrl, String pingbackUrl, String channel,
+            DataCollector dataCollector, AsyncHttpClient asyncHttpClient,
+            ExecutorService executorService) {
+
+        this.streamUrl = streamUrl;
+        this.pingbackUrl = pingbackUrl;
+        this.channel = channel;
+        this.dataCollector = dataCollector;
+        this.asyncHttpClient = asyncHttpClient;
+        this.executorService = executorService;
+    }
+
+    @Override
+    public void run() {
+        try {
+            boolean first = listenableFuture == null;
+            establishStream();
+            if (first) {
+                dataCollector.cometConnectionEstablished();
+            } else {
+                dataCollector.streamReconnected();
+            }
+        } catch (IOException e) {
+            dataCollector.collectError(e);
+        }
+    }
+
+    public void terminate() {
+        terminated = true;
+        listenableFuture.abort(new ManualTerminationException());
+    }
+
+    private void establishStream() throws IOException {
+        BoundRequestBuilder request = asyncHttpClient.prepareGet(streamUrl);
+        if (channel != null) {
+            request.addQueryParameter("channel", channel);
+        }
+        listenableFuture = request.execute(new StreamHandler());
+    }
+
+    private void reconnect() {
+        if (!terminated) {
+            executorService.execute(this);
+        }
+    }
+
+    private void chunkReceived(String chunk) throws IOException {
+        if (chunk.length() == 0) {
+            // carries no messages, so there is nothing to ping back
+            return;
+        }
+        if (chunk.startsWith("BROADCAST:")) {
+            logger.debug("received server broadcast {}", chunk);
+            dataCollector.broadcastReceived();
+            return;
+        }
+        logger.info("received server message {}", chunk);
+        // the server may coalesce several messages into one chunk, one per line
+        String[] pingbacks = chunk.split("\n");
+        dataCollector.cometResponse(pingbacks.length);
+        BoundRequestBuilder request = asyncHttpClient.prepareGet(pingbackUrl);
+        for (String pingback : pingbacks) {
+            request.addQueryParameter("pingback", pingback);
+        }
+        request.execute(new AsyncCompletionHandler<Response>() {
+            @Override
+            public Response onCompleted(Response response) {
+                if (response.getStatusCode() != 200) {
+                    dataCollector.collectError(new IllegalStateException(
+                            "Unexpected pingback response status code "
+                                    + response.getStatusCode()));
+                }
+                return response;
+            }
+            @Override
+            public void onThrowable(Throwable t) {
+                dataCollector.collectError(t);
+            }
+        });
+    }
+
+    // body parts for a single stream arrive in order on one thread
+    private class StreamHandler implements AsyncHandler<Void> {
+        // the length of the chunk whose payload is being read, -1 while reading the length
+        private int chunkLength = -1;
+        private int lengthSoFar;
+        private byte[] chunk;
+        private int chunkOffset;
+        @Override
+        public STATE onStatusReceived(HttpResponseStatus status) {
+            if (status.getStatusCode() != 200) {
+                logger.error("Unexpected stream response status code {}",
+                        status.getStatusCode());
+                dataCollector.collectError(new IllegalStateException(
+                        "Unexpected stream response status code " + status.getStatusCode()));
+                return STATE.ABORT;
+            }
+            return STATE.CONTINUE;
+        }
+        @Override
+        public STATE onHeadersReceived(HttpResponseHeaders headers) {
+            return STATE.CONTINUE;
+        }
+        @Override
+        public STATE onBodyPartReceived(HttpResponseBodyPart bodyPart) throws IOException {
+            byte[] bytes = bodyPart.getBodyPartBytes();
+            int i = 0;
+            while (i < bytes.length) {
+                if (chunkLength == -1) {
+                    byte b = bytes[i++];
+                    if (b == '\n') {
+                        chunkLength = lengthSoFar;
+                        lengthSoFar = 0;
+                        chunk = new byte[chunkLength];
+                        chunkOffset = 0;
+                    } else {
+                        lengthSoFar = lengthSoFar * 10 + (b - '0');
+                    }
+                } else {
+                    int n = Math.min(chunkLength - chunkOffset, bytes.length - i);
+                    System.arraycopy(bytes, i, chunk, chunkOffset, n);
+                    chunkOffset += n;
+                    i += n;
+                }
+                if (chunkLength != -1 && chunkOffset == chunkLength) {
+                    chunkReceived(decode(chunk));
+                    chunkLength = -1;
+                }
+            }
+            return STATE.CONTINUE;
+        }
+        // the server ends the stream once per comet timeout
+        @Override
+        public Void onCompleted() {
+            reconnect();
+            return null;
+        }
+        @Override
+        public void onThrowable(Throwable t) {
+            if (terminated || t instanceof ManualTerminationException) {
+                // test has been terminated
+                return;
+            }
+            logger.error(t.getMessage(), t);
+            dataCollector.collectError(t);
+            reconnect();
+        }
+        private String decode(byte[] bytes) throws UnsupportedEncodingException {
+            return new String(bytes, "UTF-8");
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static class ManualTerminationException extends Exception {}
+}
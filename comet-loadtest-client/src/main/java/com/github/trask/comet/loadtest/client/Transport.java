@@ -0,0 +1,34 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.comet.loadtest.client;
+
+/**
+ * @author Trask Stalnaker
+ */
+public enum Transport {
+
+    // one request per comet response, the client reconnects (with its pingbacks) after each one
+    LONG_POLL,
+    // one long-lived response per comet connection, messages arrive as length-delimited chunks
+    // and are pinged back with separate requests
+    STREAMING,
+    // server-sent events, the same as STREAMING except that messages arrive as events, and that
+    // the stream is resumed after a reconnect (with Last-Event-ID) without losing messages
+    SSE,
+    // one websocket per comet connection, messages arrive as text frames and are pinged back
+    // over the same websocket
+    WEBSOCKET
+}
@@ -0,0 +1,391 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.comet.loadtest.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFactory;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.handler.codec.base64.Base64;
+import org.jboss.netty.handler.codec.frame.FrameDecoder;
+import org.jboss.netty.util.CharsetUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * WebSocket (RFC 6455) counterpart of {@link CometConnection}. Each message (or batch of
+ * messages) arrives as a text frame, and is pinged back by sending the same text back over the
+ * websocket, so there are no http requests at all once the websocket is open.
+ *
+ * AsyncHttpClient 1.6 doesn't support websockets, so this uses the netty channel layer that it
+ * runs on directly, with the handshake and framing done here.
+ *
+ * @author Trask Stalnaker
+ */
+public class WebSocketCometConnection implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(WebSocketCometConnection.class);
+
+    private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    private static final int OPCODE_CONTINUATION = 0x0;
+    private static final int OPCODE_TEXT = 0x1;
+    private static final int OPCODE_CLOSE = 0x8;
+    private static final int OPCODE_PING = 0x9;
+    private static final int OPCODE_PONG = 0xA;
+    private static final int FIN = 0x80;
+    private static final int MASKED = 0x80;
+
+    // client frames only need to be masked, the mask doesn't need to be secure for a load test
+    private static final Random random = new Random();
+
+    private final InetSocketAddress address;
+    private final String hostHeader;
+    private final String requestUri;
+    private final DataCollector dataCollector;
+    private final boolean reconnectBackoff;
+    private final ChannelFactory channelFactory;
+    private final ExecutorService executorService;
+    private final ScheduledExecutorService scheduledExecutorService;
+    // reset once a websocket is upgraded
+    private final ReconnectBackoff backoff = new ReconnectBackoff();
+
+    private volatile Channel socket;
+    private volatile boolean established;
+    private volatile boolean terminated;
+
+    // channel is null for the default (unnamed) channel
+    // without reconnectBackoff, a websocket that can't be connected (or upgraded) is retried
+    // straight away
+    public WebSocketCometConnection(String url, String channel, boolean reconnectBackoff,
+            DataCollector dataCollector, ChannelFactory channelFactory,
+            ExecutorService executorService, ScheduledExecutorService scheduledExecutorService) {
+
+        URI uri = URI.create(url);
+        int port = uri.getPort() == -1 ? 80 : uri.getPort();
+        address = new InetSocketAddress(uri.getHost(), port);
+        hostHeader = uri.getHost() + ":" + port;
+        try {
+            requestUri = uri.getRawPath()
+                    + (channel == null ? "" : "?channel=" + URLEncoder.encode(channel, "UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        this.reconnectBackoff = reconnectBackoff;
+        this.dataCollector = dataCollector;
+        this.channelFactory = channelFactory;
+        this.executorService = executorService;
+        this.scheduledExecutorService = scheduledExecutorService;
+    }
+
+    @Override
+    public void run() {
+        socket = channelFactory.newChannel(Channels.pipeline(new WebSocketDecoder(),
+                new WebSocketHandler()));
+        socket.getConfig().setOption("tcpNoDelay", true);
+        socket.connect(address).addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) {
+                if (!future.isSuccess() && !terminated) {
+                    // e.g. the server is restarting
+                    logger.debug(future.getCause().getMessage(), future.getCause());
+                    dataCollector.cometConnectFailed();
+                    scheduleReconnect();
+                }
+            }
+        });
+    }
+
+    public void terminate() {
+        terminated = true;
+        socket.close();
+    }
+
+    private void reconnect() {
+        if (!terminated) {
+            executorService.execute(this);
+        }
+    }
+
+    // after a jittered, exponentially backed off delay, the same as CometConnection
+    private void scheduleReconnect() {
+        if (terminated) {
+            return;
+        }
+        long delayMillis = reconnectBackoff ? backoff.nextDelayMillis(0, 0) : 0;
+        scheduledExecutorService.schedule(this, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void textReceived(Channel channel, String text)
+            throws UnsupportedEncodingException {
+
+        if (text.startsWith("BROADCAST:")) {
+            logger.debug("received server broadcast {}", text);
+            dataCollector.broadcastReceived();
+            return;
+        }
+        logger.info("received server message {}", text);
+        // the server may coalesce several messages into one frame, one per line, and the
+        // pingbacks are the same lines
+        dataCollector.cometResponse(text.split("\n").length);
+        channel.write(encodeFrame(OPCODE_TEXT, text.getBytes("UTF-8")));
+    }
+
+    // client frames are always masked
+    private static ChannelBuffer encodeFrame(int opcode, byte[] payload) {
+        ChannelBuffer frame = ChannelBuffers.buffer(14 + payload.length);
+        frame.writeByte(FIN | opcode);
+        if (payload.length < 126) {
+            frame.writeByte(MASKED | payload.length);
+        } else if (payload.length <= 0xFFFF) {
+            frame.writeByte(MASKED | 126);
+            frame.writeShort(payload.length);
+        } else {
+            frame.writeByte(MASKED | 127);
+            frame.writeLong(payload.length);
+        }
+        byte[] mask = new byte[4];
+        random.nextBytes(mask);
+        frame.writeBytes(mask);
+        for (int i = 0; i < payload.length; i++) {
+            frame.writeByte(payload[i] ^ mask[i & 3]);
+        }
+        return frame;
+    }
+
+    private static String expectedAccept(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(
+                    (key + ACCEPT_GUID).getBytes(CharsetUtil.US_ASCII.name()));
+            return Base64.encode(ChannelBuffers.wrappedBuffer(digest))
+                    .toString(CharsetUtil.US_ASCII);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // the first thing decoded is the handshake response (as a string), then each frame (as a
+    // Frame), all for a single websocket on a single netty worker thread
+    private static class WebSocketDecoder extends FrameDecoder {
+        private boolean upgraded;
+        @Override
+        protected Object decode(ChannelHandlerContext ctx, Channel channel,
+                ChannelBuffer buffer) {
+
+            if (!upgraded) {
+                int end = indexOfBlankLine(buffer);
+                if (end == -1) {
+                    return null;
+                }
+                upgraded = true;
+                return buffer.readBytes(end - buffer.readerIndex())
+                        .toString(CharsetUtil.ISO_8859_1);
+            }
+            if (buffer.readableBytes() < 2) {
+                return null;
+            }
+            buffer.markReaderIndex();
+            int b0 = buffer.readUnsignedByte();
+            int b1 = buffer.readUnsignedByte();
+            long length = b1 & 0x7F;
+            if (length == 126) {
+                if (buffer.readableBytes() < 2) {
+                    buffer.resetReaderIndex();
+                    return null;
+                }
+                length = buffer.readUnsignedShort();
+            } else if (length == 127) {
+                if (buffer.readableBytes() < 8) {
+                    buffer.resetReaderIndex();
+                    return null;
+                }
+                length = buffer.readLong();
+            }
+            // server frames shouldn't be masked, but it costs nothing to allow it
+            int maskLength = (b1 & MASKED) == 0 ? 0 : 4;
+            if (buffer.readableBytes() < maskLength + length) {
+                buffer.resetReaderIndex();
+                return null;
+            }
+            byte[] mask = new byte[maskLength];
+            buffer.readBytes(mask);
+            byte[] payload = new byte[(int) length];
+            buffer.readBytes(payload);
+            if (maskLength > 0) {
+                for (int i = 0; i < payload.length; i++) {
+                    payload[i] ^= mask[i & 3];
+                }
+            }
+            return new Frame((b0 & FIN) != 0, b0 & 0x0F, payload);
+        }
+        // returns the index just past the "\r\n\r\n" that ends the http response headers, or -1
+        private static int indexOfBlankLine(ChannelBuffer buffer) {
+            for (int i = buffer.readerIndex(); i + 3 < buffer.writerIndex(); i++) {
+                if (buffer.getByte(i) == '\r' && buffer.getByte(i + 1) == '\n'
+                        && buffer.getByte(i + 2) == '\r' && buffer.getByte(i + 3) == '\n') {
+                    return i + 4;
+                }
+            }
+            return -1;
+        }
+    }
+
+    private static class Frame {
+        private final boolean fin;
+        private final int opcode;
+        private final byte[] payload;
+        private Frame(boolean fin, int opcode, byte[] payload) {
+            this.fin = fin;
+            this.opcode = opcode;
+            this.payload = payload;
+        }
+    }
+
+    private class WebSocketHandler extends SimpleChannelUpstreamHandler {
+        private final String key;
+        // text message being reassembled from fragments
+        private final ByteArrayOutputStream fragments = new ByteArrayOutputStream();
+        // only touched by the socket's netty worker thread
+        private boolean connected;
+        private boolean upgraded;
+        private WebSocketHandler() {
+            byte[] nonce = new byte[16];
+            random.nextBytes(nonce);
+            key = Base64.encode(ChannelBuffers.wrappedBuffer(nonce))
+                    .toString(CharsetUtil.US_ASCII);
+        }
+        @Override
+        public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) {
+            connected = true;
+            String handshake = "GET " + requestUri + " HTTP/1.1\r\n"
+                    + "Host: " + hostHeader + "\r\n"
+                    + "Upgrade: websocket\r\n"
+                    + "Connection: Upgrade\r\n"
+                    + "Sec-WebSocket-Key: " + key + "\r\n"
+                    + "Sec-WebSocket-Version: 13\r\n"
+                    + "\r\n";
+            e.getChannel().write(ChannelBuffers.copiedBuffer(handshake, CharsetUtil.US_ASCII));
+        }
+        @Override
+        public void messageReceived(ChannelHandlerContext ctx, MessageEvent e)
+                throws IOException {
+
+            if (e.getMessage() instanceof String) {
+                handshakeReceived(e.getChannel(), (String) e.getMessage());
+                return;
+            }
+            Frame frame = (Frame) e.getMessage();
+            switch (frame.opcode) {
+            case OPCODE_TEXT:
+            case OPCODE_CONTINUATION:
+                fragments.write(frame.payload);
+                if (frame.fin) {
+                    String text = fragments.toString("UTF-8");
+                    fragments.reset();
+                    textReceived(e.getChannel(), text);
+                }
+                break;
+            case OPCODE_PING:
+                e.getChannel().write(encodeFrame(OPCODE_PONG, frame.payload));
+                break;
+            case OPCODE_CLOSE:
+                // echo the close (which the server then follows by closing the connection)
+                e.getChannel().write(encodeFrame(OPCODE_CLOSE, frame.payload));
+                break;
+            default:
+                // pong, or binary which the server doesn't send
+                break;
+            }
+        }
+        // the server closes the websocket once it has been idle for the comet timeout, which is
+        // reconnected straight away, anything else closing it before the upgrade (e.g. the
+        // server going away) is reconnected with backoff
+        @Override
+        public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) {
+            if (!connected) {
+                // the connect failed, which the connect listener handles
+                return;
+            }
+            if (upgraded) {
+                reconnect();
+            } else if (!terminated) {
+                dataCollector.cometConnectFailed();
+                scheduleReconnect();
+            }
+        }
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) {
+            // a failed connect is counted by the connect listener instead
+            if (!terminated && connected) {
+                dataCollector.collectError(e.getCause());
+            }
+            e.getChannel().close();
+        }
+        private void handshakeReceived(Channel channel, String response) {
+            boolean accepted = false;
+            String[] lines = response.split("\r\n");
+            if (lines[0].startsWith("HTTP/1.1 101")) {
+                for (int i = 1; i < lines.length; i++) {
+                    int index = lines[i].indexOf(':');
+                    if (index != -1 && lines[i].substring(0, index).trim()
+                            .equalsIgnoreCase("Sec-WebSocket-Accept")) {
+                        accepted = lines[i].substring(index + 1).trim()
+                                .equals(expectedAccept(key));
+                    }
+                }
+            }
+            if (!accepted) {
+                // don't keep reconnecting
+                terminated = true;
+                dataCollector.collectError(new IllegalStateException(
+                        "Unexpected websocket handshake response " + lines[0]));
+                channel.close();
+                return;
+            }
+            upgraded = true;
+            backoff.reset();
+            if (established) {
+                dataCollector.streamReconnected();
+            } else {
+                established = true;
+                dataCollector.cometConnectionEstablished();
+            }
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.comet.loadtest.nio;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The comet connections parked on a channel, and the channel's bounded backlog of messages
+ * (already encoded as comet response bodies) that are waiting for a comet connection.
+ *
+ * A comet connection that is unparked some other way (timed out or closed) is not removed from
+ * the queue, it is just skipped when it is polled, which keeps timeouts and closes O(1). So that
+ * these stale entries (one per comet timeout on a quiet channel) don't pile up, the queue is
+ * purged by whichever park() finds it holding well over twice as many entries as there are
+ * parked comet connections, which keeps parking amortized O(1).
+ *
+ * @author Trask Stalnaker
+ */
+class CometChannel {
+
+    // so that small channels aren't purged on every park
+    private static final int PURGE_SLACK = 64;
+
+    private final Queue<HttpConnection> parked = new ConcurrentLinkedQueue<HttpConnection>();
+    private final AtomicInteger parkedCount = new AtomicInteger();
+    // entries in the parked queue, including stale ones
+    private final AtomicInteger queuedCount = new AtomicInteger();
+    private final AtomicBoolean purging = new AtomicBoolean();
+
+    private final Queue<byte[]> backlog = new ConcurrentLinkedQueue<byte[]>();
+    // ConcurrentLinkedQueue.size() is O(n)
+    private final AtomicInteger backlogSize = new AtomicInteger();
+    private final int backlogCapacity;
+
+    CometChannel(int backlogCapacity) {
+        this.backlogCapacity = backlogCapacity;
+    }
+
+    void park(HttpConnection connection) {
+        // counted before it can be unparked, so that the count never goes negative
+        parkedCount.getAndIncrement();
+        connection.parkedOn(this);
+        parked.offer(connection);
+        if (queuedCount.incrementAndGet() > 2 * parkedCount.get() + PURGE_SLACK) {
+            purgeStale();
+        }
+    }
+
+    // returns null if there are no parked comet connections
+    HttpConnection pollParked() {
+        HttpConnection connection;
+        while ((connection = parked.poll()) != null) {
+            queuedCount.getAndDecrement();
+            if (connection.unpark(this)) {
+                parkedCount.getAndDecrement();
+                return connection;
+            }
+        }
+        return null;
+    }
+
+    // removes the entries of connections that are no longer parked here, and the older entries
+    // of connections that were re-parked here (a connection only needs one entry to be found)
+    private void purgeStale() {
+        if (!purging.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            Set<HttpConnection> seen =
+                    Collections.newSetFromMap(new IdentityHashMap<HttpConnection, Boolean>());
+            int removed = 0;
+            for (Iterator<HttpConnection> i = parked.iterator(); i.hasNext();) {
+                HttpConnection connection = i.next();
+                if (!connection.isParkedOn(this) || !seen.add(connection)) {
+                    i.remove();
+                    removed++;
+                }
+            }
+            // can be off by one if an entry is polled while it is being removed, which only
+            // moves the next purge a little
+            queuedCount.getAndAdd(-removed);
+        } finally {
+            purging.set(false);
+        }
+    }
+
+    // a comet connection that was unparked by a timeout or close
+    void unparked() {
+        parkedCount.getAndDecrement();
+    }
+
+    int parkedCount() {
+        return parkedCount.get();
+    }
+
+    // returns false if the backlog is full
+    boolean offer(byte[] message) {
+        if (backlogSize.incrementAndGet() > backlogCapacity) {
+            backlogSize.getAndDecrement();
+            return false;
+        }
+        backlog.offer(message);
+        return true;
+    }
+
+    byte[] poll() {
+        byte[] message = backlog.poll();
+        if (message != null) {
+            backlogSize.getAndDecrement();
+        }
+        return message;
+    }
+
+    boolean hasQueuedMessages() {
+        return !backlog.isEmpty();
+    }
+}
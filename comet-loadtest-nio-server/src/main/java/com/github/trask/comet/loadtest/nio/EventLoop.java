@@ -0,0 +1,205 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.comet.loadtest.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A selector and the thread that runs it. Apart from i/o, it runs tasks handed to it by other
+ * event loops (responses to its connections) and expires its connections' timeouts, by checking
+ * every connection once per tick, which costs nothing per connection in between.
+ *
+ * @author Trask Stalnaker
+ */
+class EventLoop implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(EventLoop.class);
+
+    private static final int TICK_MILLIS = 100;
+    private static final int READ_BUFFER_SIZE = 16384;
+    private static final int WRITE_BUFFER_SIZE = 4096;
+    private static final int MAX_POOLED_WRITE_BUFFERS = 256;
+
+    private final NioCometServer server;
+    private final int index;
+    private final int eventLoopCount;
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    // saves waking up the selector for every task when several are handed over at once
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    // shared by all of the event loop's connections, requests are copied out of it
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private final BufferPool bufferPool =
+            new BufferPool(WRITE_BUFFER_SIZE, MAX_POOLED_WRITE_BUFFERS);
+
+    private volatile boolean running = true;
+    // only used on the event loop thread
+    private long nextMessageIndex;
+
+    EventLoop(NioCometServer server, int index, int eventLoopCount) throws IOException {
+        this.server = server;
+        this.index = index;
+        this.eventLoopCount = eventLoopCount;
+        selector = Selector.open();
+        thread = new Thread(this, "NioCometServer-EventLoop-" + index);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    void shutdown() throws InterruptedException {
+        running = false;
+        selector.wakeup();
+        thread.join();
+    }
+
+    NioCometServer getServer() {
+        return server;
+    }
+
+    BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    void execute(Runnable task) {
+        tasks.offer(task);
+        if (!inEventLoop() && wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    // message ids are unique across event loops without any shared counter
+    long nextMessageId() {
+        return nextMessageIndex++ * eventLoopCount + index;
+    }
+
+    void registerAcceptor(final ServerSocketChannel serverSocket) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    serverSocket.register(selector, SelectionKey.OP_ACCEPT);
+                } catch (ClosedChannelException e) {
+                    logger.error(e.getMessage(), e);
+                }
+            }
+        });
+    }
+
+    void register(final SocketChannel socket) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    SelectionKey key = socket.register(selector, SelectionKey.OP_READ);
+                    key.attach(new HttpConnection(socket, key, EventLoop.this));
+                } catch (ClosedChannelException e) {
+                    logger.debug("register(): {}", e.getMessage());
+                }
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        long nextTickMillis = System.currentTimeMillis() + TICK_MILLIS;
+        while (running) {
+            try {
+                selector.select(TICK_MILLIS);
+            } catch (IOException e) {
+                logger.error(e.getMessage(), e);
+            }
+            wakeupPending.set(false);
+            Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+            while (i.hasNext()) {
+                SelectionKey key = i.next();
+                i.remove();
+                if (key.isValid()) {
+                    handle(key);
+                }
+            }
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+            long currentTimeMillis = System.currentTimeMillis();
+            if (currentTimeMillis >= nextTickMillis) {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.isValid() && key.attachment() != null) {
+                        ((HttpConnection) key.attachment()).expire(currentTimeMillis);
+                    }
+                }
+                nextTickMillis = currentTimeMillis + TICK_MILLIS;
+            }
+        }
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() != null) {
+                ((HttpConnection) key.attachment()).close();
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            logger.error(e.getMessage(), e);
+        }
+    }
+
+    private void handle(SelectionKey key) {
+        if (key.isAcceptable()) {
+            accept((ServerSocketChannel) key.channel());
+            return;
+        }
+        HttpConnection connection = (HttpConnection) key.attachment();
+        if (key.isWritable()) {
+            connection.write();
+        }
+        if (key.isValid() && key.isReadable()) {
+            connection.read(readBuffer);
+        }
+    }
+
+    private void accept(ServerSocketChannel serverSocket) {
+        try {
+            SocketChannel socket;
+            while ((socket = serverSocket.accept()) != null) {
+                socket.configureBlocking(false);
+                socket.socket().setTcpNoDelay(true);
+                server.nextEventLoop().register(socket);
+            }
+        } catch (IOException e) {
+            logger.error(e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,303 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.comet.loadtest.nio;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Per-connection state, kept compact since there is one of these per comet connection: no
+ * buffers are held between requests (unless a request or response is only partly read or
+ * written), and a parked comet connection or a message waiting for its pingback is just a few
+ * fields here rather than a separate object.
+ *
+ * Everything apart from parkedChannel is only touched on the connection's event loop, other
+ * threads go through respond().
+ *
+ * @author Trask Stalnaker
+ */
+class HttpConnection {
+
+    private static final Logger logger = LoggerFactory.getLogger(HttpConnection.class);
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    // the client only sends small GETs
+    private static final int MAX_REQUEST_HEAD_LENGTH = 8192;
+
+    private static final String OK = "HTTP/1.1 200 OK";
+    private static final String BAD_REQUEST = "HTTP/1.1 400 Bad Request";
+    private static final String NOT_FOUND = "HTTP/1.1 404 Not Found";
+    private static final String SERVICE_UNAVAILABLE = "HTTP/1.1 503 Service Unavailable";
+
+    private static final byte[] EMPTY = new byte[0];
+    private static final byte[] TIMEOUT = { 'T', 'I', 'M', 'E', 'O', 'U', 'T' };
+
+    // waiting for (or handling) the next request
+    private static final int IDLE = 0;
+    // a response is outstanding, either parked, waiting for a pingback or being delivered
+    private static final int BUSY = 1;
+    private static final int CLOSED = 2;
+
+    private static final AtomicReferenceFieldUpdater<HttpConnection, CometChannel>
+            parkedChannelUpdater = AtomicReferenceFieldUpdater.newUpdater(HttpConnection.class,
+                    CometChannel.class, "parkedChannel");
+
+    private final SocketChannel socket;
+    private final SelectionKey key;
+    private final EventLoop eventLoop;
+
+    // the channel this comet connection is parked on, whoever clears it owns the response
+    private volatile CometChannel parkedChannel;
+
+    private int state;
+    private long deadlineMillis;
+    private boolean awaitingPingback;
+    private long messageId;
+    private boolean closeAfterWrite;
+    // request bytes that haven't been handled yet
+    private byte[] unread;
+    // response bytes that haven't been written yet
+    private ByteBuffer unwritten;
+
+    HttpConnection(SocketChannel socket, SelectionKey key, EventLoop eventLoop) {
+        this.socket = socket;
+        this.key = key;
+        this.eventLoop = eventLoop;
+    }
+
+    EventLoop getEventLoop() {
+        return eventLoop;
+    }
+
+    void park(CometChannel channel, int timeoutMillis) {
+        deadlineMillis = System.currentTimeMillis() + timeoutMillis;
+        channel.park(this);
+    }
+
+    // called by CometChannel.park(), possibly from another event loop re-parking this after
+    // polling it
+    void parkedOn(CometChannel channel) {
+        parkedChannel = channel;
+    }
+
+    boolean isParkedOn(CometChannel channel) {
+        return parkedChannel == channel;
+    }
+
+    // called from any event loop, returns false if this is not (or is no longer) parked on the
+    // channel
+    boolean unpark(CometChannel channel) {
+        return parkedChannelUpdater.compareAndSet(this, channel, null);
+    }
+
+    // the pingback is matched up through the server's pending messages
+    void awaitPingback(long messageId, int timeoutMillis) {
+        deadlineMillis = System.currentTimeMillis() + timeoutMillis;
+        this.messageId = messageId;
+        awaitingPingback = true;
+    }
+
+    // called from any event loop, once per request, by whoever owns the response
+    void respond(final byte[] body) {
+        if (eventLoop.inEventLoop()) {
+            writeResponse(OK, "", body);
+        } else {
+            eventLoop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    writeResponse(OK, "", body);
+                }
+            });
+        }
+    }
+
+    void respondServiceUnavailable(int retryAfterSeconds) {
+        writeResponse(SERVICE_UNAVAILABLE, "Retry-After: " + retryAfterSeconds + "\r\n", EMPTY);
+    }
+
+    void respondNotFound() {
+        writeResponse(NOT_FOUND, "", EMPTY);
+    }
+
+    void read(ByteBuffer readBuffer) {
+        readBuffer.clear();
+        int n;
+        try {
+            n = socket.read(readBuffer);
+        } catch (IOException e) {
+            logger.debug("read(): {}", e.getMessage());
+            close();
+            return;
+        }
+        if (n == -1) {
+            close();
+            return;
+        }
+        readBuffer.flip();
+        int offset = unread == null ? 0 : unread.length;
+        byte[] bytes = unread == null ? new byte[n] : Arrays.copyOf(unread, offset + n);
+        readBuffer.get(bytes, offset, n);
+        unread = bytes;
+        handleRequests();
+    }
+
+    void write() {
+        try {
+            socket.write(unwritten);
+        } catch (IOException e) {
+            logger.debug("write(): {}", e.getMessage());
+            close();
+            return;
+        }
+        if (unwritten.hasRemaining()) {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            return;
+        }
+        eventLoop.getBufferPool().release(unwritten);
+        unwritten = null;
+        if ((key.interestOps() & SelectionKey.OP_WRITE) != 0) {
+            key.interestOps(SelectionKey.OP_READ);
+        }
+        if (closeAfterWrite) {
+            close();
+        } else {
+            // the client may have sent its next request already
+            handleRequests();
+        }
+    }
+
+    // called periodically by the event loop
+    void expire(long currentTimeMillis) {
+        if (currentTimeMillis < deadlineMillis) {
+            return;
+        }
+        CometChannel channel = parkedChannel;
+        if (channel != null) {
+            if (unpark(channel)) {
+                logger.debug("comet request timed out");
+                channel.unparked();
+                writeResponse(OK, "", TIMEOUT);
+            }
+        } else if (awaitingPingback && eventLoop.getServer().removePendingMessage(messageId)) {
+            logger.debug("message request timed out");
+            writeResponse(OK, "", TIMEOUT);
+        }
+    }
+
+    void close() {
+        if (state == CLOSED) {
+            return;
+        }
+        state = CLOSED;
+        CometChannel channel = parkedChannel;
+        if (channel != null && unpark(channel)) {
+            channel.unparked();
+        }
+        if (awaitingPingback) {
+            eventLoop.getServer().removePendingMessage(messageId);
+        }
+        if (unwritten != null) {
+            eventLoop.getBufferPool().release(unwritten);
+            unwritten = null;
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            logger.debug("close(): {}", e.getMessage());
+        }
+    }
+
+    // one request at a time, the next request is not handled until the response to the previous
+    // one has been written
+    private void handleRequests() {
+        while (state == IDLE && unwritten == null && unread != null) {
+            int end = indexOfEndOfHead(unread);
+            if (end == -1) {
+                if (unread.length > MAX_REQUEST_HEAD_LENGTH) {
+                    logger.warn("handleRequests(): request head too long");
+                    close();
+                }
+                return;
+            }
+            String head = new String(unread, 0, end, ISO_8859_1);
+            unread = end + 4 == unread.length ? null
+                    : Arrays.copyOfRange(unread, end + 4, unread.length);
+            state = BUSY;
+            HttpRequest request;
+            try {
+                request = HttpRequest.parse(head);
+            } catch (IllegalArgumentException e) {
+                logger.warn("handleRequests(): {}", e.getMessage());
+                closeAfterWrite = true;
+                writeResponse(BAD_REQUEST, "", EMPTY);
+                return;
+            }
+            closeAfterWrite = !request.isKeepAlive();
+            try {
+                eventLoop.getServer().handleRequest(this, request);
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            } catch (RuntimeException e) {
+                // e.g. a malformed pingback
+                logger.error(e.getMessage(), e);
+                close();
+                return;
+            }
+        }
+    }
+
+    private void writeResponse(String statusLine, String extraHeaders, byte[] body) {
+        if (state == CLOSED) {
+            // the messages in a comet response will time out waiting for their pingback
+            return;
+        }
+        state = IDLE;
+        awaitingPingback = false;
+        byte[] head = (statusLine + "\r\n"
+                + "Content-Type: text/plain;charset=UTF-8\r\n"
+                + extraHeaders
+                + (closeAfterWrite ? "Connection: close\r\n" : "")
+                + "Content-Length: " + body.length + "\r\n"
+                + "\r\n").getBytes(ISO_8859_1);
+        ByteBuffer buffer = eventLoop.getBufferPool().acquire(head.length + body.length);
+        buffer.put(head);
+        buffer.put(body);
+        buffer.flip();
+        unwritten = buffer;
+        write();
+    }
+
+    // returns the index of the "\r\n\r\n" that ends the request head, or -1
+    private static int indexOfEndOfHead(byte[] bytes) {
+        for (int i = 0; i + 3 < bytes.length; i++) {
+            if (bytes[i] == '\r' && bytes[i + 1] == '\n' && bytes[i + 2] == '\r'
+                    && bytes[i + 3] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
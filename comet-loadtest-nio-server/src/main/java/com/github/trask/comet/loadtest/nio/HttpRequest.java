@@ -0,0 +1,120 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.comet.loadtest.nio;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Just enough of an http/1.1 request for the comet contract: the path, the query parameters and
+ * whether the connection is kept alive. Request bodies are not supported, the client only sends
+ * GETs.
+ *
+ * @author Trask Stalnaker
+ */
+class HttpRequest {
+
+    private final String path;
+    private final Map<String, List<String>> parameters;
+    private final boolean keepAlive;
+
+    private HttpRequest(String path, Map<String, List<String>> parameters, boolean keepAlive) {
+        this.path = path;
+        this.parameters = parameters;
+        this.keepAlive = keepAlive;
+    }
+
+    String getPath() {
+        return path;
+    }
+
+    // returns null if the parameter is not present
+    String getParameter(String name) {
+        List<String> values = parameters.get(name);
+        return values == null ? null : values.get(0);
+    }
+
+    List<String> getParameters(String name) {
+        List<String> values = parameters.get(name);
+        return values == null ? Collections.<String> emptyList() : values;
+    }
+
+    boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    // head is the request line and headers, without the blank line that ends them
+    static HttpRequest parse(String head) {
+        String[] lines = head.split("\r\n");
+        String[] requestLine = lines[0].split(" ");
+        if (requestLine.length != 3) {
+            throw new IllegalArgumentException("Unexpected request line " + lines[0]);
+        }
+        String target = requestLine[1];
+        boolean keepAlive = requestLine[2].equals("HTTP/1.1");
+        for (int i = 1; i < lines.length; i++) {
+            int index = lines[i].indexOf(':');
+            if (index != -1 && lines[i].substring(0, index).trim().equalsIgnoreCase("Connection")) {
+                String connection = lines[i].substring(index + 1).trim();
+                if (connection.equalsIgnoreCase("close")) {
+                    keepAlive = false;
+                } else if (connection.equalsIgnoreCase("keep-alive")) {
+                    keepAlive = true;
+                }
+            }
+        }
+        int index = target.indexOf('?');
+        if (index == -1) {
+            return new HttpRequest(target, Collections.<String, List<String>> emptyMap(),
+                    keepAlive);
+        }
+        return new HttpRequest(target.substring(0, index),
+                parseQueryString(target.substring(index + 1)), keepAlive);
+    }
+
+    private static Map<String, List<String>> parseQueryString(String queryString) {
+        Map<String, List<String>> parameters = new HashMap<String, List<String>>();
+        for (String parameter : queryString.split("&")) {
+            if (parameter.length() == 0) {
+                continue;
+            }
+            int index = parameter.indexOf('=');
+            String name = decode(index == -1 ? parameter : parameter.substring(0, index));
+            String value = index == -1 ? "" : decode(parameter.substring(index + 1));
+            List<String> values = parameters.get(name);
+            if (values == null) {
+                // almost always a single value
+                values = new ArrayList<String>(1);
+                parameters.put(name, values);
+            }
+            values.add(value);
+        }
+        return parameters;
+    }
+
+    private static String decode(String text) {
+        try {
+            return URLDecoder.decode(text, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,320 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.comet.loadtest.nio;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Standalone comet server with the same /comet, /message and /count contract as CometServlet
+ * (long-polling only), written directly against java.nio so that the per-connection cost of
+ * jetty and the servlet async machinery can be separated from the per-connection cost that is
+ * inherent to the protocol.
+ *
+ * There is one event loop (selector thread) per core. Each connection belongs to one event loop
+ * for its whole life and all of its i/o happens on that event loop, other threads hand it work
+ * through the event loop's task queue.
+ *
+ * Configured through system properties, "nioCometServer.cometTimeoutMillis" etc, with the same
+ * names and defaults as the CometServlet init-params, plus "nioCometServer.eventLoops".
+ *
+ * @author Trask Stalnaker
+ */
+public class NioCometServer {
+
+    private static final Logger logger = LoggerFactory.getLogger(NioCometServer.class);
+
+    private static final int DEFAULT_PORT = 8080;
+    private static final int DEFAULT_COMET_TIMEOUT_MILLIS = (int) TimeUnit.SECONDS.toMillis(300);
+    private static final int DEFAULT_COMET_TIMEOUT_JITTER_MILLIS =
+            (int) TimeUnit.SECONDS.toMillis(30);
+    private static final int DEFAULT_MESSAGE_TIMEOUT_MILLIS = (int) TimeUnit.SECONDS.toMillis(30);
+    private static final int DEFAULT_MESSAGE_TIMEOUT_JITTER_MILLIS = 0;
+    private static final int DEFAULT_BACKLOG_CAPACITY = 1024;
+    private static final int DEFAULT_RETRY_AFTER_SECONDS = 1;
+
+    private static final int ACCEPT_BACKLOG = 1024;
+
+    private static final ThreadLocal<Random> jitterRandom = new ThreadLocal<Random>() {
+        @Override
+        protected Random initialValue() {
+            return new Random();
+        }
+    };
+
+    private final int port;
+    private final int cometTimeoutMillis;
+    private final int cometTimeoutJitterMillis;
+    private final int messageTimeoutMillis;
+    private final int messageTimeoutJitterMillis;
+    private final int backlogCapacity;
+    private final int retryAfterSeconds;
+
+    private final EventLoop[] eventLoops;
+    // comet connections (and queued messages) that didn't ask for a channel
+    private final CometChannel defaultChannel;
+    private final ConcurrentMap<String, CometChannel> channels =
+            new ConcurrentHashMap<String, CometChannel>();
+    // message connections waiting for their pingback
+    private final ConcurrentMap<Long, HttpConnection> pendingMessages =
+            new ConcurrentHashMap<Long, HttpConnection>();
+
+    private volatile ServerSocketChannel serverSocket;
+    // only used by the event loop that accepts connections
+    private int nextEventLoop;
+
+    public NioCometServer(int port) throws IOException {
+        this.port = port;
+        cometTimeoutMillis = getIntProperty("cometTimeoutMillis", DEFAULT_COMET_TIMEOUT_MILLIS);
+        cometTimeoutJitterMillis = getIntProperty("cometTimeoutJitterMillis",
+                DEFAULT_COMET_TIMEOUT_JITTER_MILLIS);
+        messageTimeoutMillis = getIntProperty("messageTimeoutMillis",
+                DEFAULT_MESSAGE_TIMEOUT_MILLIS);
+        messageTimeoutJitterMillis = getIntProperty("messageTimeoutJitterMillis",
+                DEFAULT_MESSAGE_TIMEOUT_JITTER_MILLIS);
+        backlogCapacity = getIntProperty("backlogCapacity", DEFAULT_BACKLOG_CAPACITY);
+        retryAfterSeconds = getIntProperty("retryAfterSeconds", DEFAULT_RETRY_AFTER_SECONDS);
+        defaultChannel = new CometChannel(backlogCapacity);
+        // one per core by default
+        eventLoops = new EventLoop[getIntProperty("eventLoops",
+                Runtime.getRuntime().availableProcessors())];
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = new EventLoop(this, i, eventLoops.length);
+        }
+    }
+
+    public static void main(String... args) throws IOException {
+        int port = args.length == 0 ? DEFAULT_PORT : Integer.parseInt(args[0]);
+        new NioCometServer(port).start();
+        logger.info("listening on port {}", port);
+    }
+
+    public void start() throws IOException {
+        serverSocket = ServerSocketChannel.open();
+        serverSocket.socket().setReuseAddress(true);
+        serverSocket.socket().bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+        serverSocket.configureBlocking(false);
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.start();
+        }
+        eventLoops[0].registerAcceptor(serverSocket);
+    }
+
+    public void stop() throws IOException, InterruptedException {
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.shutdown();
+        }
+        serverSocket.close();
+    }
+
+    // called by the accepting event loop
+    EventLoop nextEventLoop() {
+        EventLoop eventLoop = eventLoops[nextEventLoop];
+        nextEventLoop = (nextEventLoop + 1) % eventLoops.length;
+        return eventLoop;
+    }
+
+    // called on the connection's event loop
+    void handleRequest(HttpConnection connection, HttpRequest request)
+            throws UnsupportedEncodingException {
+
+        logger.debug("handleRequest(): request.path={}", request.getPath());
+        if (request.getPath().equals("/comet")) {
+            doComet(connection, request);
+        } else if (request.getPath().equals("/message")) {
+            doMessage(connection, request);
+        } else if (request.getPath().equals("/count")) {
+            doCount(connection, request);
+        } else if (request.getPath().equals("/cpu")) {
+            doCpu(connection);
+        } else if (request.getPath().equals("/heap")) {
+            doHeap(connection);
+        } else {
+            logger.error("handleRequest(): unexpected path {}", request.getPath());
+            connection.respondNotFound();
+        }
+    }
+
+    // returns false if the pingback (or the timeout) got there first
+    boolean removePendingMessage(long messageId) {
+        return pendingMessages.remove(messageId) != null;
+    }
+
+    private void doComet(HttpConnection connection, HttpRequest request)
+            throws UnsupportedEncodingException {
+
+        logger.debug("doComet()");
+        // a coalesced comet response is acknowledged with one pingback per message
+        for (String pingback : request.getParameters("pingback")) {
+            doCometPingback(pingback);
+        }
+        CometChannel channel = getOrCreateChannel(request.getParameter("channel"));
+        connection.park(channel, jitter(cometTimeoutMillis, cometTimeoutJitterMillis));
+        // drain the backlog, checking after parking so that a message queued concurrently either
+        // sees this comet connection or is seen here
+        if (channel.hasQueuedMessages()) {
+            flush(channel);
+        }
+    }
+
+    private void doCometPingback(String pingback) throws UnsupportedEncodingException {
+        logger.debug("doCometPingback(): pingback={}", pingback);
+        int index = pingback.indexOf(':');
+        // stage timestamps after the message id aren't supported here, the message response is
+        // just the client message, which the client takes as unstamped
+        int messageIdEnd = pingback.indexOf(',');
+        if (messageIdEnd == -1 || messageIdEnd > index) {
+            messageIdEnd = index;
+        }
+        long messageId = Long.parseLong(pingback.substring(0, messageIdEnd));
+        String clientMessage = pingback.substring(index + 1);
+        HttpConnection messageConnection = pendingMessages.remove(messageId);
+        if (messageConnection == null) {
+            logger.warn("message request timed out, cannot send response");
+        } else {
+            messageConnection.respond(clientMessage.getBytes("UTF-8"));
+        }
+    }
+
+    // the message goes through the channel's backlog, it is written out as soon as a comet
+    // connection is parked on the channel, which covers the gap between a comet response and
+    // the client's reconnect
+    private void doMessage(HttpConnection connection, HttpRequest request)
+            throws UnsupportedEncodingException {
+
+        logger.debug("doMessage()");
+        long messageId = connection.getEventLoop().nextMessageId();
+        String clientMessage = request.getParameter("message");
+        connection.awaitPingback(messageId,
+                jitter(messageTimeoutMillis, messageTimeoutJitterMillis));
+        // registered before the message can be seen by a comet connection, so that the pingback
+        // always finds it
+        pendingMessages.put(messageId, connection);
+        CometChannel channel = getOrCreateChannel(request.getParameter("channel"));
+        if (!channel.offer((messageId + ":" + clientMessage).getBytes("UTF-8"))) {
+            logger.warn("doMessage(): backlog is full");
+            if (removePendingMessage(messageId)) {
+                connection.respondServiceUnavailable(retryAfterSeconds);
+            }
+            return;
+        }
+        flush(channel);
+    }
+
+    // writes the channel's queued messages to its parked comet connections, one message per comet
+    // response, from whichever event loop queued the message or parked the comet connection
+    private void flush(CometChannel channel) {
+        while (channel.hasQueuedMessages()) {
+            HttpConnection cometConnection = channel.pollParked();
+            if (cometConnection == null) {
+                // the next comet connection to park on the channel will flush
+                return;
+            }
+            byte[] message = channel.poll();
+            if (message == null) {
+                // another flush got there first
+                channel.park(cometConnection);
+            } else {
+                cometConnection.respond(message);
+            }
+        }
+    }
+
+    private void doCount(HttpConnection connection, HttpRequest request)
+            throws UnsupportedEncodingException {
+
+        String channelName = request.getParameter("channel");
+        int count;
+        if (channelName == null) {
+            count = defaultChannel.parkedCount();
+            for (CometChannel channel : channels.values()) {
+                count += channel.parkedCount();
+            }
+        } else {
+            CometChannel channel = channels.get(channelName);
+            count = channel == null ? 0 : channel.parkedCount();
+        }
+        connection.respond(Integer.toString(count).getBytes("UTF-8"));
+    }
+
+    // sum of the cpu time of all live threads, same as CometServlet
+    private void doCpu(HttpConnection connection) throws UnsupportedEncodingException {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        long cpuNanos = -1;
+        if (threadMXBean.isThreadCpuTimeSupported()) {
+            cpuNanos = 0;
+            for (long threadId : threadMXBean.getAllThreadIds()) {
+                long threadCpuNanos = threadMXBean.getThreadCpuTime(threadId);
+                // -1 if the thread has died since getAllThreadIds()
+                if (threadCpuNanos > 0) {
+                    cpuNanos += threadCpuNanos;
+                }
+            }
+        }
+        connection.respond(Long.toString(cpuNanos).getBytes("UTF-8"));
+    }
+
+    // heap in use after a full gc, same as CometServlet
+    private void doHeap(HttpConnection connection) throws UnsupportedEncodingException {
+        MemoryMXBean memoryMXBean = ManagementFactory.getMemoryMXBean();
+        memoryMXBean.gc();
+        connection.respond(Long.toString(memoryMXBean.getHeapMemoryUsage().getUsed())
+                .getBytes("UTF-8"));
+    }
+
+    private CometChannel getOrCreateChannel(String name) {
+        if (name == null) {
+            return defaultChannel;
+        }
+        CometChannel channel = channels.get(name);
+        if (channel == null) {
+            channel = new CometChannel(backlogCapacity);
+            CometChannel existingChannel = channels.putIfAbsent(name, channel);
+            if (existingChannel != null) {
+                channel = existingChannel;
+            }
+        }
+        return channel;
+    }
+
+    private static int jitter(int timeoutMillis, int jitterMillis) {
+        if (jitterMillis <= 0) {
+            return timeoutMillis;
+        }
+        return timeoutMillis + jitterRandom.get().nextInt(jitterMillis);
+    }
+
+    private static int getIntProperty(String name, int defaultValue) {
+        String valueText = System.getProperty("nioCometServer." + name);
+        if (valueText == null || valueText.length() == 0) {
+            return defaultValue;
+        } else {
+            return Integer.parseInt(valueText);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.comet.loadtest.nio;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.trask.comet.loadtest.client.Main;
+import com.github.trask.comet.loadtest.client.Options;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * The long-polling cases of the servlet's LocalTest, run with the same client against the nio
+ * server.
+ *
+ * @author Trask Stalnaker
+ */
+public class NioLocalTest {
+
+    private static final int PORT = 8080;
+
+    private NioCometServer server;
+    // the server properties set by restartWithProperties()
+    private final Set<String> propertyNames = new HashSet<String>();
+
+    @Before
+    public void before() throws Exception {
+        server = new NioCometServer(PORT);
+        server.start();
+    }
+
+    @After
+    public void after() throws Exception {
+        server.stop();
+        clearProperties();
+    }
+
+    @Test
+    public void shouldOpenSingleCometConnectionAndSendAndReceiveSingleMessage() throws Exception {
+        String url = "http://localhost:" + PORT;
+        boolean successful = new Main(url, 1, 1, 0, 0).run();
+        assertTrue(successful);
+    }
+
+    @Test
+    public void shouldOpenTenCometConnectionsAndSendAndReceiveTenMessages() throws Exception {
+        String url = "http://localhost:" + PORT;
+        boolean successful = new Main(url, 10, 10, 0, 0).run();
+        assertTrue(successful);
+    }
+
+    @Test
+    public void shouldOpenHundredCometConnectionsAndSendAndReceiveHundredMessages()
+            throws Exception {
+
+        String url = "http://localhost:" + PORT;
+        boolean successful = new Main(url, 100, 100, 0, 0).run();
+        assertTrue(successful);
+    }
+
+    @Test
+    public void shouldOpenThousandCometConnectionsAndSendAndReceiveThousandMessages()
+            throws Exception {
+
+        String url = "http://localhost:" + PORT;
+        // with this many messages it helps a lot to throttle them a little
+        boolean successful = new Main(url, 1000, 1000, 0, 5).run();
+        assertTrue(successful);
+    }
+
+    @Test
+    public void shouldOpenHundredCometConnectionsOverTenChannelsAndSendHundredMessages()
+            throws Exception {
+
+        String url = "http://localhost:" + PORT;
+        boolean successful = new Main(url, 100, 100, 0, 0, new Options().setChannels(10)).run();
+        assertTrue(successful);
+    }
+
+    @Test
+    public void shouldRetryMessagesRejectedByFullBacklog() throws Exception {
+        // restart the server with a tiny backlog so that some messages are rejected with 503
+        restartWithProperties(ImmutableMap.of("backlogCapacity", "2"));
+        String url = "http://localhost:" + PORT;
+        boolean successful = new Main(url, 1, 10, 0, 0).run();
+        assertTrue(successful);
+    }
+
+    @Test
+    public void shouldReconnectCometConnectionsThatTimeOutWhileSendingMessages()
+            throws Exception {
+
+        // restart the server with a short comet timeout so that the comet connections time out
+        // (and reconnect) several times while the messages are being sent
+        restartWithProperties(ImmutableMap.of("cometTimeoutMillis", "200",
+                "cometTimeoutJitterMillis", "0"));
+        String url = "http://localhost:" + PORT;
+        boolean successful = new Main(url, 10, 100, 0, 10).run();
+        assertTrue(successful);
+    }
+
+    // restarts the server with the given settings, which the server reads from the
+    // nioCometServer.* system properties when it is constructed, replacing any set by a previous
+    // restart
+    private void restartWithProperties(Map<String, String> properties) throws Exception {
+        server.stop();
+        clearProperties();
+        for (Map.Entry<String, String> property : properties.entrySet()) {
+            System.setProperty("nioCometServer." + property.getKey(), property.getValue());
+            propertyNames.add(property.getKey());
+        }
+        server = new NioCometServer(PORT);
+        server.start();
+    }
+
+    private void clearProperties() {
+        for (String propertyName : propertyNames) {
+            System.clearProperty("nioCometServer." + propertyName);
+        }
+        propertyNames.clear();
+    }
+}
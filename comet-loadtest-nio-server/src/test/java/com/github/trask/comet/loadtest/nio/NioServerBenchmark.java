@@ -0,0 +1,42 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.comet.loadtest.nio;
+
+import com.github.trask.comet.loadtest.client.Main;
+
+/**
+ * Runs the same long-polling load as the servlet's TransportBenchmark against the nio server,
+ * so that the messages per second, server cpu per message and server heap per comet connection
+ * can be compared with the LONG_POLL numbers from the servlet under jetty.
+ *
+ * @author Trask Stalnaker
+ */
+public class NioServerBenchmark {
+
+    private static final int PORT = 8080;
+    private static final int CONNECTIONS = 1000;
+    private static final int MESSAGES = 20000;
+
+    public static void main(String... args) throws Exception {
+        NioCometServer server = new NioCometServer(PORT);
+        server.start();
+        try {
+            new Main("http://localhost:" + PORT, CONNECTIONS, MESSAGES, 0, 0).run();
+        } finally {
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.comet.loadtest.server;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Decides whether to take on a new comet connection or message, based on the server's live
+ * pressure, so that under overload new work is turned away early (and cheaply, with a 503 and
+ * Retry-After) rather than accepted and left to time out, and the work already accepted keeps
+ * a bounded latency.
+ *
+ * The limits are:
+ * - parked comet connections (comet connections only)
+ * - messages in flight, accepted and waiting for their pingback (messages only)
+ * - recent accept to comet write latency (messages only), a moving average that is only
+ * trusted while deliveries are still happening, so that once the backlog has drained (or
+ * nothing is being delivered) messages are admitted again rather than rejected forever
+ * - heap headroom (both), the percentage of the old generation that was still free after its
+ * last collection, sampled at most once per HEAP_SAMPLE_MILLIS, this is the live data that
+ * garbage collection can't free, so garbage that just hasn't been collected yet doesn't turn
+ * work away (the whole heap's current usage is used instead if the jvm has no old generation
+ * pool)
+ *
+ * A limit of zero is no limit.
+ *
+ * @author Trask Stalnaker
+ */
+class AdmissionController {
+
+    enum Reason {
+        PARKED_CONNECTIONS, IN_FLIGHT_MESSAGES, DELIVERY_LATENCY, HEAP_HEADROOM
+    }
+
+    private static final long HEAP_SAMPLE_MILLIS = 100;
+    // the latency average is ignored after this long without a delivery
+    private static final long LATENCY_SIGNAL_MILLIS = 1000;
+    // each delivery moves the latency average 1/16 of the way
+    private static final int LATENCY_AVERAGE_SHIFT = 4;
+
+    // null if there isn't one
+    private static final MemoryPoolMXBean oldGenerationPool = findOldGenerationPool();
+
+    private final int maxParkedConnections;
+    private final int maxInFlightMessages;
+    private final long maxDeliveryLatencyNanos;
+    private final int minHeapHeadroomPercent;
+
+    // updated without synchronization, a lost update only makes the average a little stale
+    private volatile long deliveryLatencyNanos;
+    private volatile long lastDeliveryNanos;
+
+    private volatile long heapSampleNanos;
+    private volatile int heapHeadroomPercent = 100;
+
+    private final AtomicLongArray rejectedCounts = new AtomicLongArray(Reason.values().length);
+
+    AdmissionController(int maxParkedConnections, int maxInFlightMessages,
+            int maxDeliveryLatencyMillis, int minHeapHeadroomPercent) {
+
+        this.maxParkedConnections = maxParkedConnections;
+        this.maxInFlightMessages = maxInFlightMessages;
+        maxDeliveryLatencyNanos = TimeUnit.MILLISECONDS.toNanos(maxDeliveryLatencyMillis);
+        this.minHeapHeadroomPercent = minHeapHeadroomPercent;
+    }
+
+    // returns null if the comet connection is admitted, otherwise the limit that was exceeded
+    Reason admitComet(int parkedConnections) {
+        if (maxParkedConnections > 0 && parkedConnections >= maxParkedConnections) {
+            return rejected(Reason.PARKED_CONNECTIONS);
+        }
+        if (minHeapHeadroomPercent > 0 && getHeapHeadroomPercent() < minHeapHeadroomPercent) {
+            return rejected(Reason.HEAP_HEADROOM);
+        }
+        return null;
+    }
+
+    // returns null if the message is admitted, otherwise the limit that was exceeded
+    Reason admitMessage(int inFlightMessages) {
+        if (maxInFlightMessages > 0 && inFlightMessages >= maxInFlightMessages) {
+            return rejected(Reason.IN_FLIGHT_MESSAGES);
+        }
+        if (maxDeliveryLatencyNanos > 0 && isDeliveryLatencyFresh()
+                && deliveryLatencyNanos > maxDeliveryLatencyNanos) {
+            return rejected(Reason.DELIVERY_LATENCY);
+        }
+        if (minHeapHeadroomPercent > 0 && getHeapHeadroomPercent() < minHeapHeadroomPercent) {
+            return rejected(Reason.HEAP_HEADROOM);
+        }
+        return null;
+    }
+
+    void delivered(long acceptToWriteNanos) {
+        long average = deliveryLatencyNanos;
+        deliveryLatencyNanos = average + ((acceptToWriteNanos - average) >> LATENCY_AVERAGE_SHIFT);
+        lastDeliveryNanos = System.nanoTime();
+    }
+
+    long getRejectedCount(Reason reason) {
+        return rejectedCounts.get(reason.ordinal());
+    }
+
+    // -1 if there have been no recent deliveries
+    long getDeliveryLatencyMicros() {
+        return isDeliveryLatencyFresh()
+                ? TimeUnit.NANOSECONDS.toMicros(deliveryLatencyNanos) : -1;
+    }
+
+    int getHeapHeadroomPercent() {
+        long nowNanos = System.nanoTime();
+        if (nowNanos - heapSampleNanos >= TimeUnit.MILLISECONDS.toNanos(HEAP_SAMPLE_MILLIS)) {
+            MemoryUsage collectionUsage =
+                    oldGenerationPool == null ? null : oldGenerationPool.getCollectionUsage();
+            if (collectionUsage != null && collectionUsage.getMax() > 0) {
+                // zero used until the old generation's first collection
+                heapHeadroomPercent = (int) (100 * (collectionUsage.getMax()
+                        - collectionUsage.getUsed()) / collectionUsage.getMax());
+            } else {
+                Runtime runtime = Runtime.getRuntime();
+                long usedBytes = runtime.totalMemory() - runtime.freeMemory();
+                heapHeadroomPercent =
+                        (int) (100 * (runtime.maxMemory() - usedBytes) / runtime.maxMemory());
+            }
+            heapSampleNanos = nowNanos;
+        }
+        return heapHeadroomPercent;
+    }
+
+    // the old generation is the only heap pool that supports a usage threshold (eden and the
+    // survivor spaces only support a collection usage threshold)
+    private static MemoryPoolMXBean findOldGenerationPool() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isUsageThresholdSupported()
+                    && pool.isCollectionUsageThresholdSupported()) {
+                return pool;
+            }
+        }
+        return null;
+    }
+
+    private boolean isDeliveryLatencyFresh() {
+        return System.nanoTime() - lastDeliveryNanos
+                < TimeUnit.MILLISECONDS.toNanos(LATENCY_SIGNAL_MILLIS);
+    }
+
+    private Reason rejected(Reason reason) {
+        rejectedCounts.getAndIncrement(reason.ordinal());
+        return reason;
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.comet.loadtest.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for the per-channel message backlogs, used to size them: how deep they get, how long
+ * messages sit in them and how often they are full.
+ *
+ * @author Trask Stalnaker
+ */
+class BacklogStats {
+
+    private final AtomicLong queuedCount = new AtomicLong();
+    private final AtomicLong deliveredCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong totalDwellNanos = new AtomicLong();
+    private final AtomicLong maxDwellNanos = new AtomicLong();
+    private final AtomicLong peakDepth = new AtomicLong();
+
+    void queued(int depth) {
+        queuedCount.getAndIncrement();
+        updateMax(peakDepth, depth);
+    }
+
+    void delivered(long dwellNanos) {
+        deliveredCount.getAndIncrement();
+        totalDwellNanos.getAndAdd(dwellNanos);
+        updateMax(maxDwellNanos, dwellNanos);
+    }
+
+    void rejected() {
+        rejectedCount.getAndIncrement();
+    }
+
+    // a message whose message request timed out while it was queued
+    void dropped() {
+        droppedCount.getAndIncrement();
+    }
+
+    long getQueuedCount() {
+        return queuedCount.get();
+    }
+
+    long getDeliveredCount() {
+        return deliveredCount.get();
+    }
+
+    long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    long getTotalDwellNanos() {
+        return totalDwellNanos.get();
+    }
+
+    long getMaxDwellNanos() {
+        return maxDwellNanos.get();
+    }
+
+    // the deepest any single channel's backlog has been
+    long getPeakDepth() {
+        return peakDepth.get();
+    }
+
+    void reset() {
+        queuedCount.set(0);
+        deliveredCount.set(0);
+        rejectedCount.set(0);
+        droppedCount.set(0);
+        totalDwellNanos.set(0);
+        maxDwellNanos.set(0);
+        peakDepth.set(0);
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        while (true) {
+            long current = max.get();
+            if (value <= current || max.compareAndSet(current, value)) {
+                return;
+            }
+        }
+    }
+}
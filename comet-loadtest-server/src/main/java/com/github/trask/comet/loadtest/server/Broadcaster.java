@@ -0,0 +1,122 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.comet.loadtest.server;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Delivers the same (already encoded) payload to a set of subscribers, spreading the deliveries
+ * over a bounded pool of worker threads.
+ *
+ * When all of the worker threads are busy and the batch queue is full, the broadcasting thread
+ * delivers the next batch itself, which throttles how fast new broadcasts can be accepted.
+ *
+ * @author Trask Stalnaker
+ */
+class Broadcaster {
+
+    private static final Logger logger = LoggerFactory.getLogger(Broadcaster.class);
+
+    private static final int BATCH_SIZE = 256;
+    private static final int MAX_QUEUED_BATCHES = 1024;
+
+    private final ExecutorService executorService;
+
+    Broadcaster(int nThreads) {
+        executorService = new ThreadPoolExecutor(nThreads, nThreads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(MAX_QUEUED_BATCHES),
+                new DaemonThreadFactory("CometServer-Broadcaster-"),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    void broadcast(List<? extends Subscriber> subscribers, byte[] payload,
+            BroadcastCallback callback) {
+
+        int nSubscribers = subscribers.size();
+        if (nSubscribers == 0) {
+            callback.onComplete(0, 0);
+            return;
+        }
+        Fanout fanout = new Fanout(nSubscribers, callback);
+        for (int from = 0; from < nSubscribers; from += BATCH_SIZE) {
+            int to = Math.min(from + BATCH_SIZE, nSubscribers);
+            executorService.execute(new Batch(subscribers.subList(from, to), payload, fanout));
+        }
+    }
+
+    interface BroadcastCallback {
+        void onComplete(int delivered, long fanoutNanos);
+    }
+
+    private static class Batch implements Runnable {
+        private final List<? extends Subscriber> subscribers;
+        private final byte[] payload;
+        private final Fanout fanout;
+        private Batch(List<? extends Subscriber> subscribers, byte[] payload, Fanout fanout) {
+            this.subscribers = subscribers;
+            this.payload = payload;
+            this.fanout = fanout;
+        }
+        @Override
+        public void run() {
+            for (Subscriber subscriber : subscribers) {
+                boolean delivered = false;
+                try {
+                    subscriber.deliver(payload, payload.length);
+                    delivered = true;
+                } catch (IOException e) {
+                    logger.warn("run(): error writing broadcast to comet connection: {}",
+                            e.getMessage());
+                } catch (IllegalStateException e) {
+                    // comet connection completed or timed out concurrently
+                    logger.warn("run(): error completing comet connection: {}", e.getMessage());
+                }
+                fanout.completed(delivered);
+            }
+        }
+    }
+
+    private static class Fanout {
+        private final AtomicInteger remaining;
+        private final AtomicInteger delivered = new AtomicInteger();
+        private final AtomicLong firstCompletionNanos = new AtomicLong();
+        private final BroadcastCallback callback;
+        private Fanout(int nSubscribers, BroadcastCallback callback) {
+            remaining = new AtomicInteger(nSubscribers);
+            this.callback = callback;
+        }
+        private void completed(boolean success) {
+            long nanos = System.nanoTime();
+            if (success) {
+                delivered.getAndIncrement();
+            }
+            firstCompletionNanos.compareAndSet(0, nanos);
+            if (remaining.decrementAndGet() == 0) {
+                callback.onComplete(delivered.get(), nanos - firstCompletionNanos.get());
+            }
+        }
+    }
+}
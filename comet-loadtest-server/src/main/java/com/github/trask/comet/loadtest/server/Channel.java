@@ -0,0 +1,102 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.comet.loadtest.server;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The comet connections parked on a channel, plus the bounded backlog of messages for that
+ * channel that are waiting for one of them to (re-)park.
+ *
+ * @author Trask Stalnaker
+ */
+class Channel<T> {
+
+    private final CometPool<T> pool;
+    private final RingBuffer<QueuedMessage> backlog;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final AtomicBoolean expiryScheduled = new AtomicBoolean();
+    // bumped by each comet connection that subscribes, so that an idle client mailbox can tell
+    // whether it has been used since it was last checked
+    private final AtomicLong subscriptionCount = new AtomicLong();
+
+    Channel(CometPool<T> pool, int backlogCapacity) {
+        this.pool = pool;
+        backlog = new RingBuffer<QueuedMessage>(backlogCapacity);
+    }
+
+    CometPool<T> getPool() {
+        return pool;
+    }
+
+    // returns false if the backlog is full
+    boolean offer(QueuedMessage queuedMessage) {
+        return backlog.offer(queuedMessage);
+    }
+
+    // returns null if there are no queued messages
+    QueuedMessage poll() {
+        return backlog.poll();
+    }
+
+    // returns null if the next queued message (if any) has not been cancelled, leaving it queued
+    QueuedMessage pollCancelled() {
+        QueuedMessage queuedMessage = backlog.peek();
+        if (queuedMessage != null && queuedMessage.isCancelled()
+                && backlog.pollIfNext(queuedMessage)) {
+            return queuedMessage;
+        }
+        return null;
+    }
+
+    boolean hasQueuedMessages() {
+        return !backlog.isEmpty();
+    }
+
+    // approximate
+    int queuedMessageCount() {
+        return backlog.size();
+    }
+
+    // returns false if a flush is already scheduled
+    boolean markFlushScheduled() {
+        return flushScheduled.compareAndSet(false, true);
+    }
+
+    void clearFlushScheduled() {
+        flushScheduled.set(false);
+    }
+
+    // returns false if the (client mailbox's) expiry is already scheduled, it stays scheduled
+    // for as long as the mailbox is registered
+    boolean markExpiryScheduled() {
+        return expiryScheduled.compareAndSet(false, true);
+    }
+
+    void subscribed() {
+        subscriptionCount.getAndIncrement();
+    }
+
+    long getSubscriptionCount() {
+        return subscriptionCount.get();
+    }
+
+    void clear() {
+        pool.clear();
+        backlog.clear();
+    }
+}
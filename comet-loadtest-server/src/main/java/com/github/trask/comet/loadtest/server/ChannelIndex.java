@@ -0,0 +1,164 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.comet.loadtest.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Index of parked comet connections by channel, sharded by channel hash.
+ *
+ * Each channel has its own pool (and message queue), so delivery to a channel, fan-out to a
+ * channel and the subscriber count of a channel only ever touch the connections parked on that
+ * channel.
+ *
+ * Channels are created on first use and are kept (even when empty) for the life of the
+ * index, which is fine for the bounded set of channel names used by a load test. The servlet
+ * only creates them for comet connections (a message to a channel that has never had a
+ * subscriber is turned away), so that the set of channels is bounded by what clients subscribe
+ * to rather than by whatever channel names messages are sent to.
+ *
+ * The servlet also uses an index as its client registry, with a channel per client id (the
+ * client's mailbox) and a single stripe per pool, since there are many clients each with a
+ * single comet connection. Unlike channels, mailboxes are removed again once they are idle.
+ *
+ * @author Trask Stalnaker
+ */
+class ChannelIndex<T> {
+
+    // channels are typically much smaller than the default pool, so use fewer stripes per channel
+    private static final int CHANNEL_POOL_SHARDS = 4;
+
+    private final ConcurrentMap<String, Channel<T>>[] shards;
+    private final int mask;
+    private final int poolShards;
+    // shared by the pools of all of the channels
+    private final AtomicInteger totalSubscriberCount = new AtomicInteger();
+
+    // only applies to channels created afterwards
+    private volatile int backlogCapacity;
+
+    ChannelIndex(int minShards, int backlogCapacity) {
+        this(minShards, backlogCapacity, CHANNEL_POOL_SHARDS);
+    }
+
+    @SuppressWarnings("unchecked")
+    ChannelIndex(int minShards, int backlogCapacity, int poolShards) {
+        int nShards = 1;
+        while (nShards < minShards) {
+            nShards <<= 1;
+        }
+        shards = new ConcurrentMap[nShards];
+        for (int i = 0; i < nShards; i++) {
+            shards[i] = new ConcurrentHashMap<String, Channel<T>>();
+        }
+        mask = nShards - 1;
+        this.poolShards = poolShards;
+        this.backlogCapacity = backlogCapacity;
+    }
+
+    // returns null if the channel has never been used
+    Channel<T> get(String channel) {
+        return shardFor(channel).get(channel);
+    }
+
+    Channel<T> getOrCreate(String channel) {
+        ConcurrentMap<String, Channel<T>> shard = shardFor(channel);
+        Channel<T> channelState = shard.get(channel);
+        if (channelState == null) {
+            channelState = new Channel<T>(
+                    new CometPool<T>(poolShards, totalSubscriberCount), backlogCapacity);
+            Channel<T> existingChannelState = shard.putIfAbsent(channel, channelState);
+            if (existingChannelState != null) {
+                channelState = existingChannelState;
+            }
+        }
+        return channelState;
+    }
+
+    // returns false if the channel has already been removed (or replaced)
+    boolean remove(String channel, Channel<T> channelState) {
+        return shardFor(channel).remove(channel, channelState);
+    }
+
+    // puts back a channel that was removed, unless it has been replaced since
+    void restore(String channel, Channel<T> channelState) {
+        shardFor(channel).putIfAbsent(channel, channelState);
+    }
+
+    int subscriberCount(String channel) {
+        Channel<T> channelState = get(channel);
+        return channelState == null ? 0 : channelState.getPool().size();
+    }
+
+    // O(shards)
+    int size() {
+        int size = 0;
+        for (ConcurrentMap<String, Channel<T>> shard : shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    // O(channels), this is not for the hot path
+    int totalQueuedMessageCount() {
+        int count = 0;
+        for (ConcurrentMap<String, Channel<T>> shard : shards) {
+            for (Channel<T> channelState : shard.values()) {
+                count += channelState.queuedMessageCount();
+            }
+        }
+        return count;
+    }
+
+    // polls (at most) the values that are parked at the time of the call, from every channel
+    List<T> drain() {
+        List<T> values = new ArrayList<T>();
+        for (ConcurrentMap<String, Channel<T>> shard : shards) {
+            for (Channel<T> channelState : shard.values()) {
+                values.addAll(channelState.getPool().drain());
+            }
+        }
+        return values;
+    }
+
+    void setBacklogCapacity(int backlogCapacity) {
+        this.backlogCapacity = backlogCapacity;
+    }
+
+    int totalSubscriberCount() {
+        return totalSubscriberCount.get();
+    }
+
+    void clear() {
+        for (ConcurrentMap<String, Channel<T>> shard : shards) {
+            for (Channel<T> channelState : shard.values()) {
+                channelState.clear();
+            }
+            shard.clear();
+        }
+    }
+
+    private ConcurrentMap<String, Channel<T>> shardFor(String channel) {
+        int hash = channel.hashCode();
+        // fold in the high bits since only the low bits are used to pick the shard
+        hash ^= (hash >>> 16);
+        return shards[hash & mask];
+    }
+}
@@ -0,0 +1,199 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.comet.loadtest.server;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of parked comet connections, striped into shards so that request threads don't all
+ * contend on the head and tail of a single queue.
+ *
+ * Each thread parks into (and polls from) the shard that its thread id hashes to, and steals from
+ * the other shards when its own shard is empty.
+ *
+ * Removal (e.g. on timeout) is O(1): the entry is claimed in place and is physically unlinked
+ * later, either when a poll() walks over it or when a shard accumulates enough removed entries
+ * to be worth purging.
+ *
+ * The number of parked values can also be kept in a counter that is shared by several pools, so
+ * that a total across many pools (e.g. one per channel) is O(1) to read.
+ *
+ * @author Trask Stalnaker
+ */
+class CometPool<T> {
+
+    private static final int MIN_PURGE_THRESHOLD = 64;
+
+    private final Shard<T>[] shards;
+    private final int mask;
+
+    CometPool() {
+        this(Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    CometPool(int minShards) {
+        this(minShards, new AtomicInteger());
+    }
+
+    // totalSize is incremented and decremented along with this pool's size
+    @SuppressWarnings("unchecked")
+    CometPool(int minShards, AtomicInteger totalSize) {
+        int nShards = 1;
+        while (nShards < minShards) {
+            nShards <<= 1;
+        }
+        shards = new Shard[nShards];
+        for (int i = 0; i < nShards; i++) {
+            shards[i] = new Shard<T>(totalSize);
+        }
+        mask = nShards - 1;
+    }
+
+    Entry<T> park(T value) {
+        Shard<T> shard = shards[localShardIndex()];
+        Entry<T> entry = new Entry<T>(value, shard);
+        shard.size.getAndIncrement();
+        shard.totalSize.getAndIncrement();
+        shard.queue.add(entry);
+        return entry;
+    }
+
+    // returns null if there are no parked values
+    T poll() {
+        int start = localShardIndex();
+        for (int i = 0; i <= mask; i++) {
+            T value = shards[(start + i) & mask].poll();
+            if (value != null) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    // polls (at most) the values that are parked at the time of the call, so that connections
+    // which are re-parked concurrently don't keep the caller looping
+    List<T> drain() {
+        List<T> values = new ArrayList<T>(size());
+        for (Shard<T> shard : shards) {
+            int max = shard.size.get();
+            T value;
+            for (int i = 0; i < max && (value = shard.poll()) != null; i++) {
+                values.add(value);
+            }
+        }
+        return values;
+    }
+
+    // returns false if the entry has already been polled or removed
+    boolean remove(Entry<T> entry) {
+        if (!entry.claim()) {
+            return false;
+        }
+        Shard<T> shard = entry.shard;
+        shard.size.getAndDecrement();
+        shard.totalSize.getAndDecrement();
+        int removed = shard.removed.incrementAndGet();
+        if (removed > Math.max(MIN_PURGE_THRESHOLD, shard.size.get())) {
+            shard.purge();
+        }
+        return true;
+    }
+
+    int size() {
+        int size = 0;
+        for (Shard<T> shard : shards) {
+            size += shard.size.get();
+        }
+        return size;
+    }
+
+    void clear() {
+        for (Shard<T> shard : shards) {
+            shard.queue.clear();
+            shard.totalSize.getAndAdd(-shard.size.getAndSet(0));
+            shard.removed.set(0);
+        }
+    }
+
+    private int localShardIndex() {
+        long threadId = Thread.currentThread().getId();
+        // spread sequential thread ids (fibonacci hashing)
+        return (int) ((threadId * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+    }
+
+    static class Entry<T> {
+        private final T value;
+        private final Shard<T> shard;
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private Entry(T value, Shard<T> shard) {
+            this.value = value;
+            this.shard = shard;
+        }
+        private boolean claim() {
+            return !claimed.get() && claimed.compareAndSet(false, true);
+        }
+    }
+
+    private static class Shard<T> {
+        private final Queue<Entry<T>> queue = new ConcurrentLinkedQueue<Entry<T>>();
+        // number of live (unclaimed) entries
+        private final AtomicInteger size = new AtomicInteger();
+        private final AtomicInteger totalSize;
+        // number of claimed entries that are still physically linked in the queue
+        private final AtomicInteger removed = new AtomicInteger();
+        private final AtomicBoolean purging = new AtomicBoolean();
+        private Shard(AtomicInteger totalSize) {
+            this.totalSize = totalSize;
+        }
+        private T poll() {
+            Entry<T> entry;
+            while ((entry = queue.poll()) != null) {
+                if (entry.claim()) {
+                    size.getAndDecrement();
+                    totalSize.getAndDecrement();
+                    return entry.value;
+                }
+                removed.getAndDecrement();
+            }
+            return null;
+        }
+        private void purge() {
+            if (!purging.compareAndSet(false, true)) {
+                // another thread is already purging this shard
+                return;
+            }
+            try {
+                Iterator<Entry<T>> i = queue.iterator();
+                while (i.hasNext()) {
+                    if (i.next().claimed.get()) {
+                        i.remove();
+                    }
+                }
+                // this is only a heuristic for when to purge, so it doesn't matter much if a
+                // concurrent poll() also accounted for one of the entries unlinked above
+                removed.set(0);
+            } finally {
+                purging.set(false);
+            }
+        }
+    }
+}
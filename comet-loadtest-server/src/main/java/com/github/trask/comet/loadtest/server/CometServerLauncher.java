@@ -0,0 +1,169 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.comet.loadtest.server;
+
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.ExecutorThreadPool;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import org.eclipse.jetty.webapp.WebAppContext;
+import org.eclipse.jetty.webapp.WebXmlConfiguration;
+
+/**
+ * Runs the comet server in an embedded jetty, with the connector and thread pool configured by
+ * LauncherOptions, for the load test harness and for running a server on its own.
+ *
+ * The servlet is initialized as part of start(), rather than lazily by the first request, so
+ * once start() returns (and main() prints its ready line) the server is ready for load.
+ *
+ * @author Trask Stalnaker
+ */
+public class CometServerLauncher {
+
+    // the same as jetty's QueuedThreadPool, for the SYNCHRONOUS queue type
+    private static final int DEFAULT_MIN_THREADS = 8;
+    private static final int DEFAULT_MAX_THREADS = 254;
+    private static final int THREAD_MAX_IDLE_MILLIS = 60000;
+
+    private final int port;
+    private final LauncherOptions options;
+    private Server server;
+    private volatile long startupMillis = -1;
+
+    public CometServerLauncher(int port) {
+        this(port, new LauncherOptions());
+    }
+
+    public CometServerLauncher(int port, LauncherOptions options) {
+        this.port = port;
+        this.options = options;
+    }
+
+    public void start() throws Exception {
+        long startMillis = System.currentTimeMillis();
+        server = new Server();
+        server.setThreadPool(createThreadPool());
+        server.addConnector(createConnector());
+        WebAppContext webAppContext = new WebAppContext();
+        webAppContext.setContextPath("/");
+        webAppContext.setResourceBase(options.getWebappDir());
+        // the webapp is just the servlet (no static content, jsps, jars or fragments), so only
+        // its web.xml is processed, which takes about a third off the startup time
+        webAppContext.setConfigurationClasses(new String[] { WebXmlConfiguration.class.getName() });
+        webAppContext.setDefaultsDescriptor(null);
+        server.setHandler(webAppContext);
+        server.setStopAtShutdown(true);
+        server.start();
+        initServlets(webAppContext);
+        startupMillis = System.currentTimeMillis() - startMillis;
+    }
+
+    public void stop() throws Exception {
+        server.stop();
+    }
+
+    public int getServletPort() {
+        return port;
+    }
+
+    // from the start of start() until the server is ready, -1 if not started
+    public long getStartupMillis() {
+        return startupMillis;
+    }
+
+    private SelectChannelConnector createConnector() {
+        SelectChannelConnector connector = new SelectChannelConnector();
+        connector.setPort(port);
+        if (options.getAcceptors() != 0) {
+            connector.setAcceptors(options.getAcceptors());
+        }
+        if (options.getAcceptQueueSize() != 0) {
+            connector.setAcceptQueueSize(options.getAcceptQueueSize());
+        }
+        if (options.getMaxIdleTimeMillis() != 0) {
+            connector.setMaxIdleTime(options.getMaxIdleTimeMillis());
+        }
+        if (options.getLowResourcesConnections() != 0) {
+            connector.setLowResourcesConnections(options.getLowResourcesConnections());
+        }
+        if (options.getLowResourcesMaxIdleTimeMillis() != 0) {
+            connector.setLowResourcesMaxIdleTime(options.getLowResourcesMaxIdleTimeMillis());
+        }
+        if (options.getRequestHeaderSize() != 0) {
+            connector.setRequestHeaderSize(options.getRequestHeaderSize());
+        }
+        if (options.getRequestBufferSize() != 0) {
+            connector.setRequestBufferSize(options.getRequestBufferSize());
+        }
+        if (options.getResponseHeaderSize() != 0) {
+            connector.setResponseHeaderSize(options.getResponseHeaderSize());
+        }
+        if (options.getResponseBufferSize() != 0) {
+            connector.setResponseBufferSize(options.getResponseBufferSize());
+        }
+        return connector;
+    }
+
+    private ThreadPool createThreadPool() {
+        int minThreads = options.getMinThreads() == 0 ? DEFAULT_MIN_THREADS
+                : options.getMinThreads();
+        int maxThreads = options.getMaxThreads() == 0 ? DEFAULT_MAX_THREADS
+                : options.getMaxThreads();
+        if (options.getQueueType() == LauncherOptions.QueueType.SYNCHRONOUS) {
+            return new ExecutorThreadPool(new ThreadPoolExecutor(minThreads, maxThreads,
+                    THREAD_MAX_IDLE_MILLIS, TimeUnit.MILLISECONDS,
+                    new SynchronousQueue<Runnable>()));
+        }
+        QueuedThreadPool threadPool = new QueuedThreadPool();
+        threadPool.setMinThreads(minThreads);
+        threadPool.setMaxThreads(maxThreads);
+        if (options.getQueueType() == LauncherOptions.QueueType.BOUNDED) {
+            if (options.getMaxQueued() <= 0) {
+                throw new IllegalArgumentException("A bounded queue needs maxQueued");
+            }
+            threadPool.setMaxQueued(options.getMaxQueued());
+        }
+        return threadPool;
+    }
+
+    private static void initServlets(WebAppContext webAppContext) throws ServletException {
+        for (ServletHolder servletHolder : webAppContext.getServletHandler().getServlets()) {
+            servletHolder.getServlet();
+        }
+    }
+
+    // runs a server on its own, e.g. as one of the nodes of ClusterBenchmark, the launcher
+    // options can be set with cometServerLauncher.<name> system properties (see LauncherOptions)
+    // and the servlet's init-params can be overridden with cometServlet.<param-name> system
+    // properties, prints a ready line once the server is ready
+    public static void main(String... args) throws Exception {
+        LauncherOptions options = LauncherOptions.fromSystemProperties();
+        CometServerLauncher launcher =
+                new CometServerLauncher(Integer.parseInt(args[0]), options);
+        launcher.start();
+        System.out.println("ready on port " + launcher.port + " (" + options + ") in "
+                + launcher.startupMillis + " milliseconds");
+        launcher.server.join();
+    }
+}
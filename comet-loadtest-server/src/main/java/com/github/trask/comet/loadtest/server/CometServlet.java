@@ -15,45 +15,257 @@
  */
 package com.github.trask.comet.loadtest.server;
 
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ConcurrentMap;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.AsyncContext;
 import javax.servlet.AsyncEvent;
 import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
-import javax.servlet.http.HttpServlet;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.eclipse.jetty.websocket.WebSocket;
+import org.eclipse.jetty.websocket.WebSocketServlet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.github.trask.comet.loadtest.server.Broadcaster.BroadcastCallback;
+
 /**
  * @author Trask Stalnaker
  */
 @SuppressWarnings("serial")
-public class CometServlet extends HttpServlet {
+public class CometServlet extends WebSocketServlet {
+
+    private static final int DEFAULT_COMET_TIMEOUT_MILLIS = (int) TimeUnit.SECONDS.toMillis(300);
+    private static final int DEFAULT_COMET_TIMEOUT_JITTER_MILLIS =
+            (int) TimeUnit.SECONDS.toMillis(30);
+    private static final int DEFAULT_MESSAGE_TIMEOUT_MILLIS = (int) TimeUnit.SECONDS.toMillis(30);
+    private static final int DEFAULT_MESSAGE_TIMEOUT_JITTER_MILLIS = 0;
+    private static final boolean DEFAULT_COALESCE = false;
+    private static final int DEFAULT_COALESCE_MAX_BATCH = 32;
+    private static final int DEFAULT_COALESCE_LINGER_MILLIS = 0;
+    private static final int DEFAULT_BACKLOG_CAPACITY = 1024;
+    private static final int DEFAULT_RETRY_AFTER_SECONDS = 1;
+    private static final int DEFAULT_RETRY_WINDOW_MILLIS = (int) TimeUnit.SECONDS.toMillis(5);
+    private static final int DEFAULT_SSE_REPLAY_WINDOW = 64;
+    private static final int DEFAULT_SSE_SESSION_RETENTION_MILLIS =
+            (int) TimeUnit.SECONDS.toMillis(60);
+
+    private static final int DEFAULT_DELIVERY_THREADS = 2;
+    private static final int DEFAULT_DELIVERY_MAX_BATCH = 64;
+    private static final int DEFAULT_MESSAGE_LOG_SEGMENT_BYTES = 64 * 1024 * 1024;
+    private static final int DEFAULT_MESSAGE_LOG_RETENTION_MEGABYTES = 1024;
+    private static final int DEFAULT_MESSAGE_LOG_RETENTION_MILLIS =
+            (int) TimeUnit.HOURS.toMillis(1);
+    private static final int DEFAULT_MESSAGE_LOG_MAX_REPLAY = 1024;
+    private static final int DEFAULT_MAILBOX_CAPACITY = 8;
+    private static final int DEFAULT_MAILBOX_RETENTION_MILLIS = (int) TimeUnit.SECONDS.toMillis(60);
+    // zero is no limit, the operating system's file descriptor limit is the usual one
+    private static final int DEFAULT_MAX_PARKED_CONNECTIONS = 0;
+    private static final int DEFAULT_MAX_IN_FLIGHT_MESSAGES = 100000;
+    private static final int DEFAULT_MAX_DELIVERY_LATENCY_MILLIS =
+            (int) TimeUnit.SECONDS.toMillis(5);
+    private static final int DEFAULT_MIN_HEAP_HEADROOM_PERCENT = 5;
+    private static final int DEFAULT_COMPRESSION_LEVEL = 6;
+    // the timing wheel owns expiry, the container's async timeout is only a backstop
+    private static final int CONTAINER_TIMEOUT_MARGIN_MILLIS = (int) TimeUnit.SECONDS.toMillis(60);
 
-    private static final int COMET_ASYNC_TIMEOUT = (int) TimeUnit.SECONDS.toMillis(300);
-    private static final int MESSAGE_ASYNC_TIMEOUT = (int) TimeUnit.SECONDS.toMillis(30);
+    private static final int TIMING_WHEEL_TICK_MILLIS = 100;
+    private static final int TIMING_WHEEL_BUCKETS = 512;
+    // keep one minute of expirations per tick
+    private static final int TIMING_WHEEL_HISTORY_TICKS = 600;
+    // threads that run expired timeouts (which write to the response) off the wheel thread
+    private static final int TIMING_WHEEL_EXPIRY_THREADS = 2;
 
-    private static final String MESSAGE_ID = "MESSAGE_ID";
+    // upper bound on message requests waiting for their pingback
+    private static final int MAX_PENDING_MESSAGES = 1 << 18;
+    // upper bound on event stream sessions that can be resumed
+    private static final int MAX_SSE_SESSIONS = 1 << 18;
+
+    // the low bits of a message id, below the node id
+    private static final long MESSAGE_SEQ_MASK = (1L << MessageBroker.NODE_ID_SHIFT) - 1;
+
+    private static final String BROADCAST_PREFIX = "BROADCAST:";
+    // "RETRY:minMillis:maxMillis", tells a long-poll client to reconnect after a random delay
+    // within the window
+    private static final String RETRY_PREFIX = "RETRY:";
+    // client mailboxes are logged under the client id with this prefix, which keeps them apart
+    // from the channel names used by the load test
+    private static final String CLIENT_LOG_PREFIX = "\u0000";
 
     private static final Logger logger = LoggerFactory.getLogger(CometServlet.class);
 
-    private static final Queue<AsyncContext> cometAsyncContexts =
-            new ConcurrentLinkedQueue<AsyncContext>();
-    private static final ConcurrentMap<Long, AsyncContext> messageAsyncContexts =
-            new ConcurrentHashMap<Long, AsyncContext>();
-    private static final AtomicLong nextMessageId = new AtomicLong();
-    private static final CometAsyncListener cometAsyncListener = new CometAsyncListener();
-    private static final MessageAsyncListener messageAsyncListener = new MessageAsyncListener();
+    private static final ChannelIndex<ParkedSubscriber> channels =
+            new ChannelIndex<ParkedSubscriber>(Runtime.getRuntime().availableProcessors() * 2,
+                    DEFAULT_BACKLOG_CAPACITY);
+    // the client registry, a mailbox per client id, each with a single stripe since a client has
+    // a single comet connection
+    private static final ChannelIndex<ParkedSubscriber> clients =
+            new ChannelIndex<ParkedSubscriber>(Runtime.getRuntime().availableProcessors() * 2,
+                    DEFAULT_MAILBOX_CAPACITY, 1);
+    private static final LongConcurrentMap<PendingMessage> pendingMessages =
+            new LongConcurrentMap<PendingMessage>(MAX_PENDING_MESSAGES);
+    private static final MessageIdGenerator messageIdGenerator = new MessageIdGenerator();
+    private static final TimingWheel timingWheel = new TimingWheel(TIMING_WHEEL_TICK_MILLIS,
+            TIMING_WHEEL_BUCKETS, TIMING_WHEEL_HISTORY_TICKS, TIMING_WHEEL_EXPIRY_THREADS);
+    private static final Broadcaster broadcaster =
+            new Broadcaster(Runtime.getRuntime().availableProcessors());
+    // linger flushes and deferred stream parking
+    private static final ScheduledExecutorService scheduledExecutor =
+            Executors.newSingleThreadScheduledExecutor(
+                    new DaemonThreadFactory("CometServer-Scheduled-"));
+    private static final BacklogStats backlogStats = new BacklogStats();
+    private static final MessageStats messageStats = new MessageStats();
+    private static final LongConcurrentMap<SseSession<EventStream>> sseSessions =
+            new LongConcurrentMap<SseSession<EventStream>>(MAX_SSE_SESSIONS);
+    private static final MessageIdGenerator sseSessionIdGenerator = new MessageIdGenerator();
+    private static final SseStats sseStats = new SseStats();
+
+    private static final ThreadLocal<Random> jitterRandom = new ThreadLocal<Random>() {
+        @Override
+        protected Random initialValue() {
+            return new Random();
+        }
+    };
+
+    private static volatile int cometTimeoutMillis = DEFAULT_COMET_TIMEOUT_MILLIS;
+    private static volatile int cometTimeoutJitterMillis = DEFAULT_COMET_TIMEOUT_JITTER_MILLIS;
+    private static volatile int messageTimeoutMillis = DEFAULT_MESSAGE_TIMEOUT_MILLIS;
+    private static volatile int messageTimeoutJitterMillis = DEFAULT_MESSAGE_TIMEOUT_JITTER_MILLIS;
+    private static volatile boolean coalesce = DEFAULT_COALESCE;
+    private static volatile int coalesceMaxBatch = DEFAULT_COALESCE_MAX_BATCH;
+    private static volatile int coalesceLingerMillis = DEFAULT_COALESCE_LINGER_MILLIS;
+    private static volatile int backlogCapacity = DEFAULT_BACKLOG_CAPACITY;
+    private static volatile int mailboxCapacity = DEFAULT_MAILBOX_CAPACITY;
+    private static volatile int mailboxRetentionMillis = DEFAULT_MAILBOX_RETENTION_MILLIS;
+    private static volatile int retryAfterSeconds = DEFAULT_RETRY_AFTER_SECONDS;
+    private static volatile int retryWindowMillis = DEFAULT_RETRY_WINDOW_MILLIS;
+    // set by /drain, long-poll comet connections are turned away with a RETRY from then on
+    private static volatile boolean draining;
+    private static volatile int sseReplayWindow = DEFAULT_SSE_REPLAY_WINDOW;
+    private static volatile int sseSessionRetentionMillis = DEFAULT_SSE_SESSION_RETENTION_MILLIS;
+    // the event trace is written here on shutdown, if set
+    private static volatile String traceFile;
+    private static volatile int messageLogMaxReplay = DEFAULT_MESSAGE_LOG_MAX_REPLAY;
+    // null unless messageLogDir is configured, in which case it also hands out the message ids
+    private static volatile MessageLog messageLog;
+    // replaced in init(), admits everything until then
+    private static volatile AdmissionController admissionController =
+            new AdmissionController(0, 0, 0, 0);
+    // replaced in init(), since the dictionary and level are configurable
+    private static volatile PayloadCompressor compressor = new PayloadCompressor(
+            PayloadCompressor.defaultDictionary(), DEFAULT_COMPRESSION_LEVEL);
+    // replaced in init(), delivers on the calling thread until then
+    private static volatile DeliveryExecutor deliveryExecutor = new DeliveryExecutor(0, 1);
+    // replaced in init() when other nodes are configured
+    private static volatile MessageBroker broker = new LocalMessageBroker(0);
+
+    // comet connections (and queued messages) that didn't ask for a channel, created in init()
+    // since the backlog capacity is configurable
+    private static volatile Channel<ParkedSubscriber> defaultChannel;
+
+    @Override
+    public void init() throws ServletException {
+        super.init();
+        cometTimeoutMillis = getIntInitParameter("cometTimeoutMillis",
+                DEFAULT_COMET_TIMEOUT_MILLIS);
+        cometTimeoutJitterMillis = getIntInitParameter("cometTimeoutJitterMillis",
+                DEFAULT_COMET_TIMEOUT_JITTER_MILLIS);
+        messageTimeoutMillis = getIntInitParameter("messageTimeoutMillis",
+                DEFAULT_MESSAGE_TIMEOUT_MILLIS);
+        messageTimeoutJitterMillis = getIntInitParameter("messageTimeoutJitterMillis",
+                DEFAULT_MESSAGE_TIMEOUT_JITTER_MILLIS);
+        coalesce = getBooleanInitParameter("coalesce", DEFAULT_COALESCE);
+        coalesceMaxBatch = getIntInitParameter("coalesceMaxBatch", DEFAULT_COALESCE_MAX_BATCH);
+        coalesceLingerMillis = getIntInitParameter("coalesceLingerMillis",
+                DEFAULT_COALESCE_LINGER_MILLIS);
+        backlogCapacity = getIntInitParameter("backlogCapacity", DEFAULT_BACKLOG_CAPACITY);
+        mailboxCapacity = getIntInitParameter("mailboxCapacity", DEFAULT_MAILBOX_CAPACITY);
+        mailboxRetentionMillis = getIntInitParameter("mailboxRetentionMillis",
+                DEFAULT_MAILBOX_RETENTION_MILLIS);
+        retryAfterSeconds = getIntInitParameter("retryAfterSeconds", DEFAULT_RETRY_AFTER_SECONDS);
+        retryWindowMillis = getIntInitParameter("retryWindowMillis", DEFAULT_RETRY_WINDOW_MILLIS);
+        sseReplayWindow = getIntInitParameter("sseReplayWindow", DEFAULT_SSE_REPLAY_WINDOW);
+        sseSessionRetentionMillis = getIntInitParameter("sseSessionRetentionMillis",
+                DEFAULT_SSE_SESSION_RETENTION_MILLIS);
+        traceFile = getInitParameterOrSystemProperty("traceFile");
+        admissionController = new AdmissionController(
+                getIntInitParameter("maxParkedConnections", DEFAULT_MAX_PARKED_CONNECTIONS),
+                getIntInitParameter("maxInFlightMessages", DEFAULT_MAX_IN_FLIGHT_MESSAGES),
+                getIntInitParameter("maxDeliveryLatencyMillis",
+                        DEFAULT_MAX_DELIVERY_LATENCY_MILLIS),
+                getIntInitParameter("minHeapHeadroomPercent", DEFAULT_MIN_HEAP_HEADROOM_PERCENT));
+        deliveryExecutor = new DeliveryExecutor(
+                getIntInitParameter("deliveryThreads", DEFAULT_DELIVERY_THREADS),
+                getIntInitParameter("deliveryMaxBatch", DEFAULT_DELIVERY_MAX_BATCH));
+        messageLogMaxReplay = getIntInitParameter("messageLogMaxReplay",
+                DEFAULT_MESSAGE_LOG_MAX_REPLAY);
+        String compressionDictionaryFile =
+                getInitParameterOrSystemProperty("compressionDictionaryFile");
+        byte[] compressionDictionary;
+        if (compressionDictionaryFile == null || compressionDictionaryFile.length() == 0) {
+            compressionDictionary = PayloadCompressor.defaultDictionary();
+        } else {
+            try {
+                compressionDictionary =
+                        PayloadCompressor.readDictionary(new File(compressionDictionaryFile));
+            } catch (IOException e) {
+                throw new ServletException(e);
+            }
+        }
+        compressor = new PayloadCompressor(compressionDictionary,
+                getIntInitParameter("compressionLevel", DEFAULT_COMPRESSION_LEVEL));
+        String messageLogDir = getInitParameterOrSystemProperty("messageLogDir");
+        if (messageLogDir != null && messageLogDir.length() > 0) {
+            try {
+                messageLog = new MessageLog(new File(messageLogDir),
+                        getIntInitParameter("messageLogSegmentBytes",
+                                DEFAULT_MESSAGE_LOG_SEGMENT_BYTES),
+                        getIntInitParameter("messageLogRetentionMegabytes",
+                                DEFAULT_MESSAGE_LOG_RETENTION_MEGABYTES) * 1024L * 1024L,
+                        getIntInitParameter("messageLogRetentionMillis",
+                                DEFAULT_MESSAGE_LOG_RETENTION_MILLIS));
+            } catch (IOException e) {
+                throw new ServletException(e);
+            }
+        }
+        defaultChannel = new Channel<ParkedSubscriber>(new CometPool<ParkedSubscriber>(),
+                backlogCapacity);
+        channels.setBacklogCapacity(backlogCapacity);
+        clients.setBacklogCapacity(mailboxCapacity);
+        int brokerNodeId = getIntInitParameter("brokerNodeId", 0);
+        int brokerPort = getIntInitParameter("brokerPort", 0);
+        if (brokerPort == 0) {
+            broker = new LocalMessageBroker(brokerNodeId);
+        } else {
+            String brokerPeers = getInitParameterOrSystemProperty("brokerPeers");
+            broker = new TcpMessageBroker(brokerNodeId, brokerPort,
+                    TcpMessageBroker.parsePeerAddresses(brokerPeers == null ? "" : brokerPeers));
+        }
+        try {
+            broker.start(new BrokerListener());
+        } catch (IOException e) {
+            throw new ServletException(e);
+        }
+    }
 
     @Override
     protected void doGet(HttpServletRequest request, HttpServletResponse response)
@@ -61,11 +273,39 @@ public class CometServlet extends HttpServlet {
 
         logger.debug("doGet(): request.pathInfo={}", request.getPathInfo());
         if (request.getPathInfo().equals("/comet")) {
-            doComet(request);
+            doComet(request, response);
+        } else if (request.getPathInfo().equals("/stream")) {
+            doStream(request, response);
+        } else if (request.getPathInfo().equals("/events")) {
+            doEvents(request, response);
+        } else if (request.getPathInfo().equals("/pingback")) {
+            doPingback(request);
         } else if (request.getPathInfo().equals("/message")) {
             doMessage(request, response);
+        } else if (request.getPathInfo().equals("/broadcast")) {
+            doBroadcast(request);
         } else if (request.getPathInfo().equals("/count")) {
-            response.getWriter().print(cometAsyncContexts.size());
+            doCount(request, response);
+        } else if (request.getPathInfo().equals("/timeouts")) {
+            doTimeouts(response);
+        } else if (request.getPathInfo().equals("/backlog")) {
+            doBacklog(response);
+        } else if (request.getPathInfo().equals("/sse")) {
+            doSse(response);
+        } else if (request.getPathInfo().equals("/cpu")) {
+            doCpu(response);
+        } else if (request.getPathInfo().equals("/heap")) {
+            doHeap(response);
+        } else if (request.getPathInfo().equals("/stats")) {
+            doStats(response);
+        } else if (request.getPathInfo().equals("/trace")) {
+            doTrace(response);
+        } else if (request.getPathInfo().equals("/log")) {
+            doMessageLog(response);
+        } else if (request.getPathInfo().equals("/drain")) {
+            doDrain(response);
+        } else if (request.getPathInfo().equals("/dictionary")) {
+            doDictionary(response);
         } else {
             logger.error("doGet(): unexpected path info {}", request.getPathInfo());
             response.sendError(HttpServletResponse.SC_NOT_FOUND);
@@ -77,76 +317,970 @@ public class CometServlet extends HttpServlet {
     // of this benchmark, so leaving out guice and using statics
     @Override
     public void destroy() {
-        cometAsyncContexts.clear();
-        messageAsyncContexts.clear();
-        nextMessageId.set(0);
+        if (traceFile != null && traceFile.length() > 0) {
+            dumpTrace(traceFile);
+        }
+        broker.stop();
+        deliveryExecutor.shutdown();
+        if (messageLog != null) {
+            messageLog.close();
+            messageLog = null;
+        }
+        defaultChannel.clear();
+        channels.clear();
+        clients.clear();
+        draining = false;
+        // before the message ids are reset, so that a timeout left over from this servlet can't
+        // remove a later servlet's pending message with the same id
+        timingWheel.cancelAll();
+        pendingMessages.clear();
+        messageIdGenerator.reset();
+        backlogStats.reset();
+        messageStats.reset();
+        sseSessions.clear();
+        sseSessionIdGenerator.reset();
+        sseStats.reset();
     }
 
-    private void doComet(HttpServletRequest request) throws IOException {
+    // websocket upgrade requests, messages are written to the websocket as text frames and are
+    // pinged back over the same websocket
+    @Override
+    public WebSocket doWebSocketConnect(HttpServletRequest request, String protocol) {
+        logger.debug("doWebSocketConnect(): request.pathInfo={}", request.getPathInfo());
+        if (!request.getPathInfo().equals("/websocket")) {
+            logger.error("doWebSocketConnect(): unexpected path info {}", request.getPathInfo());
+            // the upgrade is refused
+            return null;
+        }
+        if (!admitComet()) {
+            // the upgrade is refused (with a 503)
+            return null;
+        }
+        return new WebSocketComet(getOrCreateSubscription(request));
+    }
+
+    private void doComet(HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+
         logger.debug("doComet()");
-        String pingback = request.getParameter("pingback");
-        if (pingback != null) {
-            doCometPingback(pingback);
+        // the pingbacks are acknowledged first so that they aren't replayed
+        doCometPingbacks(request);
+        boolean compress = acceptsCompression(request);
+        if (messageLog != null && replay(request, response, compress)) {
+            return;
         }
+        if (draining || !admitComet()) {
+            sendRetry(response);
+            return;
+        }
+        Channel<ParkedSubscriber> channel = getOrCreateSubscription(request);
         AsyncContext cometAsyncContext = request.startAsync();
-        cometAsyncContext.setTimeout(COMET_ASYNC_TIMEOUT);
-        cometAsyncContext.addListener(cometAsyncListener);
-        cometAsyncContexts.add(cometAsyncContext);
+        int timeoutMillis = jitter(cometTimeoutMillis, cometTimeoutJitterMillis);
+        cometAsyncContext.setTimeout(timeoutMillis + CONTAINER_TIMEOUT_MARGIN_MILLIS);
+        ParkedComet parkedComet = new ParkedComet(cometAsyncContext, channel.getPool(),
+                timeoutMillis, compress);
+        cometAsyncContext.addListener(parkedComet);
+        parkedComet.park();
+        // drain the backlog, checking after parking so that a message queued concurrently either
+        // sees this comet connection or is seen here
+        if (channel.hasQueuedMessages()) {
+            flush(channel);
+        }
+    }
+
+    // the response stays open and every message (or batch of messages when coalescing) is written
+    // to it as a length-delimited chunk, messages are acknowledged separately through /pingback
+    private void doStream(HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+
+        logger.debug("doStream()");
+        if (!admitComet()) {
+            sendServiceUnavailable(response);
+            return;
+        }
+        Channel<ParkedSubscriber> channel = getOrCreateSubscription(request);
+        AsyncContext streamAsyncContext = request.startAsync();
+        int timeoutMillis = jitter(cometTimeoutMillis, cometTimeoutJitterMillis);
+        streamAsyncContext.setTimeout(timeoutMillis + CONTAINER_TIMEOUT_MARGIN_MILLIS);
+        streamAsyncContext.getResponse().setContentType("application/octet-stream");
+        StreamingComet streamingComet =
+                new StreamingComet(streamAsyncContext, channel.getPool());
+        streamAsyncContext.addListener(streamingComet);
+        parkStream(streamingComet, channel, timeoutMillis);
+    }
+
+    // server-sent events, the same as doStream() apart from the framing, and that a client which
+    // reconnects with Last-Event-ID resumes its session and is sent the events it missed
+    private void doEvents(HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+
+        logger.debug("doEvents()");
+        if (!admitComet()) {
+            sendServiceUnavailable(response);
+            return;
+        }
+        sseStats.streamStarted();
+        Channel<ParkedSubscriber> channel = getOrCreateSubscription(request);
+        AsyncContext eventsAsyncContext = request.startAsync();
+        int timeoutMillis = jitter(cometTimeoutMillis, cometTimeoutJitterMillis);
+        eventsAsyncContext.setTimeout(timeoutMillis + CONTAINER_TIMEOUT_MARGIN_MILLIS);
+        response.setContentType("text/event-stream;charset=UTF-8");
+        String lastEventId = request.getHeader("Last-Event-ID");
+        SseSession<EventStream> session = null;
+        long lastSeq = 0;
+        if (lastEventId != null) {
+            // "sessionId.seq"
+            int index = lastEventId.indexOf('.');
+            try {
+                long sessionId = Long.parseLong(lastEventId.substring(0, index));
+                lastSeq = Long.parseLong(lastEventId.substring(index + 1));
+                session = sseSessions.get(sessionId);
+            } catch (NumberFormatException e) {
+                logger.warn("doEvents(): unexpected Last-Event-ID {}", lastEventId);
+            } catch (IndexOutOfBoundsException e) {
+                logger.warn("doEvents(): unexpected Last-Event-ID {}", lastEventId);
+            }
+            if (session == null) {
+                sseStats.unknownSession();
+                lastSeq = 0;
+            }
+        }
+        if (session == null) {
+            session = startSseSession();
+        }
+        EventStream eventStream =
+                new EventStream(eventsAsyncContext, channel.getPool(), session, lastSeq);
+        eventsAsyncContext.addListener(eventStream);
+        EventStream previousEventStream = session.supersede(eventStream);
+        if (previousEventStream != null && previousEventStream.entry != null
+                && previousEventStream.pool.remove(previousEventStream.entry)) {
+            // the client has already given up on it, so it is most likely half-open
+            previousEventStream.timeout.cancel();
+            previousEventStream.end();
+        }
+        if (lastSeq > 0) {
+            long toSeq = session.getLastSeq();
+            byte[] missedEvents = session.eventsBetween(lastSeq, toSeq);
+            long droppedEvents = session.missedSince(lastSeq);
+            sseStats.resumed((int) Math.max(0, toSeq - lastSeq - droppedEvents), droppedEvents);
+            if (missedEvents.length > 0) {
+                // written before the stream is parked, so nothing else can be writing to it yet
+                try {
+                    ServletOutputStream out = response.getOutputStream();
+                    out.write(missedEvents);
+                    out.flush();
+                } catch (IOException e) {
+                    // the client has gone away again, the session can still be resumed
+                    eventStream.end();
+                    throw e;
+                }
+                eventStream.lastWrittenSeq = toSeq;
+            }
+        }
+        parkStream(eventStream, channel, timeoutMillis);
     }
 
-    private void doCometPingback(String pingback) throws IOException {
+    // a reconnecting comet connection that sends the last message id it received is sent the
+    // messages after it that were written to a comet connection but never pinged back, straight
+    // away and without parking, returns false if there are none
+    // this is exact for a channel with a single comet connection, on a shared channel it can
+    // also include messages whose pingback is still on its way from another comet connection
+    private static boolean replay(HttpServletRequest request, HttpServletResponse response,
+            boolean compress) throws IOException {
+
+        String lastMessageIdText = request.getParameter("lastMessageId");
+        if (lastMessageIdText == null) {
+            return false;
+        }
+        long lastMessageId;
+        try {
+            lastMessageId = MessageCodec.parseMessageId(lastMessageIdText, 0,
+                    lastMessageIdText.length());
+        } catch (NumberFormatException e) {
+            logger.warn("replay(): unexpected lastMessageId {}", lastMessageIdText);
+            return false;
+        }
+        if (!isLoggedHere(lastMessageId)) {
+            // the messages after it were accepted by another node and are in that node's log
+            return false;
+        }
+        long messageIdBits = (long) broker.getNodeId() << MessageBroker.NODE_ID_SHIFT;
+        MessageCodec.Encoder body = MessageCodec.messageEncoder();
+        int replayed = messageLog.replay(
+                logChannel(request.getParameter("channel"), request.getParameter("client")),
+                lastMessageId & MESSAGE_SEQ_MASK, messageLogMaxReplay, messageIdBits, body);
+        if (replayed == 0) {
+            return false;
+        }
+        logger.debug("replay(): replaying {} messages", replayed);
+        if (compress) {
+            PayloadCompressor.Output output =
+                    compressor.compress(body.getBuffer(), body.getLength());
+            response.setContentLength(output.getLength());
+            response.getOutputStream().write(output.getBuffer(), 0, output.getLength());
+        } else {
+            response.setContentLength(body.getLength());
+            body.writeTo(response.getOutputStream());
+        }
+        return true;
+    }
+
+    // a long-poll comet connection asks for compressed message bodies by sending the id of the
+    // dictionary it has (from /dictionary), TIMEOUT and the like are never compressed
+    private static boolean acceptsCompression(HttpServletRequest request) {
+        String compression = request.getParameter("compression");
+        return compression != null
+                && compression.equals(Long.toString(compressor.getDictionaryId()));
+    }
+
+    private static void parkStream(StreamingComet stream, Channel<ParkedSubscriber> channel,
+            int timeoutMillis) {
+
+        // the stream is ended (and the client reconnects) once per comet timeout
+        stream.timeout = timingWheel.schedule(stream, timeoutMillis);
+        stream.park();
+        // the same as doComet()
+        if (channel.hasQueuedMessages()) {
+            flush(channel);
+        }
+    }
+
+    private static SseSession<EventStream> startSseSession() {
+        SseSession<EventStream> session = new SseSession<EventStream>(
+                sseSessionIdGenerator.next(), sseReplayWindow);
+        if (!sseSessions.put(session.getSessionId(), session)) {
+            // the event stream still works, the client just can't resume it
+            logger.error("startSseSession(): too many event stream sessions");
+        }
+        sseStats.sessionStarted();
+        return session;
+    }
+
+    private void doPingback(HttpServletRequest request) throws IOException {
+        logger.debug("doPingback()");
+        doCometPingbacks(request);
+    }
+
+    // a coalesced comet response is acknowledged with one pingback per message
+    private void doCometPingbacks(HttpServletRequest request) throws IOException {
+        String[] pingbacks = request.getParameterValues("pingback");
+        if (pingbacks != null) {
+            for (String pingback : pingbacks) {
+                doCometPingback(pingback);
+            }
+        }
+    }
+
+    private static void doCometPingback(String pingback) throws IOException {
         logger.debug("doCometPingback(): pingback={}", pingback);
-        String[] pingbackParts = pingback.split(":");
-        long messageId = Long.parseLong(pingbackParts[0]);
-        String clientMessage = pingbackParts[1];
-        logger.debug("doCometPingback(): messageId={}, clientMessage={}", messageId, clientMessage);
-        AsyncContext messageAsyncContext = messageAsyncContexts.remove(messageId);
-        if (messageAsyncContext == null) {
-            logger.warn("message async request timed out, cannot send response");
+        doCometPingback(pingback, 0, pingback.length());
+    }
+
+    // the pingback is pingback.substring(start, end), parsed in place
+    private static void doCometPingback(String pingback, int start, int end)
+            throws IOException {
+
+        int separatorIndex = MessageCodec.separatorIndex(pingback, start, end);
+        if (separatorIndex == -1) {
+            logger.error("doCometPingback(): invalid pingback {}", pingback);
+            return;
+        }
+        int messageIdEnd = MessageCodec.messageIdEnd(pingback, start, separatorIndex);
+        long messageId = MessageCodec.parseMessageId(pingback, start, messageIdEnd);
+        logger.debug("doCometPingback(): messageId={}", messageId);
+        EventTrace.record(EventTrace.Type.PINGBACK, messageId);
+        int nodeId = (int) (messageId >>> MessageBroker.NODE_ID_SHIFT);
+        if (nodeId != broker.getNodeId()) {
+            // the message request is waiting on the node that accepted the message
+            if (!broker.routePingback(nodeId, messageId,
+                    pingback.substring(separatorIndex + 1, end))) {
+                // the message request times out on the other node
+                logger.warn("doCometPingback(): cannot route pingback for message {} to node {}",
+                        messageId, nodeId);
+            }
+            return;
+        }
+        completePendingMessage(messageId, pingback,
+                messageIdEnd == separatorIndex ? -1 : messageIdEnd + 1, separatorIndex + 1, end);
+    }
+
+    // the client message is clientMessage.substring(start, end), and the client's stage
+    // timestamps are clientMessage.substring(stampsStart, start - 1), stampsStart is -1 if the
+    // client didn't send any (or the pingback was routed from another node)
+    // if the client asked for stage timestamps when it sent the message, the message response is
+    // "sentNanos,acceptedNanos,writtenNanos,pingedBackNanos,receivedNanos,pingbackNanos:message",
+    // the client's System.nanoTime() stamps around the server's, which only line up when client
+    // and server are on the same host, the stamps are left off if the message was written (or
+    // pinged back) on another node
+    private static void completePendingMessage(long messageId, String clientMessage,
+            int stampsStart, int start, int end) throws IOException {
+
+        if (messageLog != null) {
+            // even if the message request has timed out, the client has the message
+            messageLog.markAcknowledged(messageId & MESSAGE_SEQ_MASK);
+        }
+        PendingMessage pendingMessage = pendingMessages.remove(messageId);
+        if (pendingMessage == null) {
+            logger.debug("message async request timed out, cannot send response");
         } else {
-            messageAsyncContext.getResponse().getWriter().print(clientMessage);
+            pendingMessage.timeout.cancel();
+            long pingedBackNanos = System.nanoTime();
+            long writtenNanos = pendingMessage.queuedMessage.getWrittenNanos();
+            // not written here if it was delivered on another node
+            messageStats.pingedBack(writtenNanos == 0 ? -1 : pingedBackNanos - writtenNanos);
+            AsyncContext messageAsyncContext = pendingMessage.asyncContext;
+            MessageCodec.Encoder encoder = MessageCodec.messageEncoder();
+            if (pendingMessage.stageTimestamps && writtenNanos != 0 && stampsStart != -1) {
+                encoder.appendLong(pendingMessage.sentNanos).append(',')
+                        .appendLong(pendingMessage.queuedMessage.getQueuedNanos()).append(',')
+                        .appendLong(writtenNanos).append(',')
+                        .appendLong(pingedBackNanos).append(',')
+                        .append(clientMessage, stampsStart, start - 1).append(':');
+            }
+            // the client message is written straight from the pingback
+            encoder.append(clientMessage, start, end)
+                    .writeTo(messageAsyncContext.getResponse().getOutputStream());
             messageAsyncContext.complete();
+            EventTrace.record(EventTrace.Type.COMPLETE, messageId);
         }
     }
 
+    // the message goes through the channel's backlog, it is written out (possibly together with
+    // other queued messages when coalescing) as soon as a comet connection is parked on the
+    // channel, which covers the gap between a comet response and the client's reconnect
+    // the message may instead be handed to another node that has comet connections on the
+    // channel, in which case this node just waits for the pingback to be routed back
     private void doMessage(HttpServletRequest request, HttpServletResponse response)
             throws IOException {
 
-        logger.info("doMessage()");
-        AsyncContext cometAsyncContext = cometAsyncContexts.poll();
-        if (cometAsyncContext == null) {
-            logger.error("doMessage(): no comet connection available");
-            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        long startNanos = System.nanoTime();
+        acceptMessage(request, response);
+        messageStats.accepted(System.nanoTime() - startNanos);
+    }
+
+    private void acceptMessage(HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+
+        logger.debug("doMessage()");
+        AdmissionController.Reason rejectedReason =
+                admissionController.admitMessage(pendingMessages.size());
+        if (rejectedReason != null) {
+            logger.debug("doMessage(): rejected, {}", rejectedReason);
+            sendServiceUnavailable(response);
             return;
         }
-        long messageId = nextMessageId.getAndIncrement();
+        String channelName = request.getParameter("channel");
+        // addressed to a single client's mailbox rather than a channel
+        String to = request.getParameter("to");
+        Channel<ParkedSubscriber> channel;
+        int deliveryNodeId = broker.getNodeId();
+        if (to != null) {
+            // mailboxes are only created by the client's comet connections, the client registry
+            // is per node, so the client's comet connection has to be made to the node that
+            // accepts its messages
+            channel = clients.get(to);
+            if (channel == null) {
+                logger.debug("doMessage(): no mailbox for client {}", to);
+                response.sendError(HttpServletResponse.SC_NOT_FOUND);
+                return;
+            }
+        } else {
+            deliveryNodeId = broker.selectNode(brokerChannel(channelName));
+            // channels are likewise only created by comet connections, so that a message can't
+            // leave behind a channel (and its backlog) that nobody ever subscribes to
+            channel = getChannel(channelName);
+            if (channel == null && deliveryNodeId == broker.getNodeId()) {
+                logger.debug("doMessage(): no subscribers to channel {}", channelName);
+                response.sendError(HttpServletResponse.SC_NOT_FOUND);
+                return;
+            }
+        }
         String clientMessage = request.getParameter("message");
+        // the node id in the high bits tells the node that delivers the message where to route
+        // the pingback
+        long messageId = ((long) broker.getNodeId() << MessageBroker.NODE_ID_SHIFT)
+                | (messageLog == null ? messageIdGenerator.next()
+                        : messageLog.append(logChannel(channelName, to), clientMessage));
+        EventTrace.record(EventTrace.Type.ACCEPT, messageId);
         logger.debug("doMessage(): messageId={}, clientMessage={}", messageId, clientMessage);
+        QueuedMessage queuedMessage = new QueuedMessage(messageId, clientMessage);
+        PendingMessage pendingMessage = startPendingMessage(request, response, queuedMessage);
+        if (pendingMessage == null) {
+            return;
+        }
+        if (deliveryNodeId != broker.getNodeId()) {
+            if (broker.publish(deliveryNodeId, brokerChannel(channelName), messageId,
+                    clientMessage)) {
+                return;
+            }
+            // delivered here instead, the same as if no other node were subscribed, unless
+            // nobody has subscribed to the channel here either, in which case the client retries
+            logger.debug("doMessage(): cannot publish to node {}", deliveryNodeId);
+            if (channel == null) {
+                logger.warn("doMessage(): cannot publish to node {}, and no subscribers to"
+                        + " channel {} on this node", deliveryNodeId, channelName);
+                EventTrace.record(EventTrace.Type.REJECT, messageId);
+                rejectPendingMessage(pendingMessage, response);
+                return;
+            }
+        }
+        if (!offer(channel, queuedMessage)) {
+            logger.warn(to == null ? "doMessage(): backlog is full"
+                    : "doMessage(): mailbox is full");
+            EventTrace.record(EventTrace.Type.REJECT, messageId);
+            backlogStats.rejected();
+            rejectPendingMessage(pendingMessage, response);
+            return;
+        }
+        queued(channel);
+    }
+
+    // the message was never visible to a comet connection, so there can be no pingback
+    private static void rejectPendingMessage(PendingMessage pendingMessage,
+            HttpServletResponse response) throws IOException {
+
+        if (pendingMessages.remove(pendingMessage.messageId) != null) {
+            pendingMessage.timeout.cancel();
+            sendServiceUnavailable(response);
+            pendingMessage.asyncContext.complete();
+        }
+    }
+
+    // returns false if the backlog is full, even after dropping the messages at the head of the
+    // backlog whose message requests have already timed out
+    private static boolean offer(Channel<ParkedSubscriber> channel, QueuedMessage queuedMessage) {
+        if (channel.offer(queuedMessage)) {
+            return true;
+        }
+        boolean dropped = false;
+        while (channel.pollCancelled() != null) {
+            backlogStats.dropped();
+            dropped = true;
+        }
+        return dropped && channel.offer(queuedMessage);
+    }
+
+    // flushes straight away, or after the linger when coalescing
+    private static void queued(Channel<ParkedSubscriber> channel) {
+        int queuedMessageCount = channel.queuedMessageCount();
+        backlogStats.queued(queuedMessageCount);
+        if (!coalesce || coalesceLingerMillis <= 0 || queuedMessageCount >= coalesceMaxBatch) {
+            flush(channel);
+        } else if (channel.markFlushScheduled()) {
+            scheduledExecutor.schedule(new LingerFlush(channel), coalesceLingerMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // returns null (after responding 503) if there are too many messages waiting for pingback
+    private static PendingMessage startPendingMessage(HttpServletRequest request,
+            HttpServletResponse response, QueuedMessage queuedMessage) throws IOException {
+
         AsyncContext messageAsyncContext = request.startAsync();
-        // stash message id into request so it can be retrieved async listener in case of timeout
-        request.setAttribute(MESSAGE_ID, messageId);
-        messageAsyncContext.setTimeout(MESSAGE_ASYNC_TIMEOUT);
-        messageAsyncContext.addListener(messageAsyncListener);
-        messageAsyncContexts.put(messageId, messageAsyncContext);
-        cometAsyncContext.getResponse().getWriter().print(messageId + ":" + clientMessage);
+        int timeoutMillis = jitter(messageTimeoutMillis, messageTimeoutJitterMillis);
+        messageAsyncContext.setTimeout(timeoutMillis + CONTAINER_TIMEOUT_MARGIN_MILLIS);
+        PendingMessage pendingMessage = new PendingMessage(queuedMessage, messageAsyncContext);
+        // the client asks for stage timestamps by sending its own send timestamp
+        String sent = request.getParameter("sent");
+        if (sent != null) {
+            try {
+                pendingMessage.sentNanos = Long.parseLong(sent);
+                pendingMessage.stageTimestamps = true;
+            } catch (NumberFormatException e) {
+                logger.warn("startPendingMessage(): invalid sent timestamp {}", sent);
+            }
+        }
+        messageAsyncContext.addListener(pendingMessage);
+        if (!pendingMessages.put(queuedMessage.getMessageId(), pendingMessage)) {
+            logger.error("startPendingMessage(): too many messages waiting for pingback");
+            EventTrace.record(EventTrace.Type.REJECT, queuedMessage.getMessageId());
+            sendServiceUnavailable(response);
+            messageAsyncContext.complete();
+            return null;
+        }
+        // schedule before the comet response is written so the pingback can always cancel it
+        pendingMessage.timeout = timingWheel.schedule(pendingMessage, timeoutMillis);
+        return pendingMessage;
+    }
+
+    private static void sendServiceUnavailable(HttpServletResponse response) throws IOException {
+        response.setHeader("Retry-After", Integer.toString(retryAfterSeconds));
+        response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+    }
+
+    // the same, but for a long-poll comet connection, which is also told to spread its
+    // reconnect over the retry window (after the Retry-After) so that the comet connections that
+    // are turned away don't all come back at once
+    private static void sendRetry(HttpServletResponse response) throws IOException {
+        int retryAfterMillis = (int) TimeUnit.SECONDS.toMillis(retryAfterSeconds);
+        response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        response.setHeader("Retry-After", Integer.toString(retryAfterSeconds));
+        response.getWriter().print(
+                retryDirective(retryAfterMillis, retryAfterMillis + retryWindowMillis));
+    }
+
+    private static String retryDirective(int minMillis, int maxMillis) {
+        return RETRY_PREFIX + minMillis + ":" + maxMillis;
+    }
+
+    // hands the channel's queued messages to the delivery executor together with its parked
+    // comet connections, one message per comet response (or stream chunk), or when coalescing up
+    // to coalesceMaxBatch messages per comet response (or stream chunk)
+    private static void flush(Channel<ParkedSubscriber> channel) {
+        int maxBatch = coalesce ? coalesceMaxBatch : 1;
+        while (channel.hasQueuedMessages()) {
+            ParkedSubscriber subscriber = pollSubscriber(channel);
+            if (subscriber == null) {
+                // the next comet connection to park on the channel will flush
+                return;
+            }
+            QueuedMessage firstMessage = pollLive(channel);
+            if (firstMessage == null) {
+                // another flush got there first (or the next message is not published yet)
+                subscriber.park();
+                continue;
+            }
+            firstMessage.next = null;
+            QueuedMessage lastMessage = firstMessage;
+            int batchSize = 1;
+            QueuedMessage queuedMessage;
+            while (batchSize < maxBatch && (queuedMessage = pollLive(channel)) != null) {
+                queuedMessage.next = null;
+                lastMessage.next = queuedMessage;
+                lastMessage = queuedMessage;
+                batchSize++;
+            }
+            deliveryExecutor.execute(new Delivery(subscriber, channel, firstMessage, batchSize));
+        }
+    }
+
+    // skips (and drops) the messages whose message requests timed out while they were queued,
+    // since there is nobody left to pingback to
+    private static QueuedMessage pollLive(Channel<ParkedSubscriber> channel) {
+        QueuedMessage queuedMessage;
+        while ((queuedMessage = channel.poll()) != null && queuedMessage.isCancelled()) {
+            backlogStats.dropped();
+        }
+        return queuedMessage;
+    }
+
+    private void doBroadcast(HttpServletRequest request) throws UnsupportedEncodingException {
+        logger.info("doBroadcast()");
+        String clientMessage = request.getParameter("message");
+        // encode once, the same bytes are written to every comet connection
+        byte[] payload = (BROADCAST_PREFIX + clientMessage).getBytes("UTF-8");
+        final AsyncContext broadcastAsyncContext = request.startAsync();
+        broadcastAsyncContext.setTimeout(messageTimeoutMillis);
+        final Channel<ParkedSubscriber> channel = getChannel(request.getParameter("channel"));
+        List<ParkedSubscriber> subscribers = channel == null
+                ? Collections.<ParkedSubscriber> emptyList() : channel.getPool().drain();
+        for (ParkedSubscriber subscriber : subscribers) {
+            subscriber.polled();
+        }
+        logger.debug("doBroadcast(): broadcasting to {} comet connections", subscribers.size());
+        broadcaster.broadcast(subscribers, payload, new BroadcastCallback() {
+            @Override
+            public void onComplete(int delivered, long fanoutNanos) {
+                logger.info("doBroadcast(): delivered to {} comet connections in {} microseconds",
+                        delivered, TimeUnit.NANOSECONDS.toMicros(fanoutNanos));
+                try {
+                    broadcastAsyncContext.getResponse().getWriter().print(
+                            delivered + ":" + TimeUnit.NANOSECONDS.toMicros(fanoutNanos));
+                    broadcastAsyncContext.complete();
+                } catch (IOException e) {
+                    logger.error(e.getMessage(), e);
+                } catch (IllegalStateException e) {
+                    logger.error("doBroadcast(): broadcast async request timed out");
+                }
+                // streaming comet connections were out of the pool while being written to, so
+                // pick up any message that was queued in the meantime
+                if (channel != null && channel.hasQueuedMessages()) {
+                    flush(channel);
+                }
+            }
+        });
+    }
+
+    private void doCount(HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+
+        String channel = request.getParameter("channel");
+        if (channel == null) {
+            response.getWriter().print(parkedConnectionCount());
+        } else {
+            response.getWriter().print(channels.subscriberCount(channel));
+        }
+    }
+
+    private void doTimeouts(HttpServletResponse response) throws IOException {
+        PrintWriter out = response.getWriter();
+        out.println("tick millis: " + timingWheel.getTickMillis());
+        out.println("total timeouts: " + timingWheel.getTotalExpirations());
+        out.println("peak timeouts per tick: " + timingWheel.getPeakExpirationsPerTick());
+        out.print("recent timeouts per tick (oldest first):");
+        for (int expirations : timingWheel.getRecentExpirationsPerTick()) {
+            out.print(' ');
+            out.print(expirations);
+        }
+        out.println();
+    }
+
+    private void doBacklog(HttpServletResponse response) throws IOException {
+        PrintWriter out = response.getWriter();
+        out.println("capacity per channel: " + backlogCapacity);
+        out.println("capacity per client mailbox: " + mailboxCapacity);
+        out.println("queued messages: "
+                + (defaultChannel.queuedMessageCount() + channels.totalQueuedMessageCount()));
+        out.println("queued client messages: " + clients.totalQueuedMessageCount());
+        out.println("peak queued messages (single channel): " + backlogStats.getPeakDepth());
+        out.println("total queued: " + backlogStats.getQueuedCount());
+        out.println("total delivered: " + backlogStats.getDeliveredCount());
+        out.println("total rejected (backlog full): " + backlogStats.getRejectedCount());
+        out.println("total dropped (timed out while queued): " + backlogStats.getDroppedCount());
+        long deliveredCount = backlogStats.getDeliveredCount();
+        if (deliveredCount > 0) {
+            out.println("average dwell time: " + TimeUnit.NANOSECONDS.toMicros(
+                    backlogStats.getTotalDwellNanos() / deliveredCount) + " microseconds");
+        }
+        out.println("max dwell time: "
+                + TimeUnit.NANOSECONDS.toMicros(backlogStats.getMaxDwellNanos())
+                + " microseconds");
+    }
+
+    // everything here is O(1) in the number of comet connections and channels (apart from the
+    // fixed size histograms), so it can be polled while under load, each poll starts a new
+    // histogram interval
+    private void doStats(HttpServletResponse response) throws IOException {
+        PrintWriter out = response.getWriter();
+        out.println("parked comet connections: " + parkedConnectionCount());
+        out.println("client mailboxes: " + clients.size());
+        long acceptedCount = backlogStats.getQueuedCount();
+        long deliveredCount = backlogStats.getDeliveredCount();
+        out.println("messages accepted: " + acceptedCount);
+        out.println("messages delivered: " + deliveredCount);
+        out.println("messages pinged back: " + messageStats.getPingedBackCount());
+        out.println("messages timed out: " + messageStats.getTimedOutCount());
+        out.println("messages whose comet write failed: "
+                + messageStats.getDeliveryFailedCount());
+        out.println("backlog depth: " + (acceptedCount - deliveredCount));
+        for (AdmissionController.Reason reason : AdmissionController.Reason.values()) {
+            out.println("rejected by admission control ("
+                    + reason.name().toLowerCase().replace('_', ' ') + "): "
+                    + admissionController.getRejectedCount(reason));
+        }
+        long deliveryLatencyMicros = admissionController.getDeliveryLatencyMicros();
+        if (deliveryLatencyMicros != -1) {
+            out.println("recent accept to comet write latency (moving average): "
+                    + deliveryLatencyMicros + " microseconds");
+        }
+        out.println("heap headroom: " + admissionController.getHeapHeadroomPercent() + "%");
+        out.println("delivery threads: " + deliveryExecutor.getThreadCount());
+        out.println("delivery queue depth: " + deliveryExecutor.getDepth() + " (peak "
+                + deliveryExecutor.getPeakDepth() + ")");
+        long batchCount = deliveryExecutor.getBatchCount();
+        out.print("delivery batches: " + batchCount);
+        if (batchCount > 0) {
+            out.format(", average size %.1f, max size %d, sizes:",
+                    (double) deliveryExecutor.getDeliveryCount() / batchCount,
+                    deliveryExecutor.getMaxBatchSize());
+            for (int bucket = 0; bucket < deliveryExecutor.getBatchSizeBuckets(); bucket++) {
+                long count = deliveryExecutor.getBatchSizeCount(bucket);
+                if (count > 0) {
+                    out.print(" " + (1 << bucket) + "-" + ((2 << bucket) - 1) + "=" + count);
+                }
+            }
+        }
+        out.println();
+        PayloadCompressor currentCompressor = compressor;
+        long compressedCount = currentCompressor.getCompressedCount();
+        out.print("compressed comet responses: " + compressedCount);
+        if (compressedCount > 0) {
+            out.format(", average %d bytes (from %d bytes), average %.1f microseconds to compress",
+                    currentCompressor.getCompressedBytes() / compressedCount,
+                    currentCompressor.getUncompressedBytes() / compressedCount,
+                    currentCompressor.getCompressNanos() / 1000.0 / compressedCount);
+        }
+        out.println();
+        printLatencies(out, "request thread per message", messageStats.snapshotRequestThread());
+        printLatencies(out, "accept to comet write", messageStats.snapshotAcceptToWrite());
+        printLatencies(out, "comet write to pingback", messageStats.snapshotWriteToPingback());
+    }
+
+    private static void printLatencies(PrintWriter out, String name,
+            LatencyHistogram.Snapshot snapshot) {
+
+        out.println(name + " (last " + snapshot.getIntervalMillis() + " millis, "
+                + snapshot.getCount() + " messages, microseconds): p50="
+                + snapshot.getPercentile(50) + " p99=" + snapshot.getPercentile(99) + " p999="
+                + snapshot.getPercentile(99.9) + " max=" + snapshot.getMax());
+    }
+
+    // the binary event trace of every thread, see TraceDecoder
+    private void doTrace(HttpServletResponse response) throws IOException {
+        response.setContentType("application/octet-stream");
+        EventTrace.dump(response.getOutputStream());
+    }
+
+    private static void dumpTrace(String traceFile) {
         try {
-            logger.debug("doMessage(): calling cometAsyncContext.complete()");
-            cometAsyncContext.complete();
-            logger.debug("doMessage(): cometAsyncContext.complete() ");
-        } catch (IllegalStateException e) {
-            // trying to triangulate async issue
-            logger.error("doMessage(): error calling cometAsyncContext.complete()");
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(traceFile));
+            try {
+                EventTrace.dump(out);
+            } finally {
+                out.close();
+            }
+            logger.info("dumpTrace(): event trace written to {}", traceFile);
+        } catch (IOException e) {
+            logger.error(e.getMessage(), e);
+        }
+    }
+
+    // for a rolling restart, call this before stopping the server: the parked long-poll comet
+    // connections are told to reconnect at a random time within the retry window (rather than
+    // all at once when the server goes away), and so is any that connects in the meantime,
+    // prints the number of comet connections that were told
+    private void doDrain(HttpServletResponse response) throws IOException {
+        draining = true;
+        List<ParkedSubscriber> subscribers = defaultChannel.getPool().drain();
+        subscribers.addAll(channels.drain());
+        subscribers.addAll(clients.drain());
+        int retried = 0;
+        for (ParkedSubscriber subscriber : subscribers) {
+            subscriber.polled();
+            if (subscriber instanceof ParkedComet) {
+                ((ParkedComet) subscriber).retry(0, retryWindowMillis);
+                retried++;
+            } else {
+                // streams and websockets don't understand the directive, so they stay until
+                // the server stops
+                subscriber.park();
+            }
+        }
+        logger.info("doDrain(): told {} comet connections to reconnect", retried);
+        response.getWriter().print(retried);
+    }
+
+    // the preset dictionary that comet response bodies are compressed with
+    private void doDictionary(HttpServletResponse response) throws IOException {
+        byte[] dictionary = compressor.getDictionary();
+        response.setContentType("application/octet-stream");
+        response.setContentLength(dictionary.length);
+        response.getOutputStream().write(dictionary);
+    }
+
+    private void doMessageLog(HttpServletResponse response) throws IOException {
+        PrintWriter out = response.getWriter();
+        MessageLog currentMessageLog = messageLog;
+        if (currentMessageLog == null) {
+            out.println("message log: disabled");
+            return;
+        }
+        out.println("segments: " + currentMessageLog.getSegmentCount());
+        out.println("first seq: " + currentMessageLog.getFirstSeq());
+        out.println("last seq: " + currentMessageLog.getLastSeq());
+        out.println("replays (reconnects that were sent missed messages): "
+                + currentMessageLog.getReplayCount());
+        out.println("replayed messages: " + currentMessageLog.getReplayedMessageCount());
+        out.println("replays missing messages no longer retained: "
+                + currentMessageLog.getTruncatedReplayCount());
+    }
+
+    private void doSse(HttpServletResponse response) throws IOException {
+        PrintWriter out = response.getWriter();
+        out.println("event streams: " + sseStats.getStreamCount());
+        out.println("sessions: " + sseStats.getSessionCount());
+        out.println("resumed (Last-Event-ID): " + sseStats.getResumedCount());
+        out.println("resumed with unknown session: " + sseStats.getUnknownSessionCount());
+        out.println("replayed events: " + sseStats.getReplayedEventCount());
+        out.println("missed events (outside replay window of " + sseReplayWindow + "): "
+                + sseStats.getMissedEventCount());
+    }
+
+    // sum of the cpu time of all live threads, which is close enough to the server's cpu time
+    // for comparing runs against the same server, -1 if thread cpu time is not supported
+    private void doCpu(HttpServletResponse response) throws IOException {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (!threadMXBean.isThreadCpuTimeSupported()) {
+            response.getWriter().print(-1);
+            return;
+        }
+        long cpuNanos = 0;
+        for (long threadId : threadMXBean.getAllThreadIds()) {
+            long threadCpuNanos = threadMXBean.getThreadCpuTime(threadId);
+            // -1 if the thread has died since getAllThreadIds()
+            if (threadCpuNanos > 0) {
+                cpuNanos += threadCpuNanos;
+            }
+        }
+        response.getWriter().print(cpuNanos);
+    }
+
+    // heap in use after a full gc, heap per comet connection is the difference between a reading
+    // taken before the comet connections are opened and one taken after, divided by the number of
+    // connections
+    private void doHeap(HttpServletResponse response) throws IOException {
+        MemoryMXBean memoryMXBean = ManagementFactory.getMemoryMXBean();
+        memoryMXBean.gc();
+        response.getWriter().print(memoryMXBean.getHeapMemoryUsage().getUsed());
+    }
+
+    private int getIntInitParameter(String name, int defaultValue) {
+        String valueText = getInitParameterOrSystemProperty(name);
+        if (valueText == null || valueText.length() == 0) {
+            return defaultValue;
+        } else {
+            return Integer.parseInt(valueText);
+        }
+    }
+
+    private boolean getBooleanInitParameter(String name, boolean defaultValue) {
+        String valueText = getInitParameterOrSystemProperty(name);
+        if (valueText == null || valueText.length() == 0) {
+            return defaultValue;
+        } else {
+            return Boolean.parseBoolean(valueText);
+        }
+    }
+
+    // a "cometServlet.<name>" system property overrides the web.xml init-param, so that a mode
+    // can be switched on for a single run (or test) without editing web.xml
+    private String getInitParameterOrSystemProperty(String name) {
+        String valueText = System.getProperty("cometServlet." + name);
+        if (valueText == null) {
+            valueText = getInitParameter(name);
+        }
+        return valueText;
+    }
+
+    // returns null if the channel has never been used
+    private static Channel<ParkedSubscriber> getChannel(String channelName) {
+        return channelName == null ? defaultChannel : channels.get(channelName);
+    }
+
+    private static Channel<ParkedSubscriber> getOrCreateChannel(String channelName) {
+        return channelName == null ? defaultChannel : channels.getOrCreate(channelName);
+    }
+
+    // for comet connections, so that other nodes know to hand this node messages for the channel
+    // (created first, so that it is there for the first message another node hands over)
+    private static Channel<ParkedSubscriber> getOrCreateSubscribedChannel(String channelName) {
+        Channel<ParkedSubscriber> channel = getOrCreateChannel(channelName);
+        broker.subscribe(brokerChannel(channelName));
+        return channel;
+    }
+
+    // returns false if the server is too loaded to take on another comet connection
+    private static boolean admitComet() {
+        AdmissionController.Reason rejectedReason =
+                admissionController.admitComet(parkedConnectionCount());
+        if (rejectedReason == null) {
+            return true;
+        }
+        logger.debug("admitComet(): rejected, {}", rejectedReason);
+        return false;
+    }
+
+    private static int parkedConnectionCount() {
+        return defaultChannel.getPool().size() + channels.totalSubscriberCount()
+                + clients.totalSubscriberCount();
+    }
+
+    // the client's mailbox if the comet connection has a client id, otherwise its channel
+    private static Channel<ParkedSubscriber> getOrCreateSubscription(HttpServletRequest request) {
+        String clientId = request.getParameter("client");
+        if (clientId != null) {
+            return getOrCreateMailbox(clientId);
+        }
+        return getOrCreateSubscribedChannel(request.getParameter("channel"));
+    }
+
+    private static Channel<ParkedSubscriber> getOrCreateMailbox(String clientId) {
+        while (true) {
+            Channel<ParkedSubscriber> mailbox = clients.getOrCreate(clientId);
+            // counted before checking that the mailbox is still registered, so that either
+            // MailboxExpiry sees the subscription and puts the mailbox back, or this sees the
+            // removal and creates a new one
+            mailbox.subscribed();
+            if (clients.get(clientId) == mailbox) {
+                if (mailbox.markExpiryScheduled()) {
+                    timingWheel.schedule(new MailboxExpiry(clientId, mailbox,
+                            mailbox.getSubscriptionCount()), mailboxRetentionMillis);
+                }
+                return mailbox;
+            }
+        }
+    }
+
+    // the message log key for a channel, or for a client's mailbox if there is a client id
+    private static String logChannel(String channelName, String clientId) {
+        return clientId == null ? brokerChannel(channelName) : CLIENT_LOG_PREFIX + clientId;
+    }
+
+    // the broker can't carry null channel names
+    private static String brokerChannel(String channelName) {
+        return channelName == null ? "" : channelName;
+    }
+
+    // messages accepted by another node are in that node's message log
+    private static boolean isLoggedHere(long messageId) {
+        return messageLog != null
+                && (int) (messageId >>> MessageBroker.NODE_ID_SHIFT) == broker.getNodeId();
+    }
+
+    // returns null if there are no comet connections parked on the channel
+    private static ParkedSubscriber pollSubscriber(Channel<ParkedSubscriber> channel) {
+        ParkedSubscriber subscriber = channel.getPool().poll();
+        if (subscriber != null) {
+            subscriber.polled();
+        }
+        return subscriber;
+    }
+
+    private static int jitter(int timeoutMillis, int jitterMillis) {
+        if (jitterMillis <= 0) {
+            return timeoutMillis;
+        }
+        return timeoutMillis + jitterRandom.get().nextInt(jitterMillis);
+    }
+
+    private static class LingerFlush implements Runnable {
+        private final Channel<ParkedSubscriber> channel;
+        private LingerFlush(Channel<ParkedSubscriber> channel) {
+            this.channel = channel;
+        }
+        @Override
+        public void run() {
+            // clear first so that a message queued during the flush schedules another one
+            channel.clearFlushScheduled();
             try {
-                Thread.sleep(4000);
-            } catch (InterruptedException f) {
-                throw new IllegalStateException(f);
+                flush(channel);
+            } catch (Throwable t) {
+                logger.error(t.getMessage(), t);
             }
-            logger.debug("doMessage(): calling cometAsyncContext.complete() x2");
-            cometAsyncContext.complete();
         }
     }
 
-    private static class CometAsyncListener implements AsyncListener {
+    // a comet connection parked in its channel's pool
+    private abstract static class ParkedSubscriber implements Subscriber {
+        final CometPool<ParkedSubscriber> pool;
+        volatile CometPool.Entry<ParkedSubscriber> entry;
+        private ParkedSubscriber(CometPool<ParkedSubscriber> pool) {
+            this.pool = pool;
+        }
+        abstract void park();
+        // called by whoever polled (or drained) this from the pool, before delivering to it
+        abstract void polled();
+    }
+
+    // a comet connection that is an async http request, expired by the timing wheel
+    private abstract static class AsyncSubscriber extends ParkedSubscriber
+            implements AsyncListener, Runnable {
+        final AsyncContext asyncContext;
+        volatile TimingWheel.Timeout timeout;
+        private AsyncSubscriber(AsyncContext asyncContext, CometPool<ParkedSubscriber> pool) {
+            super(pool);
+            this.asyncContext = asyncContext;
+        }
         @Override
         public void onComplete(AsyncEvent event) throws IOException {
             logger.debug("onComplete()");
@@ -154,16 +1288,85 @@ public class CometServlet extends HttpServlet {
         @Override
         public void onError(AsyncEvent event) throws IOException {
             logger.error("onError()");
+            EventTrace.record(EventTrace.Type.COMET_ERROR, EventTrace.connectionId(this));
         }
         @Override
         public void onStartAsync(AsyncEvent event) throws IOException {
             logger.debug("onStartAsync()");
         }
+    }
+
+    // long-poll, completed by the first delivery
+    private static class ParkedComet extends AsyncSubscriber {
+        private final int timeoutMillis;
+        private final boolean compress;
+        private ParkedComet(AsyncContext asyncContext, CometPool<ParkedSubscriber> pool,
+                int timeoutMillis, boolean compress) {
+            super(asyncContext, pool);
+            this.timeoutMillis = timeoutMillis;
+            this.compress = compress;
+        }
+        @Override
+        void park() {
+            // schedule before parking so that whoever polls this can always cancel it
+            timeout = timingWheel.schedule(this, timeoutMillis);
+            EventTrace.record(EventTrace.Type.COMET_PARK, EventTrace.connectionId(this));
+            entry = pool.park(this);
+        }
+        @Override
+        void polled() {
+            timeout.cancel();
+        }
+        @Override
+        public void deliver(byte[] buffer, int length) throws IOException {
+            ServletResponse response = asyncContext.getResponse();
+            if (compress) {
+                PayloadCompressor.Output output = compressor.compress(buffer, length);
+                buffer = output.getBuffer();
+                length = output.getLength();
+            }
+            response.setContentLength(length);
+            response.getOutputStream().write(buffer, 0, length);
+            // throws IllegalStateException if the container has already completed it (e.g. timed
+            // it out), which the caller handles
+            asyncContext.complete();
+            EventTrace.record(EventTrace.Type.COMET_COMPLETE, EventTrace.connectionId(this));
+        }
+        // already polled
+        void retry(int minMillis, int maxMillis) {
+            try {
+                asyncContext.getResponse().getWriter().print(retryDirective(minMillis, maxMillis));
+                asyncContext.complete();
+                EventTrace.record(EventTrace.Type.COMET_COMPLETE, EventTrace.connectionId(this));
+            } catch (IOException e) {
+                logger.warn("retry(): error completing comet connection: {}", e.getMessage());
+            } catch (IllegalStateException e) {
+                // already completed by the container
+                logger.debug("retry(): {}", e.getMessage());
+            }
+        }
+        // called by the timing wheel
+        @Override
+        public void run() {
+            if (entry != null && pool.remove(entry)) {
+                logger.debug("comet async request timed out");
+                EventTrace.record(EventTrace.Type.COMET_TIMEOUT, EventTrace.connectionId(this));
+                try {
+                    asyncContext.getResponse().getWriter().print("TIMEOUT");
+                    asyncContext.complete();
+                } catch (IOException e) {
+                    logger.warn("run(): error completing timed out comet connection: {}",
+                            e.getMessage());
+                }
+            }
+        }
         @Override
         public void onTimeout(AsyncEvent event) throws IOException {
-            logger.info("onTimeout()");
-            if (cometAsyncContexts.remove(event.getAsyncContext())) {
-                logger.info("comet async request timed out");
+            logger.debug("onTimeout()");
+            if (pool.remove(entry)) {
+                logger.debug("comet async request timed out (container)");
+                EventTrace.record(EventTrace.Type.COMET_TIMEOUT, EventTrace.connectionId(this));
+                timeout.cancel();
                 event.getSuppliedResponse().getWriter().print("TIMEOUT");
                 event.getAsyncContext().complete();
             } else {
@@ -172,7 +1375,374 @@ public class CometServlet extends HttpServlet {
         }
     }
 
-    private static class MessageAsyncListener implements AsyncListener {
+    // streaming, goes back into the pool after each delivery until the stream times out
+    private static class StreamingComet extends AsyncSubscriber {
+        private volatile boolean expired;
+        private StreamingComet(AsyncContext asyncContext, CometPool<ParkedSubscriber> pool) {
+            super(asyncContext, pool);
+        }
+        @Override
+        void park() {
+            EventTrace.record(EventTrace.Type.COMET_PARK, EventTrace.connectionId(this));
+            entry = pool.park(this);
+            // the timeout may have fired while this was out of the pool being written to, in
+            // which case either this sees expired or the timing wheel sees the new entry
+            if (expired && pool.remove(entry)) {
+                end();
+            }
+        }
+        @Override
+        void polled() {
+            // the stream timeout keeps running across deliveries
+        }
+        @Override
+        public void deliver(byte[] buffer, int length) throws IOException {
+            ServletOutputStream out = asyncContext.getResponse().getOutputStream();
+            try {
+                writeChunk(out, buffer, length);
+                out.flush();
+            } catch (IOException e) {
+                // the client has gone away, don't put the stream back in the pool
+                timeout.cancel();
+                end();
+                throw e;
+            }
+            park();
+        }
+        // called by the timing wheel
+        @Override
+        public void run() {
+            expired = true;
+            if (entry != null && pool.remove(entry)) {
+                logger.debug("comet stream timed out");
+                EventTrace.record(EventTrace.Type.COMET_TIMEOUT, EventTrace.connectionId(this));
+                end();
+            }
+        }
+        @Override
+        public void onTimeout(AsyncEvent event) throws IOException {
+            logger.debug("onTimeout()");
+            if (pool.remove(entry)) {
+                logger.debug("comet stream timed out (container)");
+                EventTrace.record(EventTrace.Type.COMET_TIMEOUT, EventTrace.connectionId(this));
+                timeout.cancel();
+                end();
+            }
+        }
+        // each chunk is the payload length in bytes, a newline, then the payload, written as one
+        // write so that it goes out in one piece
+        void writeChunk(ServletOutputStream out, byte[] buffer, int length) throws IOException {
+            MessageCodec.chunkEncoder().appendLong(length).append('\n')
+                    .append(buffer, 0, length).writeTo(out);
+        }
+        void end() {
+            EventTrace.record(EventTrace.Type.COMET_COMPLETE, EventTrace.connectionId(this));
+            try {
+                asyncContext.complete();
+            } catch (IllegalStateException e) {
+                // already completed by the container
+                logger.debug("end(): {}", e.getMessage());
+            }
+        }
+    }
+
+    // server-sent events stream, every delivery is recorded in the session so that it can be
+    // replayed if the client reconnects without having received it
+    private static class EventStream extends StreamingComet {
+        private final SseSession<EventStream> session;
+        // the last event written to this stream (or received by the client before it resumed),
+        // only the subscriber's current owner touches this
+        private volatile long lastWrittenSeq;
+        private EventStream(AsyncContext asyncContext, CometPool<ParkedSubscriber> pool,
+                SseSession<EventStream> session, long lastWrittenSeq) {
+            super(asyncContext, pool);
+            this.session = session;
+            this.lastWrittenSeq = lastWrittenSeq;
+        }
+        // also writes any events that were appended by the session's previous stream after the
+        // client resumed from this one, which were never written anywhere the client could read
+        @Override
+        void writeChunk(ServletOutputStream out, byte[] buffer, int length) throws IOException {
+            // the session encodes its own copy of the event
+            long seq = session.append(buffer, length);
+            byte[] events = session.eventsBetween(lastWrittenSeq, seq);
+            lastWrittenSeq = seq;
+            out.write(events);
+        }
+        // the session can still be resumed for a while after its stream ends
+        @Override
+        void end() {
+            super.end();
+            timingWheel.schedule(new SseSessionExpiry(session, this), sseSessionRetentionMillis);
+        }
+    }
+
+    // removes the client's mailbox once no comet connection has subscribed to it (and it has had
+    // no comet connections parked and no messages queued) for the retention time, a message sent
+    // to the mailbox just as it is removed times out
+    private static class MailboxExpiry implements Runnable {
+        private final String clientId;
+        private final Channel<ParkedSubscriber> mailbox;
+        private final long subscriptionCount;
+        private MailboxExpiry(String clientId, Channel<ParkedSubscriber> mailbox,
+                long subscriptionCount) {
+            this.clientId = clientId;
+            this.mailbox = mailbox;
+            this.subscriptionCount = subscriptionCount;
+        }
+        // called by the timing wheel
+        @Override
+        public void run() {
+            long currentSubscriptionCount = mailbox.getSubscriptionCount();
+            if (currentSubscriptionCount != subscriptionCount || mailbox.getPool().size() > 0
+                    || mailbox.hasQueuedMessages()) {
+                timingWheel.schedule(new MailboxExpiry(clientId, mailbox,
+                        currentSubscriptionCount), mailboxRetentionMillis);
+                return;
+            }
+            if (clients.remove(clientId, mailbox)
+                    && mailbox.getSubscriptionCount() != subscriptionCount) {
+                // a comet connection subscribed while it was being removed
+                clients.restore(clientId, mailbox);
+                timingWheel.schedule(new MailboxExpiry(clientId, mailbox,
+                        mailbox.getSubscriptionCount()), mailboxRetentionMillis);
+            }
+        }
+    }
+
+    private static class SseSessionExpiry implements Runnable {
+        private final SseSession<EventStream> session;
+        private final EventStream eventStream;
+        private SseSessionExpiry(SseSession<EventStream> session, EventStream eventStream) {
+            this.session = session;
+            this.eventStream = eventStream;
+        }
+        // called by the timing wheel
+        @Override
+        public void run() {
+            // unless the client has resumed the session since
+            if (session.isCurrent(eventStream)) {
+                sseSessions.remove(session.getSessionId());
+            }
+        }
+    }
+
+    // websocket, goes back into the pool after each delivery until it is closed, which jetty does
+    // once it has been idle for the comet timeout (the timing wheel isn't involved)
+    private static class WebSocketComet extends ParkedSubscriber
+            implements WebSocket.OnFrame, WebSocket.OnTextMessage {
+        private final Channel<ParkedSubscriber> channel;
+        private volatile WebSocket.FrameConnection connection;
+        private volatile boolean closed;
+        private WebSocketComet(Channel<ParkedSubscriber> channel) {
+            super(channel.getPool());
+            this.channel = channel;
+        }
+        @Override
+        public void onHandshake(WebSocket.FrameConnection connection) {
+            this.connection = connection;
+        }
+        @Override
+        public void onOpen(WebSocket.Connection connection) {
+            logger.debug("onOpen()");
+            connection.setMaxIdleTime(jitter(cometTimeoutMillis, cometTimeoutJitterMillis));
+            park();
+            if (channel.hasQueuedMessages()) {
+                flush(channel);
+            }
+        }
+        // the frame is not handled here, so complete text messages are passed to onMessage()
+        @Override
+        public boolean onFrame(byte flags, byte opcode, byte[] data, int offset, int length) {
+            return false;
+        }
+        // one pingback per line
+        @Override
+        public void onMessage(String data) {
+            int start = 0;
+            while (start < data.length()) {
+                int end = data.indexOf('\n', start);
+                if (end == -1) {
+                    end = data.length();
+                }
+                try {
+                    doCometPingback(data, start, end);
+                } catch (IOException e) {
+                    logger.warn("onMessage(): error writing message response: {}",
+                            e.getMessage());
+                }
+                start = end + 1;
+            }
+        }
+        @Override
+        public void onClose(int closeCode, String message) {
+            logger.debug("onClose(): closeCode={}", closeCode);
+            EventTrace.record(EventTrace.Type.COMET_COMPLETE, EventTrace.connectionId(this));
+            closed = true;
+            if (entry != null) {
+                pool.remove(entry);
+            }
+        }
+        @Override
+        void park() {
+            EventTrace.record(EventTrace.Type.COMET_PARK, EventTrace.connectionId(this));
+            entry = pool.park(this);
+            // the websocket may have been closed while this was out of the pool being written to,
+            // in which case either this sees closed or onClose() sees the new entry
+            if (closed) {
+                pool.remove(entry);
+            }
+        }
+        @Override
+        void polled() {
+            // no timeout to cancel
+        }
+        // the payload is already utf-8, so it is written as a text frame without decoding it
+        @Override
+        public void deliver(byte[] buffer, int length) throws IOException {
+            try {
+                connection.sendFrame(connection.finMask(), connection.textOpcode(), buffer, 0,
+                        length);
+            } catch (IOException e) {
+                // don't put the websocket back in the pool
+                connection.disconnect();
+                throw e;
+            }
+            park();
+        }
+    }
+
+    // a comet connection (already polled from its pool) and the messages to write to it, one
+    // "messageId:clientMessage" per line, encoded into the delivery thread's MessageCodec buffer
+    private static class Delivery implements Runnable {
+        private final ParkedSubscriber subscriber;
+        private final Channel<ParkedSubscriber> channel;
+        private final QueuedMessage firstMessage;
+        private final int batchSize;
+        private Delivery(ParkedSubscriber subscriber, Channel<ParkedSubscriber> channel,
+                QueuedMessage firstMessage, int batchSize) {
+            this.subscriber = subscriber;
+            this.channel = channel;
+            this.firstMessage = firstMessage;
+            this.batchSize = batchSize;
+        }
+        @Override
+        public void run() {
+            MessageCodec.Encoder body = MessageCodec.messageEncoder();
+            int messageCount = 0;
+            for (QueuedMessage queuedMessage = firstMessage; queuedMessage != null;
+                    queuedMessage = queuedMessage.next) {
+                if (queuedMessage.isCancelled()) {
+                    // timed out since it was polled from the backlog
+                    backlogStats.dropped();
+                    continue;
+                }
+                // stamped before the write so that the pingback can never see it unset
+                queuedMessage.written();
+                EventTrace.record(EventTrace.Type.WRITE, queuedMessage.getMessageId());
+                if (isLoggedHere(queuedMessage.getMessageId())) {
+                    messageLog.markWritten(queuedMessage.getMessageId() & MESSAGE_SEQ_MASK);
+                }
+                long dwellNanos = queuedMessage.getWrittenNanos() - queuedMessage.getQueuedNanos();
+                backlogStats.delivered(dwellNanos);
+                messageStats.written(dwellNanos);
+                admissionController.delivered(dwellNanos);
+                if (messageCount++ > 0) {
+                    body.append('\n');
+                }
+                body.appendMessage(queuedMessage.getMessageId(), queuedMessage.getPayload());
+            }
+            if (messageCount == 0) {
+                logger.debug("run(): all {} messages timed out, re-parking", batchSize);
+                subscriber.park();
+                if (channel.hasQueuedMessages()) {
+                    flush(channel);
+                }
+                return;
+            }
+            logger.debug("run(): writing {} messages to comet connection", messageCount);
+            // either way the messages will time out waiting for their pingback
+            try {
+                subscriber.deliver(body.getBuffer(), body.getLength());
+            } catch (IOException e) {
+                logger.warn("run(): error writing to comet connection: {}", e.getMessage());
+                messageStats.deliveryFailed(messageCount);
+            } catch (IllegalStateException e) {
+                logger.warn("run(): error completing comet connection: {}", e.getMessage());
+                EventTrace.record(EventTrace.Type.COMET_ERROR,
+                        EventTrace.connectionId(subscriber));
+                messageStats.deliveryFailed(messageCount);
+            }
+        }
+    }
+
+    private static class BrokerListener implements MessageBroker.Listener {
+        // the same as doMessage(), except that there is no message request to respond to if the
+        // channel has no subscribers or the backlog is full, so the message is dropped and times
+        // out on the other node
+        @Override
+        public void messagePublished(String channelName, long messageId, String payload) {
+            logger.debug("messagePublished(): messageId={}", messageId);
+            Channel<ParkedSubscriber> channel =
+                    getChannel(channelName.length() == 0 ? null : channelName);
+            if (channel == null) {
+                // only handed messages for channels that it has subscribed to
+                logger.warn("messagePublished(): no subscribers to channel {}", channelName);
+                EventTrace.record(EventTrace.Type.REJECT, messageId);
+                return;
+            }
+            if (!offer(channel, new QueuedMessage(messageId, payload))) {
+                logger.warn("messagePublished(): backlog is full");
+                EventTrace.record(EventTrace.Type.REJECT, messageId);
+                backlogStats.rejected();
+                return;
+            }
+            queued(channel);
+        }
+        @Override
+        public void pingbackRouted(long messageId, String clientMessage) {
+            logger.debug("pingbackRouted(): messageId={}", messageId);
+            try {
+                completePendingMessage(messageId, clientMessage, -1, 0,
+                        clientMessage.length());
+            } catch (IOException e) {
+                logger.warn("pingbackRouted(): error writing message response: {}",
+                        e.getMessage());
+            }
+        }
+    }
+
+    private static class PendingMessage implements AsyncListener, Runnable {
+        private final long messageId;
+        private final QueuedMessage queuedMessage;
+        private final AsyncContext asyncContext;
+        private volatile TimingWheel.Timeout timeout;
+        // set before the pending message is published to pendingMessages
+        private boolean stageTimestamps;
+        private long sentNanos;
+        private PendingMessage(QueuedMessage queuedMessage, AsyncContext asyncContext) {
+            this.messageId = queuedMessage.getMessageId();
+            this.queuedMessage = queuedMessage;
+            this.asyncContext = asyncContext;
+        }
+        // called by the timing wheel
+        @Override
+        public void run() {
+            if (pendingMessages.remove(messageId) != null) {
+                logger.debug("message async request timed out");
+                EventTrace.record(EventTrace.Type.TIMEOUT, messageId);
+                messageStats.timedOut();
+                // so that it is dropped rather than written if it is still queued
+                queuedMessage.cancel();
+                try {
+                    asyncContext.getResponse().getWriter().print("TIMEOUT");
+                    asyncContext.complete();
+                } catch (IOException e) {
+                    logger.warn("run(): error completing timed out message request: {}",
+                            e.getMessage());
+                }
+            }
+        }
         @Override
         public void onComplete(AsyncEvent event) throws IOException {
             logger.debug("onComplete()");
@@ -180,6 +1750,7 @@ public class CometServlet extends HttpServlet {
         @Override
         public void onError(AsyncEvent event) throws IOException {
             logger.error("onError()");
+            EventTrace.record(EventTrace.Type.ERROR, messageId);
         }
         @Override
         public void onStartAsync(AsyncEvent event) throws IOException {
@@ -188,12 +1759,14 @@ public class CometServlet extends HttpServlet {
         @Override
         public void onTimeout(AsyncEvent event) throws IOException {
             logger.debug("onTimeout()");
-            long messageId = (Long) event.getSuppliedRequest().getAttribute(MESSAGE_ID);
-            AsyncContext messageAsyncContext = messageAsyncContexts.remove(messageId);
-            if (messageAsyncContext == null) {
+            if (pendingMessages.remove(messageId) == null) {
                 // ok, probably just picked up by doCometPingback
             } else {
-                logger.warn("message async request timed out");
+                logger.debug("message async request timed out (container)");
+                EventTrace.record(EventTrace.Type.TIMEOUT, messageId);
+                messageStats.timedOut();
+                queuedMessage.cancel();
+                timeout.cancel();
                 event.getSuppliedResponse().getWriter().print("TIMEOUT");
                 event.getAsyncContext().complete();
             }
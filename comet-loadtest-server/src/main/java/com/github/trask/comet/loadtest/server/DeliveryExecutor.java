@@ -0,0 +1,160 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.comet.loadtest.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs comet deliveries (writing to a comet connection and completing it) on a small pool of
+ * delivery threads, so that request threads only queue them.
+ *
+ * Each delivery thread takes whatever has queued up since it last looked, up to maxBatch
+ * deliveries, and runs them back to back, so under load the queue is touched once per batch
+ * rather than once per delivery.
+ *
+ * With no delivery threads, deliveries are run straight away on the calling thread.
+ *
+ * @author Trask Stalnaker
+ */
+class DeliveryExecutor {
+
+    private static final Logger logger = LoggerFactory.getLogger(DeliveryExecutor.class);
+
+    // batch sizes are counted in power of two buckets, bucket n is sizes 2^n to 2^(n+1)-1
+    private static final int BATCH_SIZE_BUCKETS = 32;
+
+    private final BlockingQueue<Runnable> queue = new LinkedBlockingQueue<Runnable>();
+    private final int nThreads;
+    private final int maxBatch;
+    private final List<Thread> threads = new ArrayList<Thread>();
+    private volatile boolean shutdown;
+
+    private final AtomicLong peakDepth = new AtomicLong();
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong deliveryCount = new AtomicLong();
+    private final AtomicLong maxBatchSize = new AtomicLong();
+    private final AtomicLongArray batchSizeCounts = new AtomicLongArray(BATCH_SIZE_BUCKETS);
+
+    DeliveryExecutor(int nThreads, int maxBatch) {
+        this.nThreads = nThreads;
+        this.maxBatch = maxBatch;
+        DaemonThreadFactory threadFactory = new DaemonThreadFactory("CometServer-Delivery-");
+        for (int i = 0; i < nThreads; i++) {
+            Thread thread = threadFactory.newThread(new Worker());
+            threads.add(thread);
+            thread.start();
+        }
+    }
+
+    void execute(Runnable delivery) {
+        if (nThreads == 0) {
+            delivery.run();
+            return;
+        }
+        queue.add(delivery);
+        updateMax(peakDepth, queue.size());
+    }
+
+    // deliveries that are still queued are dropped, their messages time out
+    void shutdown() {
+        shutdown = true;
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+    }
+
+    int getThreadCount() {
+        return nThreads;
+    }
+
+    int getDepth() {
+        return queue.size();
+    }
+
+    long getPeakDepth() {
+        return peakDepth.get();
+    }
+
+    long getBatchCount() {
+        return batchCount.get();
+    }
+
+    long getDeliveryCount() {
+        return deliveryCount.get();
+    }
+
+    long getMaxBatchSize() {
+        return maxBatchSize.get();
+    }
+
+    // the number of batches with 2^bucket to 2^(bucket+1)-1 deliveries
+    long getBatchSizeCount(int bucket) {
+        return batchSizeCounts.get(bucket);
+    }
+
+    int getBatchSizeBuckets() {
+        return BATCH_SIZE_BUCKETS;
+    }
+
+    private void batchRun(int batchSize) {
+        batchCount.getAndIncrement();
+        deliveryCount.getAndAdd(batchSize);
+        updateMax(maxBatchSize, batchSize);
+        batchSizeCounts.getAndIncrement(31 - Integer.numberOfLeadingZeros(batchSize));
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        while (true) {
+            long current = max.get();
+            if (value <= current || max.compareAndSet(current, value)) {
+                return;
+            }
+        }
+    }
+
+    private class Worker implements Runnable {
+        @Override
+        public void run() {
+            List<Runnable> batch = new ArrayList<Runnable>(maxBatch);
+            while (!shutdown) {
+                try {
+                    batch.add(queue.take());
+                } catch (InterruptedException e) {
+                    // shutdown
+                    return;
+                }
+                queue.drainTo(batch, maxBatch - 1);
+                batchRun(batch.size());
+                for (Runnable delivery : batch) {
+                    try {
+                        delivery.run();
+                    } catch (Throwable t) {
+                        logger.error(t.getMessage(), t);
+                    }
+                }
+                batch.clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.comet.loadtest.server;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Always-on trace of comet connection and message lifecycle events, cheap enough to leave on
+ * under load (unlike debug logging, which changes the timing enough to hide delivery stalls).
+ *
+ * Each thread records into its own ring of the last RING_EVENTS events, so recording is a
+ * thread local lookup plus three array stores, with no locking and no allocation. Each event is
+ * a System.nanoTime() timestamp, an event type and an id (the message id for message events,
+ * the comet connection's identity hash code for connection events).
+ *
+ * dump() writes every thread's ring, see TraceDecoder for the format and for rebuilding a
+ * timeline per message. Rings are read while their threads keep recording, so an event that is
+ * overwritten during the dump may come out torn, which is fine for debugging.
+ *
+ * @author Trask Stalnaker
+ */
+final class EventTrace {
+
+    static final long MAGIC = 0x434f4d4554545231L; // "COMETTR1"
+
+    // must be a power of two, 17 bytes per event per thread
+    private static final int RING_EVENTS = 4096;
+    // the rings of threads that have died are kept (their last events can be the interesting
+    // ones) until there are this many rings
+    private static final int MAX_RINGS = 512;
+
+    enum Type {
+        // message events
+        ACCEPT, REJECT, WRITE, PINGBACK, COMPLETE, TIMEOUT, ERROR,
+        // comet connection events
+        COMET_PARK, COMET_COMPLETE, COMET_TIMEOUT, COMET_ERROR;
+
+        private static final Type[] values = values();
+
+        static Type fromOrdinal(int ordinal) {
+            return values[ordinal];
+        }
+
+        boolean isMessageEvent() {
+            return ordinal() < COMET_PARK.ordinal();
+        }
+    }
+
+    private static final Queue<Ring> rings = new ConcurrentLinkedQueue<Ring>();
+
+    private static final ThreadLocal<Ring> threadRing = new ThreadLocal<Ring>() {
+        @Override
+        protected Ring initialValue() {
+            Ring ring = new Ring(Thread.currentThread());
+            rings.add(ring);
+            if (rings.size() > MAX_RINGS) {
+                removeDeadThreadRings();
+            }
+            return ring;
+        }
+    };
+
+    private EventTrace() {}
+
+    static void record(Type type, long id) {
+        threadRing.get().record(System.nanoTime(), type, id);
+    }
+
+    // the ids that connection events are recorded with
+    static long connectionId(Object connection) {
+        return System.identityHashCode(connection);
+    }
+
+    // header: magic, System.currentTimeMillis() and System.nanoTime() at the time of the dump (to
+    // put wall clock times on the events), number of rings
+    // each ring: thread id, thread name, number of events, then each event (oldest first):
+    // nanoTime, type ordinal (byte), id
+    static void dump(OutputStream os) throws IOException {
+        DataOutputStream out = new DataOutputStream(os);
+        List<Ring> snapshot = new ArrayList<Ring>(rings);
+        out.writeLong(MAGIC);
+        out.writeLong(System.currentTimeMillis());
+        out.writeLong(System.nanoTime());
+        out.writeInt(snapshot.size());
+        for (Ring ring : snapshot) {
+            ring.dump(out);
+        }
+        out.flush();
+    }
+
+    private static void removeDeadThreadRings() {
+        for (Iterator<Ring> i = rings.iterator(); i.hasNext();) {
+            if (!i.next().thread.isAlive()) {
+                i.remove();
+            }
+        }
+    }
+
+    private static class Ring {
+        private static final int MASK = RING_EVENTS - 1;
+        private final Thread thread;
+        private final long[] timestamps = new long[RING_EVENTS];
+        private final byte[] types = new byte[RING_EVENTS];
+        private final long[] ids = new long[RING_EVENTS];
+        // only written by the ring's thread, lazySet so that dump() sees the events before it
+        // without a full fence per event
+        private final AtomicLong count = new AtomicLong();
+        private Ring(Thread thread) {
+            this.thread = thread;
+        }
+        private void record(long nanoTime, Type type, long id) {
+            long n = count.get();
+            int index = (int) n & MASK;
+            timestamps[index] = nanoTime;
+            types[index] = (byte) type.ordinal();
+            ids[index] = id;
+            count.lazySet(n + 1);
+        }
+        private void dump(DataOutputStream out) throws IOException {
+            long n = count.get();
+            long from = Math.max(0, n - RING_EVENTS);
+            out.writeLong(thread.getId());
+            out.writeUTF(thread.getName());
+            out.writeInt((int) (n - from));
+            for (long i = from; i < n; i++) {
+                int index = (int) i & MASK;
+                out.writeLong(timestamps[index]);
+                out.writeByte(types[index]);
+                out.writeLong(ids[index]);
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.comet.loadtest.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Lock-free latency histogram in microseconds, with log-linear buckets: exact below 64
+ * microseconds, and 32 buckets per power of two above that (so within about 3%).
+ *
+ * Recording is a bucket increment plus a (usually uncontended) max update. Values are recorded
+ * into the current interval, and each snapshot() starts a new interval, so that percentiles
+ * are per interval rather than since startup. A value recorded concurrently with snapshot() may
+ * land in the interval that was just snapshotted and be missed, which doesn't matter for this.
+ *
+ * @author Trask Stalnaker
+ */
+class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // values below this are their own bucket
+    private static final int LINEAR_LIMIT = SUB_BUCKETS * 2;
+    private static final int LINEAR_LIMIT_BITS = SUB_BUCKET_BITS + 1;
+    // larger values (about 12 days) are counted in the last bucket
+    private static final int MAX_VALUE_BITS = 40;
+    private static final int BUCKETS =
+            LINEAR_LIMIT + (MAX_VALUE_BITS - LINEAR_LIMIT_BITS) * SUB_BUCKETS;
+
+    private final AtomicReference<Interval> current =
+            new AtomicReference<Interval>(new Interval());
+
+    void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        Interval interval = current.get();
+        interval.counts.getAndIncrement(bucketIndex(micros));
+        while (true) {
+            long max = interval.max.get();
+            if (micros <= max || interval.max.compareAndSet(max, micros)) {
+                return;
+            }
+        }
+    }
+
+    // returns the interval since the previous snapshot (or reset) and starts a new one
+    Snapshot snapshot() {
+        Interval interval = current.getAndSet(new Interval());
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = interval.counts.get(i);
+            total += counts[i];
+        }
+        return new Snapshot(counts, total, interval.max.get(),
+                System.currentTimeMillis() - interval.startMillis);
+    }
+
+    void reset() {
+        current.set(new Interval());
+    }
+
+    private static int bucketIndex(long micros) {
+        if (micros < LINEAR_LIMIT) {
+            return (int) micros;
+        }
+        int bits = 64 - Long.numberOfLeadingZeros(micros);
+        if (bits > MAX_VALUE_BITS) {
+            return BUCKETS - 1;
+        }
+        // the top SUB_BUCKET_BITS after the leading one bit
+        int subBucket = (int) (micros >>> (bits - 1 - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR_LIMIT + (bits - 1 - LINEAR_LIMIT_BITS) * SUB_BUCKETS + subBucket;
+    }
+
+    // the largest value that falls in the bucket
+    private static long bucketUpperBound(int index) {
+        if (index < LINEAR_LIMIT) {
+            return index;
+        }
+        int shift = (index - LINEAR_LIMIT) / SUB_BUCKETS + 1;
+        int subBucket = (index - LINEAR_LIMIT) % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + subBucket + 1) << shift) - 1;
+    }
+
+    private static class Interval {
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong max = new AtomicLong();
+        private final long startMillis = System.currentTimeMillis();
+    }
+
+    static class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long max;
+        private final long intervalMillis;
+        private Snapshot(long[] counts, long count, long max, long intervalMillis) {
+            this.counts = counts;
+            this.count = count;
+            this.max = max;
+            this.intervalMillis = intervalMillis;
+        }
+        long getCount() {
+            return count;
+        }
+        // in microseconds, the upper bound of the bucket (but never more than the max), 0 if
+        // nothing was recorded
+        long getPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(count * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= Math.max(rank, 1)) {
+                    return Math.min(bucketUpperBound(i), max);
+                }
+            }
+            return max;
+        }
+        long getMax() {
+            return max;
+        }
+        long getIntervalMillis() {
+            return intervalMillis;
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.comet.loadtest.server;
+
+/**
+ * Connector and thread pool knobs for CometServerLauncher, where zero (or UNBOUNDED) means
+ * jetty's own default, so that new LauncherOptions() leaves the connector and thread pool the same
+ * as new Server(port) would have them. The webapp context is not covered by these options, see
+ * CometServerLauncher.start(), which only processes web.xml (no webdefault.xml or other
+ * configurations).
+ *
+ * In jetty 8 each acceptor thread runs its own selector, so the number of selectors is the number
+ * of acceptors.
+ *
+ * @author Trask Stalnaker
+ */
+public class LauncherOptions {
+
+    public enum QueueType {
+        // jobs wait for a free thread in a queue that grows as needed (jetty's default)
+        UNBOUNDED,
+        // jobs wait in a queue of up to maxQueued, beyond which the connection is dropped
+        BOUNDED,
+        // jobs are handed straight to a thread (a new one up to maxThreads) or rejected
+        SYNCHRONOUS
+    }
+
+    private static final String SYSTEM_PROPERTY_PREFIX = "cometServerLauncher.";
+
+    private String webappDir = "src/main/webapp";
+    private int acceptors;
+    // the listen backlog, zero is the operating system's default
+    private int acceptQueueSize;
+    private int maxIdleTimeMillis;
+    // above lowResourcesConnections (or when the thread pool is low on threads), connections are
+    // closed after lowResourcesMaxIdleTimeMillis instead
+    private int lowResourcesConnections;
+    private int lowResourcesMaxIdleTimeMillis;
+    private int requestHeaderSize;
+    private int requestBufferSize;
+    private int responseHeaderSize;
+    private int responseBufferSize;
+    private int minThreads;
+    private int maxThreads;
+    private QueueType queueType = QueueType.UNBOUNDED;
+    // only for BOUNDED
+    private int maxQueued;
+
+    // each option can be set with a "cometServerLauncher.<name>" system property, e.g.
+    // -DcometServerLauncher.acceptors=2 -DcometServerLauncher.queueType=SYNCHRONOUS
+    public static LauncherOptions fromSystemProperties() {
+        LauncherOptions options = new LauncherOptions();
+        String webappDir = System.getProperty(SYSTEM_PROPERTY_PREFIX + "webappDir");
+        if (webappDir != null) {
+            options.webappDir = webappDir;
+        }
+        options.acceptors = getIntProperty("acceptors");
+        options.acceptQueueSize = getIntProperty("acceptQueueSize");
+        options.maxIdleTimeMillis = getIntProperty("maxIdleTimeMillis");
+        options.lowResourcesConnections = getIntProperty("lowResourcesConnections");
+        options.lowResourcesMaxIdleTimeMillis = getIntProperty("lowResourcesMaxIdleTimeMillis");
+        options.requestHeaderSize = getIntProperty("requestHeaderSize");
+        options.requestBufferSize = getIntProperty("requestBufferSize");
+        options.responseHeaderSize = getIntProperty("responseHeaderSize");
+        options.responseBufferSize = getIntProperty("responseBufferSize");
+        options.minThreads = getIntProperty("minThreads");
+        options.maxThreads = getIntProperty("maxThreads");
+        String queueType = System.getProperty(SYSTEM_PROPERTY_PREFIX + "queueType");
+        if (queueType != null && queueType.length() > 0) {
+            options.queueType = QueueType.valueOf(queueType.toUpperCase());
+        }
+        options.maxQueued = getIntProperty("maxQueued");
+        return options;
+    }
+
+    public String getWebappDir() {
+        return webappDir;
+    }
+
+    public LauncherOptions setWebappDir(String webappDir) {
+        this.webappDir = webappDir;
+        return this;
+    }
+
+    public int getAcceptors() {
+        return acceptors;
+    }
+
+    public LauncherOptions setAcceptors(int acceptors) {
+        this.acceptors = acceptors;
+        return this;
+    }
+
+    public int getAcceptQueueSize() {
+        return acceptQueueSize;
+    }
+
+    public LauncherOptions setAcceptQueueSize(int acceptQueueSize) {
+        this.acceptQueueSize = acceptQueueSize;
+        return this;
+    }
+
+    public int getMaxIdleTimeMillis() {
+        return maxIdleTimeMillis;
+    }
+
+    public LauncherOptions setMaxIdleTimeMillis(int maxIdleTimeMillis) {
+        this.maxIdleTimeMillis = maxIdleTimeMillis;
+        return this;
+    }
+
+    public int getLowResourcesConnections() {
+        return lowResourcesConnections;
+    }
+
+    public LauncherOptions setLowResourcesConnections(int lowResourcesConnections) {
+        this.lowResourcesConnections = lowResourcesConnections;
+        return this;
+    }
+
+    public int getLowResourcesMaxIdleTimeMillis() {
+        return lowResourcesMaxIdleTimeMillis;
+    }
+
+    public LauncherOptions setLowResourcesMaxIdleTimeMillis(int lowResourcesMaxIdleTimeMillis) {
+        this.lowResourcesMaxIdleTimeMillis = lowResourcesMaxIdleTimeMillis;
+        return this;
+    }
+
+    public int getRequestHeaderSize() {
+        return requestHeaderSize;
+    }
+
+    public LauncherOptions setRequestHeaderSize(int requestHeaderSize) {
+        this.requestHeaderSize = requestHeaderSize;
+        return this;
+    }
+
+    public int getRequestBufferSize() {
+        return requestBufferSize;
+    }
+
+    public LauncherOptions setRequestBufferSize(int requestBufferSize) {
+        this.requestBufferSize = requestBufferSize;
+        return this;
+    }
+
+    public int getResponseHeaderSize() {
+        return responseHeaderSize;
+    }
+
+    public LauncherOptions setResponseHeaderSize(int responseHeaderSize) {
+        this.responseHeaderSize = responseHeaderSize;
+        return this;
+    }
+
+    public int getResponseBufferSize() {
+        return responseBufferSize;
+    }
+
+    public LauncherOptions setResponseBufferSize(int responseBufferSize) {
+        this.responseBufferSize = responseBufferSize;
+        return this;
+    }
+
+    public int getMinThreads() {
+        return minThreads;
+    }
+
+    public LauncherOptions setMinThreads(int minThreads) {
+        this.minThreads = minThreads;
+        return this;
+    }
+
+    public int getMaxThreads() {
+        return maxThreads;
+    }
+
+    public LauncherOptions setMaxThreads(int maxThreads) {
+        this.maxThreads = maxThreads;
+        return this;
+    }
+
+    public QueueType getQueueType() {
+        return queueType;
+    }
+
+    public LauncherOptions setQueueType(QueueType queueType) {
+        this.queueType = queueType;
+        return this;
+    }
+
+    public int getMaxQueued() {
+        return maxQueued;
+    }
+
+    public LauncherOptions setMaxQueued(int maxQueued) {
+        this.maxQueued = maxQueued;
+        return this;
+    }
+
+    // only the options that differ from jetty's defaults, e.g. for labelling a sweep's runs
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        append(sb, "acceptors", acceptors);
+        append(sb, "acceptQueueSize", acceptQueueSize);
+        append(sb, "maxIdleTimeMillis", maxIdleTimeMillis);
+        append(sb, "lowResourcesConnections", lowResourcesConnections);
+        append(sb, "lowResourcesMaxIdleTimeMillis", lowResourcesMaxIdleTimeMillis);
+        append(sb, "requestHeaderSize", requestHeaderSize);
+        append(sb, "requestBufferSize", requestBufferSize);
+        append(sb, "responseHeaderSize", responseHeaderSize);
+        append(sb, "responseBufferSize", responseBufferSize);
+        append(sb, "minThreads", minThreads);
+        append(sb, "maxThreads", maxThreads);
+        if (queueType != QueueType.UNBOUNDED) {
+            appendSeparator(sb);
+            sb.append("queueType=").append(queueType);
+        }
+        append(sb, "maxQueued", maxQueued);
+        return sb.length() == 0 ? "jetty defaults" : sb.toString();
+    }
+
+    private static void append(StringBuilder sb, String name, int value) {
+        if (value != 0) {
+            appendSeparator(sb);
+            sb.append(name).append('=').append(value);
+        }
+    }
+
+    private static void appendSeparator(StringBuilder sb) {
+        if (sb.length() > 0) {
+            sb.append(", ");
+        }
+    }
+
+    private static int getIntProperty(String name) {
+        String valueText = System.getProperty(SYSTEM_PROPERTY_PREFIX + name);
+        if (valueText == null || valueText.length() == 0) {
+            return 0;
+        } else {
+            return Integer.parseInt(valueText);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.comet.loadtest.server;
+
+/**
+ * The in-process broker for a single node, every message is delivered on this node, so nothing
+ * is ever published or routed.
+ *
+ * @author Trask Stalnaker
+ */
+class LocalMessageBroker implements MessageBroker {
+
+    private final int nodeId;
+
+    LocalMessageBroker(int nodeId) {
+        this.nodeId = nodeId;
+    }
+
+    @Override
+    public void start(Listener listener) {}
+
+    @Override
+    public void stop() {}
+
+    @Override
+    public int getNodeId() {
+        return nodeId;
+    }
+
+    @Override
+    public void subscribe(String channel) {}
+
+    @Override
+    public int selectNode(String channel) {
+        return nodeId;
+    }
+
+    @Override
+    public boolean publish(int nodeId, String channel, long messageId, String payload) {
+        throw new IllegalStateException("There are no other nodes");
+    }
+
+    // the pingback's message id is not one of this node's (or is garbled)
+    @Override
+    public boolean routePingback(int nodeId, long messageId, String clientMessage) {
+        return false;
+    }
+}
@@ -0,0 +1,189 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.comet.loadtest.server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lock-free, fixed capacity, open addressing (linear probing) map keyed by primitive long.
+ *
+ * Unlike ConcurrentHashMap<Long, V> there is no boxing of keys and no per-entry node, so put()
+ * and remove() don't allocate. The trade-off is that the capacity is fixed up front and put()
+ * fails once it can't find a slot within MAX_PUT_PROBE slots of the key's home slot (which is
+ * well before the table is full for keys that spread well, such as message ids).
+ *
+ * A removed entry leaves a tombstone, so that probing for keys stored past it carries on, but a
+ * tombstone followed by a free slot can't be in the way of any key, so remove() turns it (and any
+ * tombstones just before it) back into free slots. This keeps the probing done by a get() or
+ * remove() that misses short, even after the table has been close to full.
+ *
+ * Intended for keys that are unique for the lifetime of their entry (e.g. message ids): put()
+ * does not check for an existing entry with the same key, and a get() or remove() that races
+ * with the put() of the same key (or with the removal of a neighbouring entry while that put is
+ * in progress) may not see it.
+ *
+ * @author Trask Stalnaker
+ */
+class LongConcurrentMap<V> {
+
+    // slot has never been used, so probing for a key can stop here
+    private static final long FREE = Long.MIN_VALUE;
+    // slot has been used and can be reused, but probing for a key must continue past it
+    private static final long TOMBSTONE = Long.MIN_VALUE + 1;
+
+    private static final int MAX_PUT_PROBE = 512;
+
+    private final AtomicLongArray keys;
+    private final AtomicReferenceArray<V> values;
+    private final int mask;
+    // longest probe sequence used by any put(), which bounds the probing done by get()/remove()
+    private final AtomicInteger maxProbe = new AtomicInteger();
+    private final AtomicInteger size = new AtomicInteger();
+
+    LongConcurrentMap(int minCapacity) {
+        int capacity = 1;
+        while (capacity < minCapacity) {
+            capacity <<= 1;
+        }
+        keys = new AtomicLongArray(capacity);
+        values = new AtomicReferenceArray<V>(capacity);
+        mask = capacity - 1;
+        for (int i = 0; i < capacity; i++) {
+            keys.set(i, FREE);
+        }
+    }
+
+    // returns false if there is no free slot within MAX_PUT_PROBE slots of the key's home slot
+    boolean put(long key, V value) {
+        if (key == FREE || key == TOMBSTONE) {
+            throw new IllegalArgumentException("Reserved key " + key);
+        }
+        int start = hash(key);
+        int probeLimit = Math.min(mask, MAX_PUT_PROBE);
+        for (int i = 0; i <= probeLimit; i++) {
+            int index = (start + i) & mask;
+            long slotKey;
+            // the slot is read again if the cas fails, since a tombstone may have just been
+            // turned into a free slot, which must not be skipped over
+            while ((slotKey = keys.get(index)) == FREE || slotKey == TOMBSTONE) {
+                if (keys.compareAndSet(index, slotKey, key)) {
+                    values.set(index, value);
+                    size.getAndIncrement();
+                    updateMaxProbe(i);
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    V get(long key) {
+        int index = indexOf(key);
+        return index == -1 ? null : values.get(index);
+    }
+
+    V remove(long key) {
+        int index = indexOf(key);
+        if (index == -1) {
+            return null;
+        }
+        V value = values.get(index);
+        // the key check guards against the slot having been removed and reused in the meantime
+        if (value != null && keys.get(index) == key
+                && values.compareAndSet(index, value, null)) {
+            keys.set(index, TOMBSTONE);
+            size.getAndDecrement();
+            freeTombstones(index);
+            return value;
+        }
+        // removed concurrently (or the put of this key hasn't finished setting the value)
+        return null;
+    }
+
+    int size() {
+        return size.get();
+    }
+
+    // O(capacity), for tests
+    int tombstoneCount() {
+        int count = 0;
+        for (int i = 0; i <= mask; i++) {
+            if (keys.get(i) == TOMBSTONE) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // not safe to call concurrently with other operations
+    void clear() {
+        for (int i = 0; i <= mask; i++) {
+            keys.set(i, FREE);
+            values.set(i, null);
+        }
+        maxProbe.set(0);
+        size.set(0);
+    }
+
+    private int indexOf(long key) {
+        int start = hash(key);
+        int probeLimit = maxProbe.get();
+        for (int i = 0; i <= probeLimit; i++) {
+            int index = (start + i) & mask;
+            long slotKey = keys.get(index);
+            if (slotKey == key) {
+                return index;
+            }
+            if (slotKey == FREE) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    // turns the tombstone at index back into a free slot if the next slot is free, and then the
+    // tombstones before it, stopping at the first slot that is not a tombstone
+    private void freeTombstones(int index) {
+        while (true) {
+            int next = (index + 1) & mask;
+            if (keys.get(next) != FREE || !keys.compareAndSet(index, TOMBSTONE, FREE)) {
+                return;
+            }
+            if (keys.get(next) != FREE) {
+                // a put() took the next slot in the meantime, and may have probed past this one
+                keys.compareAndSet(index, FREE, TOMBSTONE);
+                return;
+            }
+            index = (index - 1) & mask;
+        }
+    }
+
+    private void updateMaxProbe(int probe) {
+        int currMaxProbe;
+        while (probe > (currMaxProbe = maxProbe.get())) {
+            if (maxProbe.compareAndSet(currMaxProbe, probe)) {
+                return;
+            }
+        }
+    }
+
+    private int hash(long key) {
+        // message ids are (mostly) sequential, so the low bits alone spread them perfectly
+        return (int) (key ^ (key >>> 32)) & mask;
+    }
+}
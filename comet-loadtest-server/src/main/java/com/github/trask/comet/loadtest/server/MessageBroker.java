@@ -0,0 +1,71 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.comet.loadtest.server;
+
+import java.io.IOException;
+
+/**
+ * Routes messages between comet server nodes, so that a message accepted on one node can be
+ * delivered to a comet connection parked on another, and its pingback (which arrives on the
+ * node that delivered it) gets back to the node holding the waiting message request.
+ *
+ * Messages are still point-to-point, each message is delivered on exactly one of the nodes
+ * subscribed to its channel. The node that accepted a message is encoded in the high bits of its
+ * message id, so pingbacks can be routed without any shared state.
+ *
+ * The default channel is the channel named "".
+ *
+ * @author Trask Stalnaker
+ */
+interface MessageBroker {
+
+    int NODE_ID_BITS = 8;
+    int MAX_NODES = 1 << NODE_ID_BITS;
+    // the node id goes in the high bits so that node 0's message ids are just the sequence
+    // numbers, and so that message ids stay well within the 18 digits MessageCodec parses
+    int NODE_ID_SHIFT = 48;
+
+    void start(Listener listener) throws IOException;
+
+    void stop();
+
+    int getNodeId();
+
+    // called for every comet connection, so needs to be cheap once the channel is subscribed
+    void subscribe(String channel);
+
+    // the node to deliver the next message for the channel on, which is this node if no other
+    // node is subscribed to the channel
+    int selectNode(String channel);
+
+    // hands the message to another node, which then delivers it as if it had accepted it itself,
+    // returns false if the message can't be handed to the node (it isn't connected, or too much
+    // is already queued for it), in which case it is up to the caller to deliver the message
+    boolean publish(int nodeId, String channel, long messageId, String payload);
+
+    // hands the pingback to the node that accepted the message, returns false (the same as
+    // publish()) if the pingback can't be handed to the node
+    boolean routePingback(int nodeId, long messageId, String clientMessage);
+
+    interface Listener {
+
+        // a message accepted by another node, to be delivered on this node
+        void messagePublished(String channel, long messageId, String payload);
+
+        // a pingback for a message accepted by this node, that arrived on another node
+        void pingbackRouted(long messageId, String clientMessage);
+    }
+}
@@ -0,0 +1,213 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.comet.loadtest.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes and decodes the "messageId:payload" framing without allocating per message.
+ *
+ * A client that asked for stage timestamps adds its own to each pingback after the message id,
+ * "messageId,receivedNanos,pingbackNanos:payload", and gets the server's back in front of the
+ * message response, see CometServlet.completePendingMessage().
+ *
+ * Messages are encoded (as utf-8) into a buffer that belongs to the calling thread and is reused
+ * by that thread's next encode, so the encoded bytes must be written out (which copies them into
+ * the container's buffers) before the thread encodes anything else. There are two buffers per
+ * thread, one for messages and one for the stream chunk that wraps them, so that a message can
+ * be chunked without copying it out first.
+ *
+ * Pingbacks are parsed in place, by index into the pingback string.
+ *
+ * @author Trask Stalnaker
+ */
+final class MessageCodec {
+
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+
+    private static final ThreadLocal<Encoder> messageEncoders = new ThreadLocal<Encoder>() {
+        @Override
+        protected Encoder initialValue() {
+            return new Encoder();
+        }
+    };
+    private static final ThreadLocal<Encoder> chunkEncoders = new ThreadLocal<Encoder>() {
+        @Override
+        protected Encoder initialValue() {
+            return new Encoder();
+        }
+    };
+
+    private MessageCodec() {}
+
+    // the calling thread's (now empty) message encoder
+    static Encoder messageEncoder() {
+        return messageEncoders.get().reset();
+    }
+
+    // the calling thread's (now empty) stream chunk encoder
+    static Encoder chunkEncoder() {
+        return chunkEncoders.get().reset();
+    }
+
+    // the index of the ':' that separates the message id from the payload, or -1
+    static int separatorIndex(String pingback, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (pingback.charAt(i) == ':') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // the end of the message id, which is followed by the client's stage timestamps (up to the
+    // separator) if the client sent them
+    static int messageIdEnd(String pingback, int start, int separatorIndex) {
+        for (int i = start; i < separatorIndex; i++) {
+            if (pingback.charAt(i) == ',') {
+                return i;
+            }
+        }
+        return separatorIndex;
+    }
+
+    // parses the (non-negative) message id without Long.parseLong(), which needs a substring
+    static long parseMessageId(String pingback, int start, int end) {
+        if (start == end || end - start > 18) {
+            throw new NumberFormatException("Invalid message id in pingback: " + pingback);
+        }
+        long messageId = 0;
+        for (int i = start; i < end; i++) {
+            int digit = pingback.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("Invalid message id in pingback: " + pingback);
+            }
+            messageId = messageId * 10 + digit;
+        }
+        return messageId;
+    }
+
+    static class Encoder {
+
+        private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+        private int length;
+
+        private Encoder() {}
+
+        // "messageId:payload"
+        Encoder appendMessage(long messageId, String payload) {
+            return appendLong(messageId).append(':').append(payload, 0, payload.length());
+        }
+
+        Encoder appendLong(long value) {
+            if (value < 0) {
+                // only System.nanoTime() stamps can be negative, and then rarely
+                String text = Long.toString(value);
+                return append(text, 0, text.length());
+            }
+            int digits = 1;
+            for (long v = value / 10; v > 0; v /= 10) {
+                digits++;
+            }
+            ensureCapacity(digits);
+            for (int i = length + digits - 1; i >= length; i--) {
+                buffer[i] = (byte) ('0' + value % 10);
+                value /= 10;
+            }
+            length += digits;
+            return this;
+        }
+
+        // only for ascii characters
+        Encoder append(char c) {
+            ensureCapacity(1);
+            buffer[length++] = (byte) c;
+            return this;
+        }
+
+        // utf-8 encodes the characters from start (inclusive) to end (exclusive)
+        Encoder append(String s, int start, int end) {
+            // at most 3 bytes per char (a surrogate pair is 2 chars and 4 bytes)
+            ensureCapacity((end - start) * 3);
+            for (int i = start; i < end; i++) {
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    buffer[length++] = (byte) c;
+                } else if (c < 0x800) {
+                    buffer[length++] = (byte) (0xc0 | c >> 6);
+                    buffer[length++] = (byte) (0x80 | c & 0x3f);
+                } else if (Character.isHighSurrogate(c) && i + 1 < end
+                        && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                    buffer[length++] = (byte) (0xf0 | codePoint >> 18);
+                    buffer[length++] = (byte) (0x80 | codePoint >> 12 & 0x3f);
+                    buffer[length++] = (byte) (0x80 | codePoint >> 6 & 0x3f);
+                    buffer[length++] = (byte) (0x80 | codePoint & 0x3f);
+                } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                    // unpaired, same as String.getBytes("UTF-8")
+                    buffer[length++] = '?';
+                } else {
+                    buffer[length++] = (byte) (0xe0 | c >> 12);
+                    buffer[length++] = (byte) (0x80 | c >> 6 & 0x3f);
+                    buffer[length++] = (byte) (0x80 | c & 0x3f);
+                }
+            }
+            return this;
+        }
+
+        Encoder append(byte[] bytes, int offset, int len) {
+            ensureCapacity(len);
+            System.arraycopy(bytes, offset, buffer, length, len);
+            length += len;
+            return this;
+        }
+
+        // the next len bytes from the source buffer's position
+        Encoder append(ByteBuffer src, int len) {
+            ensureCapacity(len);
+            src.get(buffer, length, len);
+            length += len;
+            return this;
+        }
+
+        byte[] getBuffer() {
+            return buffer;
+        }
+
+        int getLength() {
+            return length;
+        }
+
+        void writeTo(OutputStream out) throws IOException {
+            out.write(buffer, 0, length);
+        }
+
+        private Encoder reset() {
+            length = 0;
+            return this;
+        }
+
+        private void ensureCapacity(int additional) {
+            if (length + additional > buffer.length) {
+                byte[] newBuffer = new byte[Math.max(buffer.length * 2, length + additional)];
+                System.arraycopy(buffer, 0, newBuffer, 0, length);
+                buffer = newBuffer;
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.comet.loadtest.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out unique message ids without every request thread incrementing the same AtomicLong.
+ * Each thread reserves a block of ids from the shared counter and then hands them out locally.
+ *
+ * Ids are unique but are not ordered across threads.
+ *
+ * @author Trask Stalnaker
+ */
+class MessageIdGenerator {
+
+    private static final int BLOCK_SIZE = 1024;
+
+    private final AtomicLong nextBlockStart = new AtomicLong();
+    // bumped by reset() so that threads discard blocks reserved before the reset
+    private volatile int generation;
+
+    private final ThreadLocal<Block> blocks = new ThreadLocal<Block>() {
+        @Override
+        protected Block initialValue() {
+            return new Block();
+        }
+    };
+
+    long next() {
+        Block block = blocks.get();
+        int currentGeneration = generation;
+        if (block.next == block.end || block.generation != currentGeneration) {
+            block.next = nextBlockStart.getAndAdd(BLOCK_SIZE);
+            block.end = block.next + BLOCK_SIZE;
+            block.generation = currentGeneration;
+        }
+        return block.next++;
+    }
+
+    void reset() {
+        // the counter is reset first, so that a thread that sees the new generation can only
+        // reserve its next block from the reset counter (a thread still on the old generation
+        // may reserve from the reset counter too, which just uses up that block)
+        nextBlockStart.set(0);
+        generation++;
+    }
+
+    private static class Block {
+        private long next;
+        private long end;
+        private int generation = -1;
+    }
+}
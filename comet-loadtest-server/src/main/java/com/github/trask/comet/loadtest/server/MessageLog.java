@@ -0,0 +1,419 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.comet.loadtest.server;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only log of accepted messages in fixed size memory-mapped segment files, so that a
+ * message whose comet response never reached the client can be replayed when the client
+ * reconnects.
+ *
+ * Every message gets the next sequence number, which the servlet uses as the message id. Each
+ * record also has a written flag (set when the message is written to a comet connection) and an
+ * acknowledged flag (set by its pingback), and a replay is the written but unacknowledged
+ * messages on the client's channel after the last message id the client received.
+ *
+ * Records are written through the page cache, so they survive the server process but not the
+ * machine. The oldest segments are deleted when a new segment is started, once the segments
+ * take up more than the retention size or the oldest is older than the retention time.
+ *
+ * Segment file: magic, created millis, then records, a zero record length marks the end.
+ * Record: length, seq, written flag, acknowledged flag, channel length, channel (utf-8), payload
+ * (utf-8).
+ *
+ * @author Trask Stalnaker
+ */
+class MessageLog {
+
+    private static final Logger logger = LoggerFactory.getLogger(MessageLog.class);
+
+    static final long MAGIC = 0x434f4d45544c4731L; // "COMETLG1"
+
+    private static final int SEGMENT_HEADER_SIZE = 16;
+    private static final int RECORD_HEADER_SIZE = 16;
+    private static final int WRITTEN_OFFSET = 12;
+    private static final int ACKNOWLEDGED_OFFSET = 13;
+    private static final int CHANNEL_LENGTH_OFFSET = 14;
+    // every INDEX_INTERVAL'th record's offset is kept in memory, the rest are found by skipping
+    // from there
+    private static final int INDEX_INTERVAL = 64;
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final File dir;
+    private final int segmentBytes;
+    private final long retentionBytes;
+    private final long retentionMillis;
+
+    // oldest first, copied on write (under the append lock)
+    private volatile Segment[] segments;
+    // published after the record is complete, so readers only look at records up to lastSeq
+    private volatile long lastSeq;
+
+    // replays that found missed messages
+    private final AtomicLong replayCount = new AtomicLong();
+    private final AtomicLong replayedMessageCount = new AtomicLong();
+    // replays that started before the oldest retained message
+    private final AtomicLong truncatedReplayCount = new AtomicLong();
+
+    // opens the segments already in the directory (if any), so sequence numbers carry on from
+    // the last run
+    MessageLog(File dir, int segmentBytes, long retentionBytes, long retentionMillis)
+            throws IOException {
+
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.retentionBytes = retentionBytes;
+        this.retentionMillis = retentionMillis;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create message log directory " + dir);
+        }
+        File[] files = dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        // the file names are zero-padded base sequence numbers
+        Arrays.sort(files);
+        List<Segment> openedSegments = new ArrayList<Segment>();
+        for (File file : files) {
+            Segment segment = Segment.open(file);
+            if (segment != null) {
+                openedSegments.add(segment);
+                lastSeq = segment.baseSeq + segment.recordCount - 1;
+            }
+        }
+        segments = openedSegments.toArray(new Segment[openedSegments.size()]);
+        if (segments.length == 0) {
+            startSegment();
+        }
+        logger.info("MessageLog(): opened {} segments in {}, last seq {}", new Object[] {
+                segments.length, dir, lastSeq });
+    }
+
+    // returns the message's sequence number
+    long append(String channelName, String payload) throws IOException {
+        // encoded into this thread's message buffer, which is free until the next flush
+        MessageCodec.Encoder encoder = MessageCodec.messageEncoder();
+        encoder.append(channelName, 0, channelName.length());
+        int channelLength = encoder.getLength();
+        encoder.append(payload, 0, payload.length());
+        int recordLength = RECORD_HEADER_SIZE + encoder.getLength();
+        // room is always left for the zero length that marks the end of the segment
+        if (channelLength > Short.MAX_VALUE
+                || SEGMENT_HEADER_SIZE + recordLength + 4 > segmentBytes) {
+            throw new IOException("Message too large for message log segment size "
+                    + segmentBytes);
+        }
+        synchronized (this) {
+            Segment segment = segments[segments.length - 1];
+            if (segment.position + recordLength + 4 > segment.buffer.capacity()) {
+                segment = startSegment();
+            }
+            long seq = lastSeq + 1;
+            ByteBuffer out = segment.appendBuffer;
+            out.position(segment.position + 4);
+            out.putLong(seq);
+            out.put((byte) 0);
+            out.put((byte) 0);
+            out.putShort((short) channelLength);
+            out.put(encoder.getBuffer(), 0, encoder.getLength());
+            // the length goes in last, so that a record with a length is complete
+            segment.buffer.putInt(segment.position, recordLength);
+            segment.indexRecord();
+            segment.position += recordLength;
+            lastSeq = seq;
+            return seq;
+        }
+    }
+
+    void markWritten(long seq) {
+        mark(seq, WRITTEN_OFFSET);
+    }
+
+    void markAcknowledged(long seq) {
+        mark(seq, ACKNOWLEDGED_OFFSET);
+    }
+
+    // encodes up to maxMessages of the written but unacknowledged messages on the channel after
+    // afterSeq into the body, one "messageId:payload" per line, the message id being
+    // messageIdBits | seq, and returns how many
+    int replay(String channelName, long afterSeq, int maxMessages, long messageIdBits,
+            MessageCodec.Encoder body) throws IOException {
+
+        long toSeq = lastSeq;
+        Segment[] currentSegments = segments;
+        long seq = afterSeq + 1;
+        if (seq > toSeq || currentSegments.length == 0) {
+            return 0;
+        }
+        if (seq < currentSegments[0].baseSeq) {
+            // the client has missed messages that are no longer retained
+            truncatedReplayCount.getAndIncrement();
+            seq = currentSegments[0].baseSeq;
+        }
+        byte[] channelBytes = channelName.getBytes("UTF-8");
+        int segmentIndex = segmentIndex(currentSegments, seq);
+        Segment segment = currentSegments[segmentIndex];
+        ByteBuffer in = segment.buffer.duplicate();
+        int offset = segment.offsetOf(seq);
+        int count = 0;
+        while (seq <= toSeq && count < maxMessages) {
+            if (segmentIndex + 1 < currentSegments.length
+                    && seq == currentSegments[segmentIndex + 1].baseSeq) {
+                segment = currentSegments[++segmentIndex];
+                in = segment.buffer.duplicate();
+                offset = SEGMENT_HEADER_SIZE;
+            }
+            int recordLength = in.getInt(offset);
+            if (in.get(offset + WRITTEN_OFFSET) != 0 && in.get(offset + ACKNOWLEDGED_OFFSET) == 0
+                    && channelMatches(in, offset, channelBytes)) {
+                int payloadOffset = offset + RECORD_HEADER_SIZE + channelBytes.length;
+                if (count > 0) {
+                    body.append('\n');
+                }
+                body.appendLong(messageIdBits | seq).append(':');
+                in.position(payloadOffset);
+                body.append(in, offset + recordLength - payloadOffset);
+                EventTrace.record(EventTrace.Type.WRITE, messageIdBits | seq);
+                count++;
+            }
+            offset += recordLength;
+            seq++;
+        }
+        if (count > 0) {
+            replayCount.getAndIncrement();
+            replayedMessageCount.getAndAdd(count);
+        }
+        return count;
+    }
+
+    // forces the last segment out to disk
+    void close() {
+        Segment[] currentSegments = segments;
+        currentSegments[currentSegments.length - 1].buffer.force();
+    }
+
+    int getSegmentCount() {
+        return segments.length;
+    }
+
+    // the oldest retained sequence number
+    long getFirstSeq() {
+        return segments[0].baseSeq;
+    }
+
+    long getLastSeq() {
+        return lastSeq;
+    }
+
+    long getReplayCount() {
+        return replayCount.get();
+    }
+
+    long getReplayedMessageCount() {
+        return replayedMessageCount.get();
+    }
+
+    long getTruncatedReplayCount() {
+        return truncatedReplayCount.get();
+    }
+
+    // the flags are single bytes written with absolute puts, so marking never races with
+    // appending or with setting the other flag
+    private void mark(long seq, int flagOffset) {
+        if (seq > lastSeq) {
+            return;
+        }
+        Segment[] currentSegments = segments;
+        if (currentSegments.length == 0 || seq < currentSegments[0].baseSeq) {
+            // no longer retained
+            return;
+        }
+        Segment segment = currentSegments[segmentIndex(currentSegments, seq)];
+        segment.buffer.put(segment.offsetOf(seq) + flagOffset, (byte) 1);
+    }
+
+    // called under the append lock (or from the constructor)
+    private Segment startSegment() throws IOException {
+        long baseSeq = lastSeq + 1;
+        File file = new File(dir, String.format("%020d", baseSeq) + SEGMENT_SUFFIX);
+        Segment segment = Segment.create(file, baseSeq, segmentBytes);
+        List<Segment> retainedSegments = new ArrayList<Segment>(Arrays.asList(segments == null
+                ? new Segment[0] : segments));
+        retainedSegments.add(segment);
+        long cutoffMillis = System.currentTimeMillis() - retentionMillis;
+        long totalBytes = 0;
+        for (Segment retainedSegment : retainedSegments) {
+            totalBytes += retainedSegment.buffer.capacity();
+        }
+        while (retainedSegments.size() > 1 && (totalBytes > retentionBytes
+                || retainedSegments.get(0).createdMillis < cutoffMillis)) {
+            Segment oldestSegment = retainedSegments.remove(0);
+            totalBytes -= oldestSegment.buffer.capacity();
+            // a replay that is still reading it keeps its mapping, which outlives the file
+            if (!oldestSegment.file.delete()) {
+                logger.warn("startSegment(): could not delete {}", oldestSegment.file);
+            }
+        }
+        segments = retainedSegments.toArray(new Segment[retainedSegments.size()]);
+        return segment;
+    }
+
+    // the index of the segment holding seq, which must be retained
+    private static int segmentIndex(Segment[] segments, long seq) {
+        int low = 0;
+        int high = segments.length - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (segments[middle].baseSeq <= seq) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    private static boolean channelMatches(ByteBuffer in, int offset, byte[] channelBytes) {
+        if (in.getShort(offset + CHANNEL_LENGTH_OFFSET) != channelBytes.length) {
+            return false;
+        }
+        int channelOffset = offset + RECORD_HEADER_SIZE;
+        for (int i = 0; i < channelBytes.length; i++) {
+            if (in.get(channelOffset + i) != channelBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static class Segment {
+
+        private final File file;
+        private final long baseSeq;
+        private final long createdMillis;
+        // only absolute gets and puts, apart from appendBuffer which is only used under the
+        // append lock
+        private final MappedByteBuffer buffer;
+        private final ByteBuffer appendBuffer;
+        // published by lastSeq, the array is replaced when it grows
+        private volatile int[] index = new int[1024];
+        // guarded by the append lock
+        private int position = SEGMENT_HEADER_SIZE;
+        private int recordCount;
+
+        private Segment(File file, long baseSeq, long createdMillis, MappedByteBuffer buffer) {
+            this.file = file;
+            this.baseSeq = baseSeq;
+            this.createdMillis = createdMillis;
+            this.buffer = buffer;
+            appendBuffer = buffer.duplicate();
+        }
+
+        private static Segment create(File file, long baseSeq, int segmentBytes)
+                throws IOException {
+
+            MappedByteBuffer buffer = map(file, segmentBytes);
+            long createdMillis = System.currentTimeMillis();
+            buffer.putLong(0, MAGIC);
+            buffer.putLong(8, createdMillis);
+            return new Segment(file, baseSeq, createdMillis, buffer);
+        }
+
+        // returns null if the file is not a message log segment
+        private static Segment open(File file) throws IOException {
+            String name = file.getName();
+            long baseSeq;
+            try {
+                baseSeq = Long.parseLong(name.substring(0, name.length()
+                        - SEGMENT_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                logger.warn("open(): unexpected file {}", file);
+                return null;
+            }
+            MappedByteBuffer buffer = map(file, (int) file.length());
+            if (buffer.capacity() < SEGMENT_HEADER_SIZE || buffer.getLong(0) != MAGIC) {
+                logger.warn("open(): not a message log segment {}", file);
+                return null;
+            }
+            Segment segment = new Segment(file, baseSeq, buffer.getLong(8), buffer);
+            // find the end, stopping at a record that was never completed
+            while (segment.position + 4 <= buffer.capacity()) {
+                int recordLength = buffer.getInt(segment.position);
+                if (recordLength < RECORD_HEADER_SIZE
+                        || segment.position + recordLength > buffer.capacity()
+                        || buffer.getLong(segment.position + 4)
+                                != baseSeq + segment.recordCount) {
+                    break;
+                }
+                segment.indexRecord();
+                segment.position += recordLength;
+            }
+            return segment;
+        }
+
+        private static MappedByteBuffer map(File file, int size) throws IOException {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+            try {
+                randomAccessFile.setLength(size);
+                // the mapping stays valid after the file is closed
+                return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                        size);
+            } finally {
+                randomAccessFile.close();
+            }
+        }
+
+        // called for each record before position moves past it
+        private void indexRecord() {
+            if (recordCount % INDEX_INTERVAL == 0) {
+                int indexEntry = recordCount / INDEX_INTERVAL;
+                int[] currentIndex = index;
+                if (indexEntry == currentIndex.length) {
+                    currentIndex = Arrays.copyOf(currentIndex, currentIndex.length * 2);
+                }
+                currentIndex[indexEntry] = position;
+                index = currentIndex;
+            }
+            recordCount++;
+        }
+
+        // seq must be in this segment and no later than lastSeq
+        private int offsetOf(long seq) {
+            int ordinal = (int) (seq - baseSeq);
+            int offset = index[ordinal / INDEX_INTERVAL];
+            for (int i = ordinal % INDEX_INTERVAL; i > 0; i--) {
+                offset += buffer.getInt(offset);
+            }
+            return offset;
+        }
+    }
+}
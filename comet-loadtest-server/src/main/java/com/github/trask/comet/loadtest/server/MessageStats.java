@@ -0,0 +1,98 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.comet.loadtest.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latency histograms for the life of a message: accepted on a request thread,
+ * written to a comet connection, then either pinged back or timed out. All lock-free, since they
+ * are recorded on the doMessage / doCometPingback hot path.
+ *
+ * @author Trask Stalnaker
+ */
+class MessageStats {
+
+    private final AtomicLong pingedBackCount = new AtomicLong();
+    private final AtomicLong timedOutCount = new AtomicLong();
+    private final AtomicLong deliveryFailedCount = new AtomicLong();
+    private final LatencyHistogram requestThread = new LatencyHistogram();
+    private final LatencyHistogram acceptToWrite = new LatencyHistogram();
+    private final LatencyHistogram writeToPingback = new LatencyHistogram();
+
+    // time spent on the request thread accepting the message
+    void accepted(long requestThreadNanos) {
+        requestThread.record(requestThreadNanos);
+    }
+
+    void written(long acceptToWriteNanos) {
+        acceptToWrite.record(acceptToWriteNanos);
+    }
+
+    // -1 if the message was written to a comet connection on another node
+    void pingedBack(long writeToPingbackNanos) {
+        pingedBackCount.getAndIncrement();
+        if (writeToPingbackNanos != -1) {
+            writeToPingback.record(writeToPingbackNanos);
+        }
+    }
+
+    // no pingback before the message timeout
+    void timedOut() {
+        timedOutCount.getAndIncrement();
+    }
+
+    // the comet connection could not be written to or completed
+    void deliveryFailed(int messageCount) {
+        deliveryFailedCount.getAndAdd(messageCount);
+    }
+
+    long getPingedBackCount() {
+        return pingedBackCount.get();
+    }
+
+    long getTimedOutCount() {
+        return timedOutCount.get();
+    }
+
+    long getDeliveryFailedCount() {
+        return deliveryFailedCount.get();
+    }
+
+    // each call starts a new interval
+    LatencyHistogram.Snapshot snapshotRequestThread() {
+        return requestThread.snapshot();
+    }
+
+    // each call starts a new interval
+    LatencyHistogram.Snapshot snapshotAcceptToWrite() {
+        return acceptToWrite.snapshot();
+    }
+
+    // each call starts a new interval
+    LatencyHistogram.Snapshot snapshotWriteToPingback() {
+        return writeToPingback.snapshot();
+    }
+
+    void reset() {
+        pingedBackCount.set(0);
+        timedOutCount.set(0);
+        deliveryFailedCount.set(0);
+        requestThread.reset();
+        acceptToWrite.reset();
+        writeToPingback.reset();
+    }
+}
@@ -0,0 +1,191 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.comet.loadtest.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses comet response bodies with raw deflate and a preset dictionary.
+ *
+ * Every comet response is compressed on its own (the client can't keep inflater state across
+ * long-poll responses), which gets little out of a small message, except that the dictionary
+ * gives deflate something to refer back to from the start, so a small message with the same
+ * structure as the dictionary's samples mostly comes out as back references.
+ *
+ * Each thread has its own deflater (reset and re-primed with the dictionary for each response)
+ * and output buffer, so nothing is allocated per response, and the compressed bytes must be
+ * written out before the thread compresses anything else (the same as MessageCodec).
+ *
+ * A compressed body starts with a single marker byte, which no uncompressed body starts with,
+ * rather than being flagged with a response header, since a header would cost about as much as
+ * compressing a small message saves.
+ *
+ * @author Trask Stalnaker
+ */
+final class PayloadCompressor {
+
+    static final byte MARKER = 0;
+
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+
+    // samples of the load test client's json payloads (with the most common parts last, since
+    // deflate codes nearer back references in fewer bits), for production payloads configure a
+    // dictionary made from real samples instead
+    private static final String DEFAULT_DICTIONARY = "{\"type\":\"quote\",\"seq\":"
+            + "4096,\"symbol\":\"ORCL\",\"bid\":31.07,\"ask\":31.09,\"bidSize\":800,"
+            + "\"askSize\":2500,\"exchange\":\"NYSE\",\"status\":\"halted\"}\n"
+            + "{\"type\":\"quote\",\"seq\":1024,\"symbol\":\"GOOG\",\"bid\":592.50,"
+            + "\"ask\":592.62,\"bidSize\":100,\"askSize\":300,\"exchange\":\"ARCA\","
+            + "\"status\":\"closed\"}\n"
+            + "{\"type\":\"quote\",\"seq\":2048,\"symbol\":\"AAPL\",\"bid\":422.18,"
+            + "\"ask\":422.24,\"bidSize\":1200,\"askSize\":700,\"exchange\":\"BATS\","
+            + "\"status\":\"open\"}\n"
+            + "{\"type\":\"quote\",\"seq\":8192,\"symbol\":\"MSFT\",\"bid\":26.41,"
+            + "\"ask\":26.43,\"bidSize\":300,\"askSize\":1500,\"exchange\":\"NASDAQ\","
+            + "\"status\":\"open\"}";
+
+    private final byte[] dictionary;
+    private final long dictionaryId;
+    private final int level;
+
+    private final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            // raw deflate, the zlib header and checksum would be 10 more bytes per response
+            return new Deflater(level, true);
+        }
+    };
+    private final ThreadLocal<Output> outputs = new ThreadLocal<Output>() {
+        @Override
+        protected Output initialValue() {
+            return new Output();
+        }
+    };
+
+    private final AtomicLong compressedCount = new AtomicLong();
+    private final AtomicLong uncompressedBytes = new AtomicLong();
+    private final AtomicLong compressedBytes = new AtomicLong();
+    private final AtomicLong compressNanos = new AtomicLong();
+
+    PayloadCompressor(byte[] dictionary, int level) {
+        this.dictionary = dictionary;
+        this.level = level;
+        Adler32 adler32 = new Adler32();
+        adler32.update(dictionary);
+        dictionaryId = adler32.getValue();
+    }
+
+    static byte[] defaultDictionary() {
+        try {
+            return DEFAULT_DICTIONARY.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static byte[] readDictionary(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    byte[] getDictionary() {
+        return dictionary;
+    }
+
+    // the dictionary's adler-32, which a client sends to ask for compression, so that a client
+    // holding a different dictionary (e.g. from before a restart) is sent uncompressed bodies
+    long getDictionaryId() {
+        return dictionaryId;
+    }
+
+    // the calling thread's output, valid until its next compress()
+    Output compress(byte[] buffer, int length) {
+        long startNanos = System.nanoTime();
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setDictionary(dictionary);
+        deflater.setInput(buffer, 0, length);
+        deflater.finish();
+        Output output = outputs.get();
+        output.length = 0;
+        output.buffer[output.length++] = MARKER;
+        while (!deflater.finished()) {
+            if (output.length == output.buffer.length) {
+                byte[] newBuffer = new byte[output.buffer.length * 2];
+                System.arraycopy(output.buffer, 0, newBuffer, 0, output.length);
+                output.buffer = newBuffer;
+            }
+            output.length += deflater.deflate(output.buffer, output.length,
+                    output.buffer.length - output.length);
+        }
+        compressNanos.getAndAdd(System.nanoTime() - startNanos);
+        compressedCount.getAndIncrement();
+        uncompressedBytes.getAndAdd(length);
+        compressedBytes.getAndAdd(output.length);
+        return output;
+    }
+
+    long getCompressedCount() {
+        return compressedCount.get();
+    }
+
+    long getUncompressedBytes() {
+        return uncompressedBytes.get();
+    }
+
+    // including the marker bytes
+    long getCompressedBytes() {
+        return compressedBytes.get();
+    }
+
+    long getCompressNanos() {
+        return compressNanos.get();
+    }
+
+    static class Output {
+
+        private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+        private int length;
+
+        private Output() {}
+
+        byte[] getBuffer() {
+            return buffer;
+        }
+
+        int getLength() {
+            return length;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.comet.loadtest.server;
+
+/**
+ * A message that has been accepted, queued until it is written to a comet connection.
+ *
+ * @author Trask Stalnaker
+ */
+class QueuedMessage {
+
+    private final long messageId;
+    private final String payload;
+    private final long queuedNanos = System.nanoTime();
+    private volatile long writtenNanos;
+    // set once its message request has timed out, after which there is nobody to pingback to
+    private volatile boolean cancelled;
+    // the next message in the same delivery, only touched by whoever owns the delivery
+    QueuedMessage next;
+
+    QueuedMessage(long messageId, String payload) {
+        this.messageId = messageId;
+        this.payload = payload;
+    }
+
+    long getMessageId() {
+        return messageId;
+    }
+
+    String getPayload() {
+        return payload;
+    }
+
+    long getQueuedNanos() {
+        return queuedNanos;
+    }
+
+    void written() {
+        writtenNanos = System.nanoTime();
+    }
+
+    long getWrittenNanos() {
+        return writtenNanos;
+    }
+
+    void cancel() {
+        cancelled = true;
+    }
+
+    boolean isCancelled() {
+        return cancelled;
+    }
+}
@@ -0,0 +1,148 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.comet.loadtest.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free multi-producer multi-consumer queue (see Vyukov's bounded MPMC queue).
+ *
+ * Each slot carries a sequence number that says whether it is ready to be written (sequence ==
+ * position) or ready to be read (sequence == position + 1), so producers and consumers only
+ * contend on their own counter and never allocate.
+ *
+ * @author Trask Stalnaker
+ */
+class RingBuffer<E> {
+
+    private final AtomicReferenceArray<E> elements;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    // next position to poll from
+    private final AtomicLong head = new AtomicLong();
+    // next position to offer to
+    private final AtomicLong tail = new AtomicLong();
+
+    RingBuffer(int minCapacity) {
+        // with a single slot "ready to write" at one lap and "ready to read" at the previous lap
+        // have the same sequence number
+        int capacity = 2;
+        while (capacity < minCapacity) {
+            capacity <<= 1;
+        }
+        elements = new AtomicReferenceArray<E>(capacity);
+        sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+        mask = capacity - 1;
+    }
+
+    // returns false if the ring buffer is full
+    boolean offer(E element) {
+        long position = tail.get();
+        while (true) {
+            int index = (int) (position & mask);
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    elements.set(index, element);
+                    // publish
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                // the slot still holds the element from one lap ago
+                return false;
+            } else {
+                // another producer claimed this position
+                position = tail.get();
+            }
+        }
+    }
+
+    // returns null if the ring buffer is empty (or the next element is not published yet)
+    E poll() {
+        long position = head.get();
+        while (true) {
+            int index = (int) (position & mask);
+            long difference = sequences.get(index) - (position + 1);
+            if (difference == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    E element = elements.get(index);
+                    elements.set(index, null);
+                    // hand the slot back to producers for the next lap
+                    sequences.set(index, position + mask + 1);
+                    return element;
+                }
+                position = head.get();
+            } else if (difference < 0) {
+                return null;
+            } else {
+                // another consumer claimed this position
+                position = head.get();
+            }
+        }
+    }
+
+    // returns null if the ring buffer is empty (or the next element is not published yet)
+    E peek() {
+        long position = head.get();
+        int index = (int) (position & mask);
+        if (sequences.get(index) != position + 1) {
+            return null;
+        }
+        E element = elements.get(index);
+        // the element can only have changed if it was polled in the meantime
+        return head.get() == position ? element : null;
+    }
+
+    // polls the next element only if it is the given element (e.g. the one returned by peek())
+    boolean pollIfNext(E element) {
+        long position = head.get();
+        int index = (int) (position & mask);
+        if (sequences.get(index) != position + 1 || elements.get(index) != element
+                || !head.compareAndSet(position, position + 1)) {
+            return false;
+        }
+        elements.set(index, null);
+        // hand the slot back to producers for the next lap
+        sequences.set(index, position + mask + 1);
+        return true;
+    }
+
+    // approximate under concurrent offer/poll, includes claimed but not yet published elements
+    int size() {
+        long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(size, mask + 1));
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    void clear() {
+        while (poll() != null) {
+        }
+    }
+}
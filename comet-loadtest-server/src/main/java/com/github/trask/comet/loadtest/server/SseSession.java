@@ -0,0 +1,118 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.comet.loadtest.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Server-sent events session, which outlives the individual event streams of one client so that
+ * a client reconnecting with Last-Event-ID can be sent the events it missed.
+ *
+ * Event ids are "sessionId.seq", with seq starting at 1 and increasing by one per event. The
+ * most recent events are kept (already encoded) in a fixed size ring, events that have fallen
+ * out of the ring cannot be replayed.
+ *
+ * @author Trask Stalnaker
+ */
+class SseSession<T> {
+
+    private static final byte[] DATA_FIELD = { 'd', 'a', 't', 'a', ':', ' ' };
+
+    private final long sessionId;
+    private final byte[][] events;
+    private final int mask;
+
+    // guarded by this
+    private long lastSeq;
+    private T stream;
+
+    SseSession(long sessionId, int minReplayWindow) {
+        int replayWindow = 1;
+        while (replayWindow < minReplayWindow) {
+            replayWindow <<= 1;
+        }
+        this.sessionId = sessionId;
+        events = new byte[replayWindow][];
+        mask = replayWindow - 1;
+    }
+
+    long getSessionId() {
+        return sessionId;
+    }
+
+    // records the event (the first length bytes of data) and returns its seq
+    synchronized long append(byte[] data, int length) throws UnsupportedEncodingException {
+        long seq = ++lastSeq;
+        events[(int) (seq & mask)] = encode(sessionId + "." + seq, data, length);
+        return seq;
+    }
+
+    synchronized long getLastSeq() {
+        return lastSeq;
+    }
+
+    // the encoded events after afterSeq up to and including toSeq, starting from the oldest event
+    // still in the ring if some of them have already fallen out
+    synchronized byte[] eventsBetween(long afterSeq, long toSeq) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (long seq = Math.max(afterSeq + 1, oldestSeq()); seq <= toSeq; seq++) {
+            byte[] event = events[(int) (seq & mask)];
+            out.write(event, 0, event.length);
+        }
+        return out.toByteArray();
+    }
+
+    // the number of events after afterSeq that have already fallen out of the ring
+    synchronized long missedSince(long afterSeq) {
+        return Math.max(0, oldestSeq() - afterSeq - 1);
+    }
+
+    // makes the stream the current stream of the session, returning the one it replaces
+    synchronized T supersede(T newStream) {
+        T oldStream = stream;
+        stream = newStream;
+        return oldStream;
+    }
+
+    synchronized boolean isCurrent(T stream) {
+        return this.stream == stream;
+    }
+
+    private long oldestSeq() {
+        return Math.max(1, lastSeq - events.length + 1);
+    }
+
+    // multi-line data (e.g. coalesced messages) is sent as one data field per line
+    private static byte[] encode(String eventId, byte[] data, int length)
+            throws UnsupportedEncodingException {
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length + 32);
+        byte[] idField = ("id: " + eventId + "\n").getBytes("UTF-8");
+        out.write(idField, 0, idField.length);
+        out.write(DATA_FIELD, 0, DATA_FIELD.length);
+        for (int i = 0; i < length; i++) {
+            byte b = data[i];
+            out.write(b);
+            if (b == '\n') {
+                out.write(DATA_FIELD, 0, DATA_FIELD.length);
+            }
+        }
+        out.write('\n');
+        out.write('\n');
+        return out.toByteArray();
+    }
+}
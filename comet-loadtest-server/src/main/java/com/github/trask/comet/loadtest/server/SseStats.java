@@ -0,0 +1,87 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.comet.loadtest.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for server-sent event streams, used to see what reconnects cost: how many event
+ * streams were resumed (versus started from scratch) and how many events had to be replayed.
+ *
+ * @author Trask Stalnaker
+ */
+class SseStats {
+
+    private final AtomicLong streamCount = new AtomicLong();
+    private final AtomicLong sessionCount = new AtomicLong();
+    private final AtomicLong resumedCount = new AtomicLong();
+    private final AtomicLong unknownSessionCount = new AtomicLong();
+    private final AtomicLong replayedEventCount = new AtomicLong();
+    private final AtomicLong missedEventCount = new AtomicLong();
+
+    void streamStarted() {
+        streamCount.getAndIncrement();
+    }
+
+    void sessionStarted() {
+        sessionCount.getAndIncrement();
+    }
+
+    void resumed(int replayedEvents, long missedEvents) {
+        resumedCount.getAndIncrement();
+        replayedEventCount.getAndAdd(replayedEvents);
+        missedEventCount.getAndAdd(missedEvents);
+    }
+
+    // Last-Event-ID refers to a session that has expired (or was never started)
+    void unknownSession() {
+        unknownSessionCount.getAndIncrement();
+    }
+
+    long getStreamCount() {
+        return streamCount.get();
+    }
+
+    long getSessionCount() {
+        return sessionCount.get();
+    }
+
+    long getResumedCount() {
+        return resumedCount.get();
+    }
+
+    long getUnknownSessionCount() {
+        return unknownSessionCount.get();
+    }
+
+    long getReplayedEventCount() {
+        return replayedEventCount.get();
+    }
+
+    // events that had already fallen out of the replay window by the time the client resumed
+    long getMissedEventCount() {
+        return missedEventCount.get();
+    }
+
+    void reset() {
+        streamCount.set(0);
+        sessionCount.set(0);
+        resumedCount.set(0);
+        unknownSessionCount.set(0);
+        replayedEventCount.set(0);
+        missedEventCount.set(0);
+    }
+}
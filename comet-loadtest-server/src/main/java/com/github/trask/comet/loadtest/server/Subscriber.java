@@ -0,0 +1,35 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.comet.loadtest.server;
+
+import java.io.IOException;
+
+/**
+ * A comet connection that messages can be delivered to, either a long-poll connection (one
+ * delivery, then the response is complete) or a streaming connection (any number of deliveries,
+ * each written as a length-delimited chunk).
+ *
+ * Subscribers are only delivered to after being polled (or drained) from their pool, so there is
+ * never more than one thread writing to a subscriber at a time.
+ *
+ * @author Trask Stalnaker
+ */
+interface Subscriber {
+
+    // the first length bytes of the buffer are the payload, the buffer may be reused once this
+    // returns, see MessageCodec
+    void deliver(byte[] buffer, int length) throws IOException;
+}
@@ -0,0 +1,526 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.comet.loadtest.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Broker between comet server nodes over plain tcp, every node connects out to every other node
+ * (given as host:port peers) and accepts their connections in turn.
+ *
+ * Each node only writes to its outgoing connections and only reads from its incoming ones, so
+ * each connection has a single writer thread and a single reader thread. Frames are queued for
+ * the writer thread, which writes whatever has queued up since its last flush (up to
+ * MAX_BATCH_BYTES) and then flushes once, so that under load many frames share each write.
+ *
+ * Each frame is its length (not counting the length itself), a frame type and the frame's
+ * fields. Both ends of a new connection first send a HELLO with their node id, then the
+ * connecting node sends a SUBSCRIBE for each of its channels.
+ *
+ * Strings are their utf-8 length followed by their utf-8 bytes (unlike writeUTF(), which can't
+ * write more than 65535 bytes). Frames are built in a buffer that belongs to the calling thread,
+ * so the only copy made is the queued frame itself.
+ *
+ * Messages and pingbacks for a node that isn't connected (or that has too many frames queued
+ * already) are refused, so that the caller can deliver the message itself or fail the message
+ * request. Frames that are already queued when a connection fails are written once it
+ * reconnects, except for the SUBSCRIBEs, which are all sent again anyway.
+ *
+ * @author Trask Stalnaker
+ */
+class TcpMessageBroker implements MessageBroker {
+
+    private static final Logger logger = LoggerFactory.getLogger(TcpMessageBroker.class);
+
+    // int nodeId
+    private static final byte HELLO = 1;
+    // string channel
+    private static final byte SUBSCRIBE = 2;
+    // string channel, long messageId, string payload
+    private static final byte MESSAGE = 3;
+    // long messageId, string clientMessage
+    private static final byte PINGBACK = 4;
+
+    private static final int MAX_QUEUED_FRAMES = 65536;
+    private static final int MAX_BATCH_BYTES = 65536;
+    private static final int RECONNECT_MILLIS = 1000;
+    private static final int INITIAL_FRAME_BUFFER_SIZE = 1024;
+
+    private static final ThreadLocal<FrameEncoder> frameEncoders =
+            new ThreadLocal<FrameEncoder>() {
+                @Override
+                protected FrameEncoder initialValue() {
+                    return new FrameEncoder();
+                }
+            };
+
+    private final int nodeId;
+    private final int port;
+    private final List<InetSocketAddress> peerAddresses;
+
+    private final Set<String> localChannels =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    // the other nodes subscribed to each channel, replaced (not modified) under the lock
+    private final ConcurrentMap<String, int[]> remoteSubscribers =
+            new ConcurrentHashMap<String, int[]>();
+    private final Object remoteSubscribersLock = new Object();
+    private final AtomicInteger nextNodeIndex = new AtomicInteger();
+
+    private final List<OutgoingLink> outgoingLinks = new CopyOnWriteArrayList<OutgoingLink>();
+    // only the links that have completed their HELLO
+    private final AtomicReferenceArray<OutgoingLink> outgoingLinksByNodeId =
+            new AtomicReferenceArray<OutgoingLink>(MAX_NODES);
+    private final List<Socket> incomingSockets = new CopyOnWriteArrayList<Socket>();
+    private final ThreadFactory threadFactory =
+            new DaemonThreadFactory("CometServer-Broker-");
+
+    private volatile Listener listener;
+    private volatile ServerSocket serverSocket;
+    private volatile boolean running;
+
+    TcpMessageBroker(int nodeId, int port, List<InetSocketAddress> peerAddresses) {
+        if (nodeId < 0 || nodeId >= MAX_NODES) {
+            throw new IllegalArgumentException("Node id must be between 0 and "
+                    + (MAX_NODES - 1));
+        }
+        this.nodeId = nodeId;
+        this.port = port;
+        this.peerAddresses = peerAddresses;
+    }
+
+    // comma separated host:port
+    static List<InetSocketAddress> parsePeerAddresses(String peers) {
+        List<InetSocketAddress> peerAddresses = new ArrayList<InetSocketAddress>();
+        for (String peer : peers.split(",")) {
+            peer = peer.trim();
+            if (peer.length() > 0) {
+                int index = peer.lastIndexOf(':');
+                peerAddresses.add(new InetSocketAddress(peer.substring(0, index),
+                        Integer.parseInt(peer.substring(index + 1))));
+            }
+        }
+        return peerAddresses;
+    }
+
+    @Override
+    public void start(Listener listener) throws IOException {
+        this.listener = listener;
+        running = true;
+        serverSocket = new ServerSocket(port);
+        threadFactory.newThread(new Acceptor()).start();
+        for (InetSocketAddress peerAddress : peerAddresses) {
+            OutgoingLink link = new OutgoingLink(peerAddress);
+            outgoingLinks.add(link);
+            threadFactory.newThread(link).start();
+        }
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        closeQuietly(serverSocket);
+        for (OutgoingLink link : outgoingLinks) {
+            link.stop();
+        }
+        for (Socket socket : incomingSockets) {
+            closeQuietly(socket);
+        }
+    }
+
+    @Override
+    public int getNodeId() {
+        return nodeId;
+    }
+
+    @Override
+    public void subscribe(String channel) {
+        if (!localChannels.contains(channel) && localChannels.add(channel)) {
+            byte[] frame = subscribeFrame(channel);
+            for (OutgoingLink link : outgoingLinks) {
+                link.offer(frame);
+            }
+        }
+    }
+
+    // round robin over the subscribed nodes, including this one
+    @Override
+    public int selectNode(String channel) {
+        int[] nodeIds = remoteSubscribers.get(channel);
+        if (nodeIds == null || nodeIds.length == 0) {
+            return nodeId;
+        }
+        int count = localChannels.contains(channel) ? nodeIds.length + 1 : nodeIds.length;
+        int index = (nextNodeIndex.getAndIncrement() & Integer.MAX_VALUE) % count;
+        return index < nodeIds.length ? nodeIds[index] : nodeId;
+    }
+
+    @Override
+    public boolean publish(int nodeId, String channel, long messageId, String payload) {
+        return send(nodeId, frameEncoders.get().start(MESSAGE).writeString(channel)
+                .writeLong(messageId).writeString(payload).toFrame());
+    }
+
+    @Override
+    public boolean routePingback(int nodeId, long messageId, String clientMessage) {
+        return send(nodeId, frameEncoders.get().start(PINGBACK).writeLong(messageId)
+                .writeString(clientMessage).toFrame());
+    }
+
+    private boolean send(int toNodeId, byte[] frame) {
+        OutgoingLink link = toNodeId < MAX_NODES ? outgoingLinksByNodeId.get(toNodeId) : null;
+        if (link == null) {
+            logger.debug("send(): not connected to node {}", toNodeId);
+            return false;
+        }
+        if (!link.offer(frame)) {
+            logger.debug("send(): too many frames queued for node {}", toNodeId);
+            return false;
+        }
+        return true;
+    }
+
+    private static byte[] subscribeFrame(String channel) {
+        return frameEncoders.get().start(SUBSCRIBE).writeString(channel).toFrame();
+    }
+
+    private void addRemoteSubscriber(String channel, int remoteNodeId) {
+        synchronized (remoteSubscribersLock) {
+            int[] nodeIds = remoteSubscribers.get(channel);
+            if (nodeIds == null) {
+                remoteSubscribers.put(channel, new int[] { remoteNodeId });
+                return;
+            }
+            for (int id : nodeIds) {
+                if (id == remoteNodeId) {
+                    return;
+                }
+            }
+            int[] newNodeIds = new int[nodeIds.length + 1];
+            System.arraycopy(nodeIds, 0, newNodeIds, 0, nodeIds.length);
+            newNodeIds[nodeIds.length] = remoteNodeId;
+            remoteSubscribers.put(channel, newNodeIds);
+        }
+    }
+
+    // the node has disconnected, it resubscribes when it reconnects
+    private void removeRemoteSubscriber(int remoteNodeId) {
+        synchronized (remoteSubscribersLock) {
+            for (Map.Entry<String, int[]> entry : remoteSubscribers.entrySet()) {
+                int[] nodeIds = entry.getValue();
+                int[] newNodeIds = new int[nodeIds.length];
+                int count = 0;
+                for (int id : nodeIds) {
+                    if (id != remoteNodeId) {
+                        newNodeIds[count++] = id;
+                    }
+                }
+                if (count < nodeIds.length) {
+                    int[] trimmed = new int[count];
+                    System.arraycopy(newNodeIds, 0, trimmed, 0, count);
+                    entry.setValue(trimmed);
+                }
+            }
+        }
+    }
+
+    private static void writeFrame(OutputStream out, byte[] frame) throws IOException {
+        out.write(frame.length >>> 24);
+        out.write(frame.length >>> 16);
+        out.write(frame.length >>> 8);
+        out.write(frame.length);
+        out.write(frame);
+    }
+
+    private static ByteBuffer readFrame(DataInputStream in) throws IOException {
+        byte[] frame = new byte[in.readInt()];
+        in.readFully(frame);
+        return ByteBuffer.wrap(frame);
+    }
+
+    private static String readString(ByteBuffer frame) throws IOException {
+        int length = frame.getInt();
+        if (length < 0 || length > frame.remaining()) {
+            throw new IOException("Invalid string length " + length);
+        }
+        String s = new String(frame.array(), frame.position(), length, "UTF-8");
+        frame.position(frame.position() + length);
+        return s;
+    }
+
+    private static void closeQuietly(ServerSocket serverSocket) {
+        if (serverSocket != null) {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                logger.debug(e.getMessage(), e);
+            }
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            logger.debug(e.getMessage(), e);
+        }
+    }
+
+    private byte[] helloFrame() {
+        return frameEncoders.get().start(HELLO).writeInt(nodeId).toFrame();
+    }
+
+    private static int readHello(DataInputStream in) throws IOException {
+        ByteBuffer frame = readFrame(in);
+        if (frame.get() != HELLO) {
+            throw new IOException("Expected HELLO frame");
+        }
+        return frame.getInt();
+    }
+
+    private class Acceptor implements Runnable {
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    socket.setTcpNoDelay(true);
+                    incomingSockets.add(socket);
+                    threadFactory.newThread(new IncomingLink(socket)).start();
+                } catch (IOException e) {
+                    if (running) {
+                        logger.error(e.getMessage(), e);
+                    }
+                }
+            }
+        }
+    }
+
+    // reads the frames another node sends to this node
+    private class IncomingLink implements Runnable {
+        private final Socket socket;
+        private IncomingLink(Socket socket) {
+            this.socket = socket;
+        }
+        @Override
+        public void run() {
+            int remoteNodeId = -1;
+            try {
+                DataInputStream in = new DataInputStream(
+                        new BufferedInputStream(socket.getInputStream(), MAX_BATCH_BYTES));
+                remoteNodeId = readHello(in);
+                OutputStream out = socket.getOutputStream();
+                writeFrame(out, helloFrame());
+                out.flush();
+                logger.info("run(): node {} connected", remoteNodeId);
+                while (running) {
+                    ByteBuffer frame = readFrame(in);
+                    byte type = frame.get();
+                    if (type == SUBSCRIBE) {
+                        addRemoteSubscriber(readString(frame), remoteNodeId);
+                    } else if (type == MESSAGE) {
+                        String channel = readString(frame);
+                        long messageId = frame.getLong();
+                        listener.messagePublished(channel, messageId, readString(frame));
+                    } else if (type == PINGBACK) {
+                        long messageId = frame.getLong();
+                        listener.pingbackRouted(messageId, readString(frame));
+                    } else {
+                        throw new IOException("Unexpected frame type " + type);
+                    }
+                }
+            } catch (EOFException e) {
+                logger.info("run(): node {} disconnected", remoteNodeId);
+            } catch (IOException e) {
+                if (running) {
+                    logger.warn("run(): node {}: {}", remoteNodeId, e.getMessage());
+                }
+            } finally {
+                incomingSockets.remove(socket);
+                closeQuietly(socket);
+                if (remoteNodeId != -1) {
+                    removeRemoteSubscriber(remoteNodeId);
+                }
+            }
+        }
+    }
+
+    // writes this node's frames to another node, reconnecting whenever the connection fails
+    private class OutgoingLink implements Runnable {
+        private final InetSocketAddress address;
+        private final BlockingQueue<byte[]> frames =
+                new LinkedBlockingQueue<byte[]>(MAX_QUEUED_FRAMES);
+        private volatile Socket socket;
+        private volatile Thread thread;
+        private OutgoingLink(InetSocketAddress address) {
+            this.address = address;
+        }
+        private boolean offer(byte[] frame) {
+            return frames.offer(frame);
+        }
+        private void stop() {
+            Socket socket = this.socket;
+            if (socket != null) {
+                closeQuietly(socket);
+            }
+            Thread thread = this.thread;
+            if (thread != null) {
+                thread.interrupt();
+            }
+        }
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
+            while (running) {
+                int remoteNodeId = -1;
+                try {
+                    socket = new Socket(address.getAddress(), address.getPort());
+                    socket.setTcpNoDelay(true);
+                    OutputStream out =
+                            new BufferedOutputStream(socket.getOutputStream(), MAX_BATCH_BYTES);
+                    writeFrame(out, helloFrame());
+                    out.flush();
+                    remoteNodeId = readHello(new DataInputStream(socket.getInputStream()));
+                    // the messages and pingbacks still queued from the previous connection are
+                    // written after the subscriptions, which are all sent again below
+                    removeSubscribeFrames();
+                    for (String channel : localChannels) {
+                        writeFrame(out, subscribeFrame(channel));
+                    }
+                    out.flush();
+                    outgoingLinksByNodeId.set(remoteNodeId, this);
+                    logger.info("run(): connected to node {} at {}", remoteNodeId, address);
+                    writeFrames(out);
+                } catch (InterruptedException e) {
+                    // stopped
+                } catch (IOException e) {
+                    if (running) {
+                        logger.warn("run(): node at {}: {}", address, e.getMessage());
+                    }
+                } finally {
+                    if (remoteNodeId != -1) {
+                        outgoingLinksByNodeId.compareAndSet(remoteNodeId, this, null);
+                    }
+                    if (socket != null) {
+                        closeQuietly(socket);
+                    }
+                }
+                if (running) {
+                    try {
+                        Thread.sleep(RECONNECT_MILLIS);
+                    } catch (InterruptedException e) {
+                        // stopped
+                    }
+                }
+            }
+        }
+        private void removeSubscribeFrames() {
+            for (Iterator<byte[]> i = frames.iterator(); i.hasNext();) {
+                if (i.next()[0] == SUBSCRIBE) {
+                    i.remove();
+                }
+            }
+        }
+        private void writeFrames(OutputStream out) throws IOException, InterruptedException {
+            while (running) {
+                byte[] frame = frames.take();
+                int batchBytes = 0;
+                do {
+                    writeFrame(out, frame);
+                    batchBytes += frame.length + 4;
+                } while (batchBytes < MAX_BATCH_BYTES && (frame = frames.poll()) != null);
+                out.flush();
+            }
+        }
+    }
+
+    // builds a frame in a buffer that is reused by the calling thread's next frame
+    private static class FrameEncoder {
+        private byte[] buffer = new byte[INITIAL_FRAME_BUFFER_SIZE];
+        private int length;
+        private FrameEncoder start(byte type) {
+            length = 0;
+            buffer[length++] = type;
+            return this;
+        }
+        private FrameEncoder writeInt(int value) {
+            ensureCapacity(4);
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                buffer[length++] = (byte) (value >>> shift);
+            }
+            return this;
+        }
+        private FrameEncoder writeLong(long value) {
+            ensureCapacity(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buffer[length++] = (byte) (value >>> shift);
+            }
+            return this;
+        }
+        private FrameEncoder writeString(String s) {
+            byte[] bytes;
+            try {
+                bytes = s.getBytes("UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                // every jvm supports utf-8
+                throw new IllegalStateException(e);
+            }
+            writeInt(bytes.length);
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, buffer, length, bytes.length);
+            length += bytes.length;
+            return this;
+        }
+        private byte[] toFrame() {
+            byte[] frame = new byte[length];
+            System.arraycopy(buffer, 0, frame, 0, length);
+            return frame;
+        }
+        private void ensureCapacity(int additional) {
+            if (length + additional > buffer.length) {
+                byte[] newBuffer = new byte[Math.max(buffer.length * 2, length + additional)];
+                System.arraycopy(buffer, 0, newBuffer, 0, length);
+                buffer = newBuffer;
+            }
+        }
+    }
+}
@@ -0,0 +1,269 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.comet.loadtest.server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hashed timing wheel (see Varghese and Lauck) that owns the expiry of parked comet connections
+ * and pending messages, instead of relying on the container's per-AsyncContext timeout.
+ *
+ * schedule() and Timeout.cancel() are both O(1) and never block: scheduled timeouts are handed
+ * to the wheel thread through a queue, and cancelled timeouts are only unlinked from their
+ * bucket the next time the wheel thread passes over it.
+ *
+ * Expired tasks are handed to a small pool of expiry threads rather than run on the wheel thread,
+ * since they do i/o (e.g. writing TIMEOUT and completing the async request), which during a
+ * timeout storm would otherwise hold up the ticks after it.
+ *
+ * cancelAll() cancels every outstanding timeout at once (e.g. when the servlet is destroyed), so
+ * that a timeout can't fire against state that has since been reset.
+ *
+ * The number of timeouts that fired in each of the most recent ticks is kept so that timeout
+ * storms (and whether jitter is flattening them) can be observed.
+ *
+ * @author Trask Stalnaker
+ */
+class TimingWheel {
+
+    private static final Logger logger = LoggerFactory.getLogger(TimingWheel.class);
+
+    private static final int PENDING = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    private final long tickNanos;
+    private final Bucket[] buckets;
+    private final int mask;
+    private final Queue<Timeout> scheduledTimeouts = new ConcurrentLinkedQueue<Timeout>();
+    private final long startNanos;
+    private final ExecutorService expiryExecutor;
+    // bumped by cancelAll(), timeouts scheduled before that are treated as cancelled
+    private final AtomicInteger epoch = new AtomicInteger();
+
+    private final AtomicIntegerArray expirationsPerTick;
+    private final AtomicLong completedTicks = new AtomicLong();
+    private final AtomicLong totalExpirations = new AtomicLong();
+    private final AtomicInteger peakExpirationsPerTick = new AtomicInteger();
+
+    // only accessed by the wheel thread
+    private long tick;
+
+    TimingWheel(long tickMillis, int minBuckets, int historyTicks, int expiryThreads) {
+        tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        int nBuckets = 1;
+        while (nBuckets < minBuckets) {
+            nBuckets <<= 1;
+        }
+        buckets = new Bucket[nBuckets];
+        for (int i = 0; i < nBuckets; i++) {
+            buckets[i] = new Bucket();
+        }
+        mask = nBuckets - 1;
+        expirationsPerTick = new AtomicIntegerArray(historyTicks);
+        startNanos = System.nanoTime();
+        expiryExecutor = Executors.newFixedThreadPool(expiryThreads,
+                new DaemonThreadFactory("CometServer-Expiry-"));
+        Thread thread = new Thread(new Worker(), "CometServer-TimingWheel");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    Timeout schedule(Runnable task, long delayMillis) {
+        Timeout timeout = new Timeout(task,
+                System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis), epoch);
+        scheduledTimeouts.add(timeout);
+        return timeout;
+    }
+
+    // the cancelled timeouts are unlinked as the wheel thread passes over their buckets, and an
+    // expired task that hasn't started running yet is skipped
+    void cancelAll() {
+        epoch.getAndIncrement();
+    }
+
+    long getTickMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(tickNanos);
+    }
+
+    long getTotalExpirations() {
+        return totalExpirations.get();
+    }
+
+    int getPeakExpirationsPerTick() {
+        return peakExpirationsPerTick.get();
+    }
+
+    // oldest tick first
+    int[] getRecentExpirationsPerTick() {
+        int historyTicks = expirationsPerTick.length();
+        long completed = completedTicks.get();
+        int n = (int) Math.min(completed, historyTicks);
+        int[] recent = new int[n];
+        for (int i = 0; i < n; i++) {
+            recent[i] = expirationsPerTick.get((int) ((completed - n + i) % historyTicks));
+        }
+        return recent;
+    }
+
+    private void transferScheduledTimeouts() {
+        Timeout timeout;
+        while ((timeout = scheduledTimeouts.poll()) != null) {
+            if (timeout.state.get() != PENDING || timeout.isStale()) {
+                continue;
+            }
+            long deadlineTick = Math.max((timeout.deadlineNanos - startNanos) / tickNanos, tick);
+            timeout.remainingRounds = (deadlineTick - tick) / buckets.length;
+            buckets[(int) (deadlineTick & mask)].add(timeout);
+        }
+    }
+
+    private void recordExpirations(int expirations) {
+        int historyTicks = expirationsPerTick.length();
+        expirationsPerTick.set((int) (tick % historyTicks), expirations);
+        completedTicks.set(tick + 1);
+        totalExpirations.getAndAdd(expirations);
+        if (expirations > peakExpirationsPerTick.get()) {
+            peakExpirationsPerTick.set(expirations);
+        }
+    }
+
+    static class Timeout {
+        private final Runnable task;
+        private final long deadlineNanos;
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        private final AtomicInteger wheelEpoch;
+        private final int epoch;
+        // only accessed by the wheel thread
+        private long remainingRounds;
+        private Timeout next;
+        private Timeout(Runnable task, long deadlineNanos, AtomicInteger wheelEpoch) {
+            this.task = task;
+            this.deadlineNanos = deadlineNanos;
+            this.wheelEpoch = wheelEpoch;
+            epoch = wheelEpoch.get();
+        }
+        // returns false if the timeout has already expired (or been cancelled)
+        boolean cancel() {
+            return state.compareAndSet(PENDING, CANCELLED);
+        }
+        // scheduled before the last cancelAll()
+        private boolean isStale() {
+            return epoch != wheelEpoch.get();
+        }
+    }
+
+    // singly linked list of timeouts, only accessed by the wheel thread
+    private class Bucket {
+        private Timeout head;
+        private Timeout tail;
+        private void add(Timeout timeout) {
+            timeout.next = null;
+            if (head == null) {
+                head = timeout;
+            } else {
+                tail.next = timeout;
+            }
+            tail = timeout;
+        }
+        // returns the number of timeouts that expired
+        private int expire() {
+            int expirations = 0;
+            Timeout prev = null;
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                boolean unlink;
+                if (timeout.state.get() == CANCELLED || timeout.isStale()) {
+                    unlink = true;
+                } else if (timeout.remainingRounds <= 0) {
+                    unlink = true;
+                    if (timeout.state.compareAndSet(PENDING, EXPIRED)) {
+                        expirations++;
+                        expiryExecutor.execute(new Expiry(timeout));
+                    }
+                } else {
+                    unlink = false;
+                    timeout.remainingRounds--;
+                }
+                if (unlink) {
+                    if (prev == null) {
+                        head = next;
+                    } else {
+                        prev.next = next;
+                    }
+                    if (next == null) {
+                        tail = prev;
+                    }
+                    timeout.next = null;
+                } else {
+                    prev = timeout;
+                }
+                timeout = next;
+            }
+            return expirations;
+        }
+    }
+
+    // runs on an expiry thread
+    private static class Expiry implements Runnable {
+        private final Timeout timeout;
+        private Expiry(Timeout timeout) {
+            this.timeout = timeout;
+        }
+        @Override
+        public void run() {
+            if (timeout.isStale()) {
+                return;
+            }
+            try {
+                timeout.task.run();
+            } catch (Throwable t) {
+                logger.error(t.getMessage(), t);
+            }
+        }
+    }
+
+    private class Worker implements Runnable {
+        @Override
+        public void run() {
+            while (true) {
+                long sleepNanos = startNanos + (tick + 1) * tickNanos - System.nanoTime();
+                if (sleepNanos > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                    } catch (InterruptedException e) {
+                        logger.error(e.getMessage(), e);
+                        return;
+                    }
+                }
+                transferScheduledTimeouts();
+                recordExpirations(buckets[(int) (tick & mask)].expire());
+                tick++;
+            }
+        }
+    }
+}
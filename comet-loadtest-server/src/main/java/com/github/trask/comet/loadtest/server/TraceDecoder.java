@@ -0,0 +1,158 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.comet.loadtest.server;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Offline decoder for EventTrace dumps (from /trace, or the traceFile written on shutdown), that
+ * rebuilds the timeline of each message (and optionally of each comet connection) from the
+ * events of all threads.
+ *
+ * Usage: java -cp WEB-INF/classes com.github.trask.comet.loadtest.server.TraceDecoder
+ * <dump file> [--connections]
+ *
+ * Each timeline is printed on one line, starting with the wall clock time of its first event,
+ * followed by each event's offset in microseconds from the first event and the thread that
+ * recorded it. Messages that neither completed nor timed out within the trace are listed as
+ * stalled at the end.
+ *
+ * @author Trask Stalnaker
+ */
+public class TraceDecoder {
+
+    public static void main(String... args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: TraceDecoder <dump file> [--connections]");
+            System.exit(1);
+        }
+        boolean connections = args.length > 1 && args[1].equals("--connections");
+        InputStream in = new BufferedInputStream(new FileInputStream(args[0]));
+        try {
+            decode(in, connections, System.out);
+        } finally {
+            in.close();
+        }
+    }
+
+    static void decode(InputStream is, boolean connections, PrintStream out) throws IOException {
+        DataInputStream in = new DataInputStream(is);
+        if (in.readLong() != EventTrace.MAGIC) {
+            throw new IOException("Not an event trace dump");
+        }
+        long dumpMillis = in.readLong();
+        long dumpNanos = in.readLong();
+        int ringCount = in.readInt();
+        List<Event> events = new ArrayList<Event>();
+        for (int i = 0; i < ringCount; i++) {
+            in.readLong(); // thread id
+            String threadName = in.readUTF();
+            int eventCount = in.readInt();
+            for (int j = 0; j < eventCount; j++) {
+                long nanoTime = in.readLong();
+                EventTrace.Type type = EventTrace.Type.fromOrdinal(in.readByte());
+                long id = in.readLong();
+                events.add(new Event(nanoTime, type, id, threadName));
+            }
+        }
+        Collections.sort(events, new Comparator<Event>() {
+            @Override
+            public int compare(Event e1, Event e2) {
+                return e1.nanoTime < e2.nanoTime ? -1 : e1.nanoTime == e2.nanoTime ? 0 : 1;
+            }
+        });
+        Map<Long, List<Event>> messages = new LinkedHashMap<Long, List<Event>>();
+        Map<Long, List<Event>> connectionTimelines = new LinkedHashMap<Long, List<Event>>();
+        for (Event event : events) {
+            Map<Long, List<Event>> timelines =
+                    event.type.isMessageEvent() ? messages : connectionTimelines;
+            List<Event> timeline = timelines.get(event.id);
+            if (timeline == null) {
+                timeline = new ArrayList<Event>();
+                timelines.put(event.id, timeline);
+            }
+            timeline.add(event);
+        }
+        SimpleDateFormat dateFormat = new SimpleDateFormat("HH:mm:ss.SSS");
+        List<Long> stalled = new ArrayList<Long>();
+        for (Map.Entry<Long, List<Event>> entry : messages.entrySet()) {
+            print(out, "message " + entry.getKey(), entry.getValue(), dateFormat, dumpMillis,
+                    dumpNanos);
+            if (!isFinished(entry.getValue())) {
+                stalled.add(entry.getKey());
+            }
+        }
+        if (connections) {
+            for (Map.Entry<Long, List<Event>> entry : connectionTimelines.entrySet()) {
+                print(out, "connection " + entry.getKey(), entry.getValue(), dateFormat,
+                        dumpMillis, dumpNanos);
+            }
+        }
+        out.println(events.size() + " events, " + messages.size() + " messages, "
+                + connectionTimelines.size() + " comet connections");
+        out.println("messages not completed or timed out: " + stalled);
+    }
+
+    private static void print(PrintStream out, String name, List<Event> timeline,
+            SimpleDateFormat dateFormat, long dumpMillis, long dumpNanos) {
+
+        long firstNanos = timeline.get(0).nanoTime;
+        long firstMillis = dumpMillis - TimeUnit.NANOSECONDS.toMillis(dumpNanos - firstNanos);
+        StringBuilder sb = new StringBuilder();
+        sb.append(dateFormat.format(new Date(firstMillis))).append(' ').append(name).append(':');
+        for (Event event : timeline) {
+            sb.append(' ').append(event.type).append(" +")
+                    .append(TimeUnit.NANOSECONDS.toMicros(event.nanoTime - firstNanos))
+                    .append("us [").append(event.threadName).append(']');
+        }
+        out.println(sb);
+    }
+
+    // a message's earlier events may have been overwritten, but its last event tells whether it
+    // finished (unless it is still in flight)
+    private static boolean isFinished(List<Event> timeline) {
+        EventTrace.Type lastType = timeline.get(timeline.size() - 1).type;
+        return lastType == EventTrace.Type.COMPLETE || lastType == EventTrace.Type.TIMEOUT
+                || lastType == EventTrace.Type.REJECT || lastType == EventTrace.Type.ERROR;
+    }
+
+    private static class Event {
+        private final long nanoTime;
+        private final EventTrace.Type type;
+        private final long id;
+        private final String threadName;
+        private Event(long nanoTime, EventTrace.Type type, long id, String threadName) {
+            this.nanoTime = nanoTime;
+            this.type = type;
+            this.id = id;
+            this.threadName = threadName;
+        }
+    }
+}
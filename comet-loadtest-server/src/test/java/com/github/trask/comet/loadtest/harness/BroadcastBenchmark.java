@@ -0,0 +1,52 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.comet.loadtest.harness;
+
+import com.github.trask.comet.loadtest.client.Main;
+import com.github.trask.comet.loadtest.client.Options;
+import com.github.trask.comet.loadtest.client.Workload;
+import com.github.trask.comet.loadtest.server.CometServerLauncher;
+
+/**
+ * Reports broadcast fan-out time (first to last comet completion) against a local server with
+ * 10k, 50k and 100k parked comet connections.
+ *
+ * The larger runs need a raised open file limit (ulimit -n) and local port range, the same as
+ * the server node in comet-loadtest-aws-runner.
+ *
+ * @author Trask Stalnaker
+ */
+public class BroadcastBenchmark {
+
+    private static final int PORT = 8080;
+    private static final int[] CONNECTIONS = { 10000, 50000, 100000 };
+    private static final int BROADCASTS = 10;
+
+    public static void main(String... args) throws Exception {
+        String url = "http://localhost:" + PORT;
+        for (int nConnections : CONNECTIONS) {
+            CometServerLauncher launcher = new CometServerLauncher(PORT);
+            launcher.start();
+            try {
+                System.out.println("broadcast to " + nConnections + " comet connections:");
+                new Main(url, nConnections, BROADCASTS, 0, 0,
+                        new Options().setWorkload(Workload.BROADCAST)).run();
+            } finally {
+                launcher.stop();
+            }
+        }
+    }
+}
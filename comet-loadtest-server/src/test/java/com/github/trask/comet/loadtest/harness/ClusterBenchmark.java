@@ -0,0 +1,145 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.comet.loadtest.harness;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.github.trask.comet.loadtest.client.Main;
+import com.github.trask.comet.loadtest.client.Options;
+import com.github.trask.comet.loadtest.server.CometServerLauncher;
+
+/**
+ * Reports cross-node delivery throughput and message response time with two and then three
+ * server nodes on localhost, each in its own jvm (the servlet's state is static) and connected
+ * to the others by the tcp message broker.
+ *
+ * The comet connections are all made to the first node and the messages are all sent to the
+ * last node, so every message crosses the broker twice: to the first node to be delivered, and
+ * back with its pingback. The same load against a single node is run first for comparison.
+ * The server cpu and heap that are printed are the first node's only.
+ *
+ * Usage: run main() from the comet-loadtest-server directory, e.g. from the IDE.
+ *
+ * @author Trask Stalnaker
+ */
+public class ClusterBenchmark {
+
+    private static final int HTTP_PORT = 8081;
+    private static final int BROKER_PORT = 9081;
+    private static final int[] NODES = { 2, 3 };
+    private static final int CONNECTIONS = 1000;
+    private static final int MESSAGES = 20000;
+
+    public static void main(String... args) throws Exception {
+        run(1);
+        for (int nNodes : NODES) {
+            run(nNodes);
+        }
+    }
+
+    private static void run(int nNodes) throws Exception {
+        List<Process> nodes = new ArrayList<Process>();
+        try {
+            for (int i = 0; i < nNodes; i++) {
+                nodes.add(startNode(i, nNodes));
+            }
+            for (int i = 0; i < nNodes; i++) {
+                waitForNode(i);
+            }
+            // give the nodes' brokers time to connect to each other
+            Thread.sleep(2000);
+            if (nNodes == 1) {
+                System.out.println("single node:");
+            } else {
+                System.out.println(nNodes + " nodes, messages sent to node " + (nNodes - 1)
+                        + " and delivered on node 0:");
+            }
+            new Main(url(0), CONNECTIONS, MESSAGES, 0, 0,
+                    new Options().setMessageUrl(url(nNodes - 1))).run();
+        } finally {
+            for (Process node : nodes) {
+                node.destroy();
+                node.waitFor();
+            }
+        }
+    }
+
+    private static Process startNode(int nodeId, int nNodes) throws IOException {
+        StringBuilder peers = new StringBuilder();
+        for (int i = 0; i < nNodes; i++) {
+            if (i != nodeId) {
+                if (peers.length() > 0) {
+                    peers.append(',');
+                }
+                peers.append("localhost:").append(BROKER_PORT + i);
+            }
+        }
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator
+                + "java";
+        ProcessBuilder processBuilder = new ProcessBuilder(java,
+                "-cp", System.getProperty("java.class.path"),
+                "-DcometServlet.brokerNodeId=" + nodeId,
+                "-DcometServlet.brokerPort=" + (nNodes == 1 ? 0 : BROKER_PORT + nodeId),
+                "-DcometServlet.brokerPeers=" + peers,
+                CometServerLauncher.class.getName(), Integer.toString(HTTP_PORT + nodeId));
+        processBuilder.redirectErrorStream(true);
+        Process process = processBuilder.start();
+        discardOutput(process.getInputStream());
+        return process;
+    }
+
+    // the servlet initializes lazily, so this also starts its broker
+    private static void waitForNode(int nodeId) throws InterruptedException {
+        while (true) {
+            try {
+                HttpURLConnection connection =
+                        (HttpURLConnection) new URL(url(nodeId) + "/count").openConnection();
+                if (connection.getResponseCode() == HttpURLConnection.HTTP_OK) {
+                    return;
+                }
+            } catch (IOException e) {
+                // not started yet
+            }
+            Thread.sleep(100);
+        }
+    }
+
+    private static String url(int nodeId) {
+        return "http://localhost:" + (HTTP_PORT + nodeId);
+    }
+
+    private static void discardOutput(final InputStream in) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[8192];
+                try {
+                    while (in.read(buffer) != -1) {}
+                } catch (IOException e) {
+                    // the node has been stopped
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
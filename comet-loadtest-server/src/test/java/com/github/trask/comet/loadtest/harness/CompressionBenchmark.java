@@ -0,0 +1,78 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.comet.loadtest.harness;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URL;
+
+import com.github.trask.comet.loadtest.client.Main;
+import com.github.trask.comet.loadtest.client.Options;
+import com.github.trask.comet.loadtest.client.PayloadGenerator;
+import com.github.trask.comet.loadtest.server.CometServerLauncher;
+
+/**
+ * Runs the same message load with each payload generator, first uncompressed and then deflated
+ * with the server's preset dictionary, and prints the comet response body bytes per message,
+ * the client's inflate time and the server's deflate time (from /stats) along with the rest of
+ * the run's data (including the server cpu per message).
+ *
+ * Usage: run main() from the comet-loadtest-server directory, e.g. from the IDE.
+ *
+ * @author Trask Stalnaker
+ */
+public class CompressionBenchmark {
+
+    private static final int PORT = 8080;
+    private static final int CONNECTIONS = 1000;
+    private static final int MESSAGES = 20000;
+
+    public static void main(String... args) throws Exception {
+        String url = "http://localhost:" + PORT;
+        for (PayloadGenerator payloadGenerator : PayloadGenerator.values()) {
+            for (boolean compression : new boolean[] { false, true }) {
+                CometServerLauncher launcher = new CometServerLauncher(PORT);
+                launcher.start();
+                try {
+                    System.out.println(payloadGenerator + " payload, "
+                            + (compression ? "compressed:" : "uncompressed:"));
+                    new Main(url, CONNECTIONS, MESSAGES, 0, 0, new Options()
+                            .setPayloadGenerator(payloadGenerator)
+                            .setCompression(compression)).run();
+                    printCompressionStats(url);
+                } finally {
+                    launcher.stop();
+                }
+            }
+        }
+    }
+
+    private static void printCompressionStats(String url) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+                new URL(url + "/stats").openStream(), "UTF-8"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("compressed")) {
+                    System.out.println("server " + line);
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.comet.loadtest.harness;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URL;
+
+import com.github.trask.comet.loadtest.client.Main;
+import com.github.trask.comet.loadtest.server.CometServerLauncher;
+import com.github.trask.comet.loadtest.server.LauncherOptions;
+import com.github.trask.comet.loadtest.server.LauncherOptions.QueueType;
+
+/**
+ * Sweeps connector and thread pool configurations, running the same message load against a
+ * fresh server with each, and prints the server's startup time and message latency percentiles
+ * (from /stats) along with the rest of the run's data (throughput, response time, server cpu
+ * per message and server heap per comet connection).
+ *
+ * Usage: run main() from the comet-loadtest-server directory, e.g. from the IDE.
+ *
+ * @author Trask Stalnaker
+ */
+public class ConnectorBenchmark {
+
+    private static final int PORT = 8080;
+    private static final int CONNECTIONS = 1000;
+    private static final int MESSAGES = 20000;
+
+    private static final LauncherOptions[] SWEEP = {
+            new LauncherOptions(),
+            new LauncherOptions().setAcceptors(2),
+            new LauncherOptions().setAcceptQueueSize(1024),
+            new LauncherOptions().setMaxThreads(16),
+            new LauncherOptions().setQueueType(QueueType.BOUNDED).setMaxQueued(64),
+            new LauncherOptions().setQueueType(QueueType.SYNCHRONOUS),
+            new LauncherOptions().setRequestBufferSize(4096).setResponseBufferSize(4096) };
+
+    public static void main(String... args) throws Exception {
+        // warm up before measuring, otherwise whichever configuration runs first is slowest
+        run(new LauncherOptions(), "warm up");
+        for (LauncherOptions options : SWEEP) {
+            run(options, options.toString());
+        }
+    }
+
+    private static void run(LauncherOptions options, String name) throws Exception {
+        String url = "http://localhost:" + PORT;
+        CometServerLauncher launcher = new CometServerLauncher(PORT, options);
+        launcher.start();
+        try {
+            System.out.println(name + " (started in " + launcher.getStartupMillis()
+                    + " milliseconds):");
+            new Main(url, CONNECTIONS, MESSAGES, 0, 0).run();
+            printLatencies(url);
+        } finally {
+            launcher.stop();
+        }
+    }
+
+    private static void printLatencies(String url) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+                new URL(url + "/stats").openStream(), "UTF-8"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("accept to comet write")
+                        || line.startsWith("comet write to pingback")) {
+                    System.out.println(line);
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
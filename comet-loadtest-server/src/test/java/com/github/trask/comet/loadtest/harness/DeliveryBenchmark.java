@@ -0,0 +1,75 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.comet.loadtest.harness;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URL;
+
+import com.github.trask.comet.loadtest.client.Main;
+import com.github.trask.comet.loadtest.server.CometServerLauncher;
+
+/**
+ * Runs the same message load with comet deliveries made on the request thread (no delivery
+ * threads) and then on one, two and four delivery threads, and prints the server's request
+ * thread time per message and delivery queue depth and batch sizes (from /stats) along with the
+ * rest of the run's data.
+ *
+ * Usage: run main() from the comet-loadtest-server directory, e.g. from the IDE.
+ *
+ * @author Trask Stalnaker
+ */
+public class DeliveryBenchmark {
+
+    private static final int PORT = 8080;
+    private static final int[] DELIVERY_THREADS = { 0, 1, 2, 4 };
+    private static final int CONNECTIONS = 1000;
+    private static final int MESSAGES = 20000;
+
+    public static void main(String... args) throws Exception {
+        String url = "http://localhost:" + PORT;
+        for (int deliveryThreads : DELIVERY_THREADS) {
+            System.setProperty("cometServlet.deliveryThreads", Integer.toString(deliveryThreads));
+            CometServerLauncher launcher = new CometServerLauncher(PORT);
+            launcher.start();
+            try {
+                System.out.println(deliveryThreads + " delivery threads:");
+                new Main(url, CONNECTIONS, MESSAGES, 0, 0).run();
+                printDeliveryStats(url);
+            } finally {
+                launcher.stop();
+            }
+        }
+        System.clearProperty("cometServlet.deliveryThreads");
+    }
+
+    private static void printDeliveryStats(String url) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+                new URL(url + "/stats").openStream(), "UTF-8"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("delivery") || line.startsWith("request thread")
+                        || line.startsWith("accept to comet write")) {
+                    System.out.println(line);
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
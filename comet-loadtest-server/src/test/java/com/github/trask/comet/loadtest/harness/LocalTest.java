@@ -15,13 +15,34 @@
  */
 package com.github.trask.comet.loadtest.harness;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.github.trask.comet.loadtest.client.ClientAddressing;
 import com.github.trask.comet.loadtest.client.Main;
+import com.github.trask.comet.loadtest.client.Options;
+import com.github.trask.comet.loadtest.client.PayloadGenerator;
+import com.github.trask.comet.loadtest.client.Transport;
+import com.github.trask.comet.loadtest.client.Workload;
+import com.github.trask.comet.loadtest.server.CometServerLauncher;
+import com.google.common.collect.ImmutableMap;
 
 /**
  * @author Trask Stalnaker
@@ -29,8 +50,11 @@ import com.github.trask.comet.loadtest.client.Main;
 public class LocalTest {
 
     private static final int PORT = 8080;
+    private static final int PROXY_PORT = 8090;
 
     private CometServerLauncher launcher;
+    // the servlet properties set by restartWithProperties()
+    private final Set<String> propertyNames = new HashSet<String>();
 
     @Before
     public void before() throws Exception {
@@ -41,6 +65,7 @@ public class LocalTest {
     @After
     public void after() throws Exception {
         launcher.stop();
+        clearProperties();
     }
 
     @Test
@@ -75,4 +100,307 @@ public class LocalTest {
         boolean successful = new Main(url, 1000, 1000, 0, 5).run();
         assertTrue(successful);
     }
+
+    @Test
+    public void shouldOpenHundredCometConnectionsAndBroadcastTenMessages() throws Exception {
+        String url = "http://localhost:" + PORT;
+        boolean successful = new Main(url, 100, 10, 0, 0,
+                new Options().setWorkload(Workload.BROADCAST)).run();
+        assertTrue(successful);
+    }
+
+    @Test
+    public void shouldOpenHundredCometConnectionsOverTenChannelsAndSendHundredMessages()
+            throws Exception {
+
+        String url = "http://localhost:" + PORT;
+        boolean successful = new Main(url, 100, 100, 0, 0, new Options().setChannels(10)).run();
+        assertTrue(successful);
+    }
+
+    @Test
+    public void shouldOpenTenCometConnectionsAndSendHundredCoalescedMessages() throws Exception {
+        // restart the server with coalescing switched on
+        restartWithProperties(ImmutableMap.of("coalesce", "true", "coalesceLingerMillis", "10"));
+        String url = "http://localhost:" + PORT;
+        boolean successful = new Main(url, 10, 100, 0, 0).run();
+        assertTrue(successful);
+    }
+
+    @Test
+    public void shouldRetryMessagesRejectedByFullBacklog() throws Exception {
+        // restart the server with a tiny backlog so that some messages are rejected with 503
+        restartWithProperties(ImmutableMap.of("backlogCapacity", "2"));
+        String url = "http://localhost:" + PORT;
+        boolean successful = new Main(url, 1, 10, 0, 0).run();
+        assertTrue(successful);
+    }
+
+    @Test
+    public void shouldSendHundredMessagesToTenAddressedClientsInOrder() throws Exception {
+        String url = "http://localhost:" + PORT;
+        // throttled so that the messages sent to each client are accepted in the order sent
+        boolean successful = new Main(url, 10, 100, 0, 5,
+                new Options().setClientAddressing(ClientAddressing.ROUND_ROBIN)).run();
+        assertTrue(successful);
+    }
+
+    @Test
+    public void shouldRetryMessagesRejectedByAdmissionControl() throws Exception {
+        // restart the server with a tiny in-flight limit so that some messages are shed with 503
+        restartWithProperties(ImmutableMap.of("maxInFlightMessages", "2"));
+        String url = "http://localhost:" + PORT;
+        boolean successful = new Main(url, 1, 10, 0, 0).run();
+        assertTrue(successful);
+    }
+
+    @Test
+    public void shouldSendAndReceiveHundredCompressedJsonMessages() throws Exception {
+        String url = "http://localhost:" + PORT;
+        boolean successful = new Main(url, 100, 100, 0, 0, new Options()
+                .setPayloadGenerator(PayloadGenerator.JSON).setCompression(true)).run();
+        assertTrue(successful);
+    }
+
+    @Test
+    public void shouldSendHundredMessagesOpenLoopAtFiveHundredPerSecond() throws Exception {
+        String url = "http://localhost:" + PORT;
+        boolean successful = new Main(url, 100, 100, 0, 0,
+                new Options().setMessageRate(500)).run();
+        assertTrue(successful);
+    }
+
+    @Test
+    public void shouldSendHundredMessagesWithStageTimestamps() throws Exception {
+        String url = "http://localhost:" + PORT;
+        boolean successful = new Main(url, 100, 100, 0, 0,
+                new Options().setStageTimestamps(true)).run();
+        assertTrue(successful);
+    }
+
+    @Test
+    public void shouldOpenHundredCometStreamsAndSendAndReceiveHundredMessages() throws Exception {
+        String url = "http://localhost:" + PORT;
+        boolean successful = new Main(url, 100, 100, 0, 0,
+                new Options().setTransport(Transport.STREAMING)).run();
+        assertTrue(successful);
+    }
+
+    @Test
+    public void shouldOpenHundredCometStreamsAndBroadcastTenMessages() throws Exception {
+        String url = "http://localhost:" + PORT;
+        boolean successful = new Main(url, 100, 10, 0, 0, new Options()
+                .setWorkload(Workload.BROADCAST).setTransport(Transport.STREAMING)).run();
+        assertTrue(successful);
+    }
+
+    @Test
+    public void shouldOpenHundredEventStreamsAndSendAndReceiveHundredMessages() throws Exception {
+        String url = "http://localhost:" + PORT;
+        boolean successful = new Main(url, 100, 100, 0, 0,
+                new Options().setTransport(Transport.SSE)).run();
+        assertTrue(successful);
+    }
+
+    @Test
+    public void shouldResumeEventStreamsThatEndWhileSendingMessages() throws Exception {
+        // restart the server with a short comet timeout so that the event streams end (and are
+        // resumed with Last-Event-ID) several times while the messages are being sent
+        restartWithProperties(ImmutableMap.of("cometTimeoutMillis", "200",
+                "cometTimeoutJitterMillis", "0"));
+        String url = "http://localhost:" + PORT;
+        boolean successful = new Main(url, 10, 100, 0, 10,
+                new Options().setTransport(Transport.SSE)).run();
+        assertTrue(successful);
+    }
+
+    @Test
+    public void shouldDropQueuedMessagesWhoseMessageRequestsTimedOut() throws Exception {
+        // restart the server with a short message timeout and a tiny backlog, and send messages
+        // before there are any comet connections, so that they time out while queued
+        restartWithProperties(ImmutableMap.of("messageTimeoutMillis", "500",
+                "backlogCapacity", "2"));
+        String url = "http://localhost:" + PORT;
+        // the backlog is full of timed out messages after the first two, which make room for
+        // the next two rather than having them rejected with 503
+        for (int i = 0; i < 4; i++) {
+            assertEquals("TIMEOUT", sendMessage(url + "/message?message=message" + i));
+        }
+        // none of the timed out messages are written to the comet connection
+        assertTrue(new Main(url, 1, 10, 0, 0).run());
+        assertEquals(4, getStat(url + "/backlog", "total dropped (timed out while queued)"));
+        assertEquals(10, getStat(url + "/backlog", "total delivered"));
+    }
+
+    @Test
+    public void shouldRejectMessagesToChannelsWithoutSubscribers() throws Exception {
+        String url = "http://localhost:" + PORT;
+        assertEquals("404", sendMessage(url + "/message?channel=nobody&message=message"));
+    }
+
+    @Test
+    public void shouldReplayMessagesMissedByDroppedCometConnections() throws Exception {
+        // restart the server with the message log enabled, and drop some of the comet responses
+        // on the way back to the clients so that the messages in them have to be replayed
+        File messageLogDir = createMessageLogDir();
+        ResponseDroppingProxy proxy = new ResponseDroppingProxy(PROXY_PORT, PORT, 4);
+        try {
+            // a message that isn't replayed fails the test with a TIMEOUT response
+            restartWithProperties(ImmutableMap.of("messageLogDir", messageLogDir.getPath(),
+                    "messageLogSegmentBytes", "1048576", "messageTimeoutMillis", "10000"));
+            proxy.start();
+            String url = "http://localhost:" + PORT;
+            // only the comet connections go through the proxy
+            boolean successful = new Main("http://localhost:" + PROXY_PORT, 10, 100, 0, 10,
+                    new Options().setReplay(true).setMessageUrl(url)).run();
+            assertTrue(successful);
+            assertTrue(proxy.getDroppedCount() > 0);
+            assertTrue(getStat(url + "/log", "replayed messages") > 0);
+        } finally {
+            proxy.stop();
+            // so that the message log is closed before it is deleted
+            restartWithProperties(Collections.<String, String> emptyMap());
+            deleteMessageLogDir(messageLogDir);
+        }
+    }
+
+    @Test
+    public void shouldCarryOnMessageLogSequenceAfterRestart() throws Exception {
+        File messageLogDir = createMessageLogDir();
+        Map<String, String> properties = ImmutableMap.of("messageLogDir",
+                messageLogDir.getPath(), "messageLogSegmentBytes", "1048576");
+        try {
+            String url = "http://localhost:" + PORT;
+            restartWithProperties(properties);
+            assertTrue(new Main(url, 10, 10, 0, 0).run());
+            assertEquals(10, getStat(url + "/log", "last seq"));
+            // a clean restart
+            restartWithProperties(properties);
+            assertEquals(10, getStat(url + "/log", "last seq"));
+            assertTrue(new Main(url, 10, 10, 0, 0).run());
+            assertEquals(20, getStat(url + "/log", "last seq"));
+            // a restart after the last record was cut short, which is dropped, so its sequence
+            // number is handed out again (in a new segment)
+            launcher.stop();
+            truncateLastRecord(messageLogDir);
+            launcher = new CometServerLauncher(PORT);
+            launcher.start();
+            assertEquals(19, getStat(url + "/log", "last seq"));
+            assertTrue(new Main(url, 10, 10, 0, 0).run());
+            assertEquals(29, getStat(url + "/log", "last seq"));
+            assertEquals(2, getStat(url + "/log", "segments"));
+        } finally {
+            // so that the message log is closed before it is deleted
+            restartWithProperties(Collections.<String, String> emptyMap());
+            deleteMessageLogDir(messageLogDir);
+        }
+    }
+
+    @Test
+    public void shouldOpenHundredWebSocketsAndSendAndReceiveHundredMessages() throws Exception {
+        String url = "http://localhost:" + PORT;
+        boolean successful = new Main(url, 100, 100, 0, 0,
+                new Options().setTransport(Transport.WEBSOCKET)).run();
+        assertTrue(successful);
+    }
+
+    @Test
+    public void shouldOpenHundredWebSocketsAndBroadcastTenMessages() throws Exception {
+        String url = "http://localhost:" + PORT;
+        boolean successful = new Main(url, 100, 10, 0, 0, new Options()
+                .setWorkload(Workload.BROADCAST).setTransport(Transport.WEBSOCKET)).run();
+        assertTrue(successful);
+    }
+
+    // restarts the server with the given servlet init parameters, which the servlet reads from
+    // the cometServlet.* system properties when start() initializes it, replacing any set by a
+    // previous restart
+    private void restartWithProperties(Map<String, String> properties) throws Exception {
+        launcher.stop();
+        clearProperties();
+        for (Map.Entry<String, String> property : properties.entrySet()) {
+            System.setProperty("cometServlet." + property.getKey(), property.getValue());
+            propertyNames.add(property.getKey());
+        }
+        launcher = new CometServerLauncher(PORT);
+        launcher.start();
+    }
+
+    private void clearProperties() {
+        for (String propertyName : propertyNames) {
+            System.clearProperty("cometServlet." + propertyName);
+        }
+        propertyNames.clear();
+    }
+
+    private static File createMessageLogDir() {
+        File dir = new File(System.getProperty("java.io.tmpdir"),
+                "comet-loadtest-message-log-" + System.nanoTime());
+        assertTrue(dir.mkdirs());
+        return dir;
+    }
+
+    private static void deleteMessageLogDir(File dir) {
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    // the message response body, or the status code if the message was not accepted
+    private static String sendMessage(String messageUrl) throws IOException {
+        HttpURLConnection connection =
+                (HttpURLConnection) new URL(messageUrl).openConnection();
+        if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+            return Integer.toString(connection.getResponseCode());
+        }
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+                connection.getInputStream(), "UTF-8"));
+        try {
+            return in.readLine();
+        } finally {
+            in.close();
+        }
+    }
+
+    // the "name: value" line from one of the server's stats pages (e.g. /log or /backlog)
+    private static long getStat(String statsUrl, String name) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+                new URL(statsUrl).openStream(), "UTF-8"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith(name + ": ")) {
+                    return Long.parseLong(line.substring(name.length() + 2));
+                }
+            }
+            throw new IllegalStateException("No " + name + " in " + statsUrl);
+        } finally {
+            in.close();
+        }
+    }
+
+    // cuts the last segment's last record short, as if the server died part way through
+    // writing it out (segment header is 16 bytes, each record starts with its length)
+    private static void truncateLastRecord(File messageLogDir) throws IOException {
+        File[] files = messageLogDir.listFiles();
+        Arrays.sort(files);
+        RandomAccessFile file = new RandomAccessFile(files[files.length - 1], "rw");
+        try {
+            long lastRecordOffset = -1;
+            long offset = 16;
+            while (offset + 4 <= file.length()) {
+                file.seek(offset);
+                int recordLength = file.readInt();
+                if (recordLength == 0) {
+                    break;
+                }
+                lastRecordOffset = offset;
+                offset += recordLength;
+            }
+            file.setLength(lastRecordOffset + 8);
+        } finally {
+            file.close();
+        }
+    }
 }
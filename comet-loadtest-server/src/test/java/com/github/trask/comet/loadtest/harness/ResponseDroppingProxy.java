@@ -0,0 +1,170 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.comet.loadtest.harness;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tcp proxy in front of the comet server that drops every dropEvery'th response to a comet
+ * request that carries a lastMessageId, by closing the connection instead of passing the response
+ * on, as if the connection had failed just after the server wrote the response.
+ *
+ * Only comet requests with a lastMessageId are candidates, since those clients have already
+ * received a message and so can have the dropped messages replayed. Requests are expected one at
+ * a time per connection (no pipelining), with each request line in the first read.
+ *
+ * @author Trask Stalnaker
+ */
+class ResponseDroppingProxy {
+
+    private final int port;
+    private final int targetPort;
+    private final int dropEvery;
+
+    private final AtomicInteger candidateCount = new AtomicInteger();
+    private final AtomicInteger droppedCount = new AtomicInteger();
+    private final List<Socket> sockets = new CopyOnWriteArrayList<Socket>();
+
+    private volatile ServerSocket serverSocket;
+
+    ResponseDroppingProxy(int port, int targetPort, int dropEvery) {
+        this.port = port;
+        this.targetPort = targetPort;
+        this.dropEvery = dropEvery;
+    }
+
+    void start() throws IOException {
+        serverSocket = new ServerSocket(port);
+        startThread(new Runnable() {
+            @Override
+            public void run() {
+                while (!serverSocket.isClosed()) {
+                    try {
+                        Connection connection = new Connection(serverSocket.accept());
+                        startThread(connection.new ClientToServer());
+                        startThread(connection.new ServerToClient());
+                    } catch (IOException e) {
+                        // stopped
+                    }
+                }
+            }
+        });
+    }
+
+    void stop() throws IOException {
+        serverSocket.close();
+        for (Socket socket : sockets) {
+            closeQuietly(socket);
+        }
+    }
+
+    int getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    private static void startThread(Runnable runnable) {
+        Thread thread = new Thread(runnable);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    private class Connection {
+
+        private final Socket client;
+        private final Socket server;
+        // set by each request, for its response
+        private volatile boolean dropResponse;
+
+        private Connection(Socket client) throws IOException {
+            this.client = client;
+            server = new Socket("localhost", targetPort);
+            sockets.add(client);
+            sockets.add(server);
+        }
+
+        private void close() {
+            closeQuietly(client);
+            closeQuietly(server);
+            sockets.remove(client);
+            sockets.remove(server);
+        }
+
+        private class ClientToServer implements Runnable {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[8192];
+                try {
+                    InputStream in = client.getInputStream();
+                    OutputStream out = server.getOutputStream();
+                    int n;
+                    while ((n = in.read(buffer)) != -1) {
+                        String start = new String(buffer, 0, Math.min(n, 1024), "ISO-8859-1");
+                        if (start.startsWith("GET ")) {
+                            String requestLine = start.substring(0, Math.max(start.indexOf('\r'),
+                                    0));
+                            dropResponse = requestLine.startsWith("GET /comet?")
+                                    && requestLine.contains("lastMessageId=")
+                                    && candidateCount.incrementAndGet() % dropEvery == 0;
+                        }
+                        out.write(buffer, 0, n);
+                    }
+                } catch (IOException e) {
+                    // closed
+                } finally {
+                    close();
+                }
+            }
+        }
+
+        private class ServerToClient implements Runnable {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[8192];
+                try {
+                    InputStream in = server.getInputStream();
+                    OutputStream out = client.getOutputStream();
+                    int n;
+                    while ((n = in.read(buffer)) != -1) {
+                        if (dropResponse) {
+                            droppedCount.getAndIncrement();
+                            return;
+                        }
+                        out.write(buffer, 0, n);
+                    }
+                } catch (IOException e) {
+                    // closed
+                } finally {
+                    close();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.comet.loadtest.harness;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.net.URLConnection;
+
+import com.github.trask.comet.loadtest.client.Controller;
+import com.github.trask.comet.loadtest.client.Options;
+import com.github.trask.comet.loadtest.server.CometServerLauncher;
+
+/**
+ * Restarts a server (in its own jvm, so that its cpu can be measured on its own) with long-poll
+ * comet connections parked on it, and reports the reconnect storm that follows: the peak rate
+ * at which the comet connections re-park on the restarted server, how long it takes for all of
+ * them to, and the restarted server's cpu up to that point.
+ *
+ * This is run first the old way, where the server is just stopped and every client reconnects
+ * straight away (and keeps on trying while the server is down), and then with the server
+ * drained first (/drain sends each comet connection a RETRY directive) and the clients backing
+ * off with jitter.
+ *
+ * Usage: run main() from the comet-loadtest-server directory, e.g. from the IDE.
+ *
+ * @author Trask Stalnaker
+ */
+public class RestartBenchmark {
+
+    private static final int PORT = 8083;
+    private static final int CONNECTIONS = 2000;
+    private static final int SAMPLE_MILLIS = 250;
+    private static final int TIMEOUT_MILLIS = 120000;
+    private static final int READ_TIMEOUT_MILLIS = 1000;
+
+    public static void main(String... args) throws Exception {
+        run(false);
+        run(true);
+    }
+
+    private static void run(boolean drain) throws Exception {
+        Process server = startServer();
+        while (readInt("/count") == -1) {
+            Thread.sleep(100);
+        }
+        Controller controller = new Controller(url(),
+                new Options().setReconnectBackoff(drain));
+        try {
+            controller.establishCometConnections(CONNECTIONS, 0);
+            controller.waitForConnections(CONNECTIONS, TIMEOUT_MILLIS);
+            if (drain) {
+                System.out.println("drained, then restarted:");
+                read("/drain");
+            } else {
+                System.out.println("restarted:");
+            }
+            server.destroy();
+            server.waitFor();
+            long startMillis = System.currentTimeMillis();
+            server = startServer();
+            long peakPerSecond = 0;
+            int lastCount = 0;
+            long lastMillis = startMillis;
+            int count = 0;
+            while (count < CONNECTIONS) {
+                if (System.currentTimeMillis() - startMillis > TIMEOUT_MILLIS) {
+                    System.out.println("timed out with " + count + " comet connections parked");
+                    break;
+                }
+                Thread.sleep(SAMPLE_MILLIS);
+                count = readInt("/count");
+                // the samples can be a lot further apart than SAMPLE_MILLIS while the server is
+                // starting up
+                long nowMillis = System.currentTimeMillis();
+                if (count > lastCount) {
+                    peakPerSecond = Math.max(peakPerSecond,
+                            (count - lastCount) * 1000L / (nowMillis - lastMillis));
+                    lastCount = count;
+                }
+                lastMillis = nowMillis;
+            }
+            long elapsedMillis = System.currentTimeMillis() - startMillis;
+            System.out.println("peak reconnects per second: " + peakPerSecond);
+            System.out.println("all reconnected after (including server startup): "
+                    + elapsedMillis + " milliseconds");
+            long cpuNanos = Long.parseLong(read("/cpu").trim());
+            System.out.println("restarted server cpu (including startup): "
+                    + cpuNanos / 1000000 + " milliseconds");
+            controller.printData();
+        } finally {
+            controller.terminate();
+            server.destroy();
+            server.waitFor();
+        }
+    }
+
+    private static Process startServer() throws Exception {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator
+                + "java";
+        ProcessBuilder processBuilder = new ProcessBuilder(java,
+                "-cp", System.getProperty("java.class.path"),
+                CometServerLauncher.class.getName(), Integer.toString(PORT));
+        processBuilder.redirectErrorStream(true);
+        Process process = processBuilder.start();
+        discardOutput(process.getInputStream());
+        return process;
+    }
+
+    // returns -1 if the server isn't up (yet), the servlet initializes lazily so the first request
+    // also initializes it
+    private static int readInt(String path) {
+        try {
+            return Integer.parseInt(read(path).trim());
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    private static String read(String path) throws IOException {
+        URLConnection connection = new URL(url() + path).openConnection();
+        // a request made while the server is still starting can otherwise hang
+        connection.setConnectTimeout(READ_TIMEOUT_MILLIS);
+        connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+        BufferedReader in = new BufferedReader(
+                new InputStreamReader(connection.getInputStream(), "UTF-8"));
+        try {
+            StringBuilder sb = new StringBuilder();
+            String line;
+            while ((line = in.readLine()) != null) {
+                sb.append(line).append('\n');
+            }
+            return sb.toString();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String url() {
+        return "http://localhost:" + PORT;
+    }
+
+    private static void discardOutput(final InputStream in) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[8192];
+                try {
+                    while (in.read(buffer) != -1) {}
+                } catch (IOException e) {
+                    // the server has been stopped
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
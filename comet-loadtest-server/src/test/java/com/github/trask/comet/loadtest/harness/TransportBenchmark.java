@@ -0,0 +1,54 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.comet.loadtest.harness;
+
+import com.github.trask.comet.loadtest.client.Main;
+import com.github.trask.comet.loadtest.client.Options;
+import com.github.trask.comet.loadtest.client.Transport;
+import com.github.trask.comet.loadtest.server.CometServerLauncher;
+
+/**
+ * Runs the same message load over each transport (long-polling, streaming, server-sent events
+ * and websockets) against a local server, for comparing messages per second (overall and per
+ * comet connection), message response time, server cpu per message and server heap per comet
+ * connection, which are printed with the rest of the run's data.
+ *
+ * Since the client runs in the same jvm, the server cpu and heap include the client's cpu and
+ * heap, so only the differences between the transports are meaningful.
+ *
+ * @author Trask Stalnaker
+ */
+public class TransportBenchmark {
+
+    private static final int PORT = 8080;
+    private static final int CONNECTIONS = 1000;
+    private static final int MESSAGES = 20000;
+
+    public static void main(String... args) throws Exception {
+        String url = "http://localhost:" + PORT;
+        for (Transport transport : Transport.values()) {
+            CometServerLauncher launcher = new CometServerLauncher(PORT);
+            launcher.start();
+            try {
+                System.out.println(transport + ":");
+                new Main(url, CONNECTIONS, MESSAGES, 0, 0,
+                        new Options().setTransport(transport)).run();
+            } finally {
+                launcher.stop();
+            }
+        }
+    }
+}
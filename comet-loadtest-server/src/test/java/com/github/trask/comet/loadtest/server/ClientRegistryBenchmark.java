@@ -0,0 +1,80 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.comet.loadtest.server;
+
+import java.util.Random;
+
+/**
+ * Measures the client registry with 100k idle clients (a mailbox each, nothing parked and
+ * nothing queued): the heap used per client, and the cost of looking up a client's mailbox by
+ * id, as done for every addressed message and every comet connection with a client id.
+ *
+ * Usage: run main() from the comet-loadtest-server directory, e.g. from the IDE.
+ *
+ * @author Trask Stalnaker
+ */
+public class ClientRegistryBenchmark {
+
+    private static final int CLIENTS = 100000;
+    private static final int MAILBOX_CAPACITY = 8;
+    private static final int LOOKUPS = 10000000;
+    private static final int ITERATIONS = 5;
+
+    public static void main(String... args) {
+        String[] clientIds = new String[CLIENTS];
+        for (int i = 0; i < CLIENTS; i++) {
+            clientIds[i] = "client" + i;
+        }
+        // the lookups go through a precomputed random order so that the random number generator
+        // isn't part of the measurement
+        int[] order = new int[LOOKUPS];
+        Random random = new Random();
+        for (int i = 0; i < LOOKUPS; i++) {
+            order[i] = random.nextInt(CLIENTS);
+        }
+        long startHeapBytes = usedHeapBytes();
+        ChannelIndex<Object> clients = new ChannelIndex<Object>(
+                Runtime.getRuntime().availableProcessors() * 2, MAILBOX_CAPACITY, 1);
+        for (String clientId : clientIds) {
+            clients.getOrCreate(clientId);
+        }
+        long heapBytes = usedHeapBytes() - startHeapBytes;
+        System.out.format("%d idle clients: %d bytes per client (mailbox capacity %d)\n",
+                clients.size(), heapBytes / CLIENTS, MAILBOX_CAPACITY);
+        for (int i = 0; i < ITERATIONS; i++) {
+            long startNanos = System.nanoTime();
+            int found = 0;
+            for (int j = 0; j < LOOKUPS; j++) {
+                if (clients.get(clientIds[order[j]]) != null) {
+                    found++;
+                }
+            }
+            long nanos = System.nanoTime() - startNanos;
+            if (found != LOOKUPS) {
+                throw new IllegalStateException("Found " + found + ", expected " + LOOKUPS);
+            }
+            System.out.format("lookup: %d nanoseconds\n", nanos / LOOKUPS);
+        }
+    }
+
+    private static long usedHeapBytes() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
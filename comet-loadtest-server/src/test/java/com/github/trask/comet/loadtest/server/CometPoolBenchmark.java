@@ -0,0 +1,138 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.comet.loadtest.server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the parked connection pool against the single ConcurrentLinkedQueue it replaced, as
+ * the number of (simulated) jetty worker threads grows.
+ *
+ * This is a micro-benchmark of the pool on its own, no requests go through jetty. Each worker
+ * thread repeatedly does what a doComet() followed by a doMessage() does to the pool (park one,
+ * poll one), and every 64th iteration also does what a comet timeout does (park one, remove it),
+ * on top of a pool that already holds 50,000 parked connections. The parked connections are
+ * parked by the worker threads themselves before the measurement starts, so they are spread over
+ * the shards the same way as connections parked by that many jetty worker threads would be.
+ *
+ * Usage: run main() from the comet-loadtest-server directory, e.g. from the IDE.
+ *
+ * @author Trask Stalnaker
+ */
+public class CometPoolBenchmark {
+
+    private static final int PARKED_CONNECTIONS = 50000;
+    private static final int[] WORKER_THREADS = { 1, 2, 4, 8, 16, 32, 64 };
+    private static final long DURATION_MILLIS = 2000;
+
+    // set before the worker threads are released by the start latch
+    private static volatile long endNanos;
+
+    public static void main(String... args) throws InterruptedException {
+        // warm up both implementations before measuring
+        run(new QueuePool(), 4);
+        run(new ShardedPool(), 4);
+        System.out.println("threads   queue ops/sec   sharded ops/sec");
+        for (int nThreads : WORKER_THREADS) {
+            long queueOpsPerSec = run(new QueuePool(), nThreads);
+            long shardedOpsPerSec = run(new ShardedPool(), nThreads);
+            System.out.format("%7d %15d %17d\n", nThreads, queueOpsPerSec, shardedOpsPerSec);
+        }
+    }
+
+    private static long run(final Pool pool, final int nThreads) throws InterruptedException {
+        final AtomicLong totalOps = new AtomicLong();
+        final CountDownLatch parkedLatch = new CountDownLatch(nThreads);
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final CountDownLatch doneLatch = new CountDownLatch(nThreads);
+        for (int i = 0; i < nThreads; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < PARKED_CONNECTIONS / nThreads; j++) {
+                        pool.park(new Object());
+                    }
+                    parkedLatch.countDown();
+                    try {
+                        startLatch.await();
+                    } catch (InterruptedException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    Object connection = new Object();
+                    long ops = 0;
+                    while (System.nanoTime() < endNanos) {
+                        for (int j = 0; j < 64; j++) {
+                            pool.park(connection);
+                            connection = pool.poll();
+                        }
+                        pool.parkAndRemove(new Object());
+                        ops += 65;
+                    }
+                    totalOps.getAndAdd(ops);
+                    doneLatch.countDown();
+                }
+            }).start();
+        }
+        parkedLatch.await();
+        endNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DURATION_MILLIS);
+        startLatch.countDown();
+        doneLatch.await();
+        return totalOps.get() * 1000 / DURATION_MILLIS;
+    }
+
+    private interface Pool {
+        void park(Object connection);
+        Object poll();
+        void parkAndRemove(Object connection);
+    }
+
+    private static class QueuePool implements Pool {
+        private final Queue<Object> queue = new ConcurrentLinkedQueue<Object>();
+        @Override
+        public void park(Object connection) {
+            queue.add(connection);
+        }
+        @Override
+        public Object poll() {
+            return queue.poll();
+        }
+        @Override
+        public void parkAndRemove(Object connection) {
+            queue.add(connection);
+            queue.remove(connection);
+        }
+    }
+
+    private static class ShardedPool implements Pool {
+        private final CometPool<Object> pool = new CometPool<Object>();
+        @Override
+        public void park(Object connection) {
+            pool.park(connection);
+        }
+        @Override
+        public Object poll() {
+            return pool.poll();
+        }
+        @Override
+        public void parkAndRemove(Object connection) {
+            pool.remove(pool.park(connection));
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.comet.loadtest.server;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the cost of recording an event trace event, which needs to stay at a few nanoseconds
+ * for the trace to be left on under load, as the number of recording threads grows.
+ *
+ * Much of the cost is the System.nanoTime() call itself, which depends on the platform's clock
+ * source, so the cost of just that is measured first.
+ *
+ * Usage: run main() from the comet-loadtest-server directory, e.g. from the IDE.
+ *
+ * @author Trask Stalnaker
+ */
+public class EventTraceBenchmark {
+
+    private static final int[] THREADS = { 1, 2, 4, 8 };
+    private static final long DURATION_MILLIS = 2000;
+
+    public static void main(String... args) throws InterruptedException {
+        // warm up before measuring
+        run(2);
+        System.out.format("System.nanoTime(): %.1f nanos\n", nanoTimeNanos());
+        System.out.println("threads   events/sec   nanos/event (per thread)");
+        for (int nThreads : THREADS) {
+            long eventsPerSec = run(nThreads);
+            System.out.format("%7d %12d %13.1f\n", nThreads, eventsPerSec,
+                    1000000000.0 * nThreads / eventsPerSec);
+        }
+    }
+
+    private static double nanoTimeNanos() {
+        int calls = 10000000;
+        long sum = 0;
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < calls; i++) {
+            sum += System.nanoTime();
+        }
+        long nanos = System.nanoTime() - startNanos;
+        if (sum == 0) {
+            // keeps the loop from being optimized away
+            System.out.println();
+        }
+        return (double) nanos / calls;
+    }
+
+    private static long run(int nThreads) throws InterruptedException {
+        final AtomicLong totalEvents = new AtomicLong();
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final CountDownLatch doneLatch = new CountDownLatch(nThreads);
+        final long endNanos = System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(DURATION_MILLIS);
+        for (int i = 0; i < nThreads; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        startLatch.await();
+                    } catch (InterruptedException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    long events = 0;
+                    while (System.nanoTime() < endNanos) {
+                        for (int j = 0; j < 1000; j++) {
+                            EventTrace.record(EventTrace.Type.WRITE, events + j);
+                        }
+                        events += 1000;
+                    }
+                    totalEvents.getAndAdd(events);
+                    doneLatch.countDown();
+                }
+            }).start();
+        }
+        startLatch.countDown();
+        doneLatch.await();
+        return totalEvents.get() * 1000 / DURATION_MILLIS;
+    }
+}
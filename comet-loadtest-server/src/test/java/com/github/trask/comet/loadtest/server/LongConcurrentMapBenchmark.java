@@ -0,0 +1,148 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.comet.loadtest.server;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the pending message table against the ConcurrentHashMap<Long, AsyncContext> it
+ * replaced, in throughput and in bytes allocated per put/remove pair.
+ *
+ * Each thread keeps a window of 1024 in-flight message ids (put the next id, remove the id that
+ * was put 1024 puts ago), which is roughly what doMessage()/doCometPingback() do under load.
+ *
+ * Usage: run main() from the comet-loadtest-server directory, e.g. from the IDE (allocation
+ * counting requires a HotSpot JVM).
+ *
+ * @author Trask Stalnaker
+ */
+public class LongConcurrentMapBenchmark {
+
+    private static final int[] THREADS = { 1, 2, 4, 8 };
+    private static final int IN_FLIGHT_PER_THREAD = 1024;
+    private static final long DURATION_MILLIS = 2000;
+
+    private static final AtomicLong nextMessageId = new AtomicLong();
+
+    public static void main(String... args) throws InterruptedException {
+        // warm up both implementations before measuring
+        run(new HashMapTable(), 2);
+        run(new LongTable(), 2);
+        System.out.println("threads   chm ops/sec   chm bytes/op   long ops/sec   long bytes/op");
+        for (int nThreads : THREADS) {
+            Result chm = run(new HashMapTable(), nThreads);
+            Result table = run(new LongTable(), nThreads);
+            System.out.format("%7d %13d %14.1f %14d %15.1f\n", nThreads, chm.opsPerSec,
+                    chm.bytesPerOp, table.opsPerSec, table.bytesPerOp);
+        }
+    }
+
+    private static Result run(final Table table, int nThreads) throws InterruptedException {
+        final AtomicLong totalOps = new AtomicLong();
+        final AtomicLong totalBytes = new AtomicLong();
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final CountDownLatch doneLatch = new CountDownLatch(nThreads);
+        final long endNanos = System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(DURATION_MILLIS);
+        final Object value = new Object();
+        for (int i = 0; i < nThreads; i++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    long[] inFlight = new long[IN_FLIGHT_PER_THREAD];
+                    for (int j = 0; j < IN_FLIGHT_PER_THREAD; j++) {
+                        inFlight[j] = nextMessageId.getAndIncrement();
+                        table.put(inFlight[j], value);
+                    }
+                    try {
+                        startLatch.await();
+                    } catch (InterruptedException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    long startBytes = allocatedBytes();
+                    long ops = 0;
+                    int index = 0;
+                    while (System.nanoTime() < endNanos) {
+                        for (int j = 0; j < 1000; j++) {
+                            table.remove(inFlight[index]);
+                            // still unique across threads since there are at most 64 threads
+                            inFlight[index] += IN_FLIGHT_PER_THREAD * 64;
+                            table.put(inFlight[index], value);
+                            index = (index + 1) % IN_FLIGHT_PER_THREAD;
+                        }
+                        ops += 1000;
+                    }
+                    totalBytes.getAndAdd(allocatedBytes() - startBytes);
+                    totalOps.getAndAdd(ops);
+                    doneLatch.countDown();
+                }
+            }).start();
+        }
+        startLatch.countDown();
+        doneLatch.await();
+        nextMessageId.set(0);
+        return new Result(totalOps.get() * 1000 / DURATION_MILLIS,
+                (double) totalBytes.get() / totalOps.get());
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private interface Table {
+        void put(long key, Object value);
+        void remove(long key);
+    }
+
+    private static class HashMapTable implements Table {
+        private final ConcurrentMap<Long, Object> map = new ConcurrentHashMap<Long, Object>();
+        @Override
+        public void put(long key, Object value) {
+            map.put(key, value);
+        }
+        @Override
+        public void remove(long key) {
+            map.remove(key);
+        }
+    }
+
+    private static class LongTable implements Table {
+        private final LongConcurrentMap<Object> map = new LongConcurrentMap<Object>(1 << 18);
+        @Override
+        public void put(long key, Object value) {
+            map.put(key, value);
+        }
+        @Override
+        public void remove(long key) {
+            map.remove(key);
+        }
+    }
+
+    private static class Result {
+        private final long opsPerSec;
+        private final double bytesPerOp;
+        private Result(long opsPerSec, double bytesPerOp) {
+            this.opsPerSec = opsPerSec;
+            this.bytesPerOp = bytesPerOp;
+        }
+    }
+}
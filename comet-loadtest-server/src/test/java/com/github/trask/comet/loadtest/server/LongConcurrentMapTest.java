@@ -0,0 +1,99 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.comet.loadtest.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * @author Trask Stalnaker
+ */
+public class LongConcurrentMapTest {
+
+    private static final int CAPACITY = 1024;
+
+    @Test
+    public void shouldCycleMoreThanCapacityOfKeys() {
+        LongConcurrentMap<String> map = new LongConcurrentMap<String>(CAPACITY);
+        int inFlight = CAPACITY / 2;
+        // the same as pending messages, the next id is put and the oldest in flight is removed
+        for (long key = 0; key < 10 * CAPACITY; key++) {
+            assertTrue(map.put(key, Long.toString(key)));
+            if (key >= inFlight) {
+                assertEquals(Long.toString(key - inFlight), map.remove(key - inFlight));
+                // a late (duplicate) pingback
+                assertNull(map.remove(key - inFlight));
+            }
+        }
+        assertEquals(inFlight, map.size());
+        assertEquals(Long.toString(10 * CAPACITY - 1), map.get(10 * CAPACITY - 1));
+        assertNull(map.get(10 * CAPACITY - inFlight - 1));
+    }
+
+    @Test
+    public void shouldFreeTombstonesOnceBurstIsRemoved() {
+        LongConcurrentMap<String> map = new LongConcurrentMap<String>(CAPACITY);
+        // keys that all hash to the same slot, so that each one probes past all of the others
+        for (int i = 0; i < 256; i++) {
+            assertTrue(map.put(i * CAPACITY, "value"));
+        }
+        for (int i = 0; i < 256; i++) {
+            assertEquals("value", map.remove(i * CAPACITY));
+        }
+        assertEquals(0, map.size());
+        assertEquals(0, map.tombstoneCount());
+        // and again in the opposite order
+        for (int i = 0; i < 256; i++) {
+            assertTrue(map.put(i * CAPACITY, "value"));
+        }
+        for (int i = 255; i >= 0; i--) {
+            assertEquals("value", map.remove(i * CAPACITY));
+        }
+        assertEquals(0, map.tombstoneCount());
+    }
+
+    @Test
+    public void shouldKeepKeysReachableWhenNeighbourIsRemoved() {
+        LongConcurrentMap<String> map = new LongConcurrentMap<String>(CAPACITY);
+        map.put(0, "a");
+        map.put(CAPACITY, "b");
+        map.put(2 * CAPACITY, "c");
+        map.remove(CAPACITY);
+        assertEquals(1, map.tombstoneCount());
+        assertEquals("c", map.get(2 * CAPACITY));
+        map.remove(2 * CAPACITY);
+        assertEquals(0, map.tombstoneCount());
+        assertEquals("a", map.get(0));
+    }
+
+    @Test
+    public void shouldFailPutBeyondProbeLimit() {
+        LongConcurrentMap<String> map = new LongConcurrentMap<String>(CAPACITY);
+        int i = 0;
+        while (map.put(i * CAPACITY, "value")) {
+            i++;
+        }
+        // well short of the capacity, since every key hashes to the same slot
+        assertTrue(i < CAPACITY);
+        assertFalse(map.put(i * CAPACITY, "value"));
+        // other slots are still available
+        assertTrue(map.put(CAPACITY - 1, "value"));
+    }
+}
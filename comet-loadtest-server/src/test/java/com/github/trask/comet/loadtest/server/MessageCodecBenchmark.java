@@ -0,0 +1,159 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.comet.loadtest.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks the bytes allocated per delivered message by the servlet's message encoding and
+ * pingback parsing, comparing MessageCodec against the String based encoding and split(":")
+ * parsing it replaced.
+ *
+ * Each delivered message is encoded as "messageId:clientMessage" and written out, wrapped as a
+ * stream chunk and written out, then its pingback is parsed and the client message is written
+ * out. The output streams discard everything, so only the encoding and parsing is measured (the
+ * client message and pingback strings themselves come from the container either way, so they are
+ * created up front).
+ *
+ * Usage: run main() from the comet-loadtest-server directory, e.g. from the IDE (allocation
+ * counting requires a HotSpot JVM).
+ *
+ * @author Trask Stalnaker
+ */
+public class MessageCodecBenchmark {
+
+    private static final int MESSAGES_PER_ROUND = 1000;
+    private static final long DURATION_MILLIS = 2000;
+    private static final String CLIENT_MESSAGE = "client-message-123";
+
+    public static void main(String... args) throws IOException {
+        String[] pingbacks = new String[MESSAGES_PER_ROUND];
+        for (int i = 0; i < MESSAGES_PER_ROUND; i++) {
+            pingbacks[i] = (1000000 + i) + ":" + CLIENT_MESSAGE;
+        }
+        // warm up both implementations before measuring
+        run(new StringCodec(), pingbacks);
+        run(new ByteCodec(), pingbacks);
+        System.out.println("string msgs/sec   string bytes/msg   codec msgs/sec   codec bytes/msg");
+        for (int i = 0; i < 3; i++) {
+            Result string = run(new StringCodec(), pingbacks);
+            Result codec = run(new ByteCodec(), pingbacks);
+            System.out.format("%15d %18.1f %16d %17.1f\n", string.messagesPerSec,
+                    string.bytesPerMessage, codec.messagesPerSec, codec.bytesPerMessage);
+        }
+    }
+
+    private static Result run(Codec codec, String[] pingbacks) throws IOException {
+        long endNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DURATION_MILLIS);
+        long startBytes = allocatedBytes();
+        long messages = 0;
+        long checksum = 0;
+        while (System.nanoTime() < endNanos) {
+            for (int i = 0; i < MESSAGES_PER_ROUND; i++) {
+                codec.deliver(1000000 + i, CLIENT_MESSAGE);
+                checksum += codec.pingback(pingbacks[i]);
+            }
+            messages += MESSAGES_PER_ROUND;
+        }
+        long bytes = allocatedBytes() - startBytes;
+        if (checksum == 0) {
+            // keeps the parsing from being optimized away
+            System.out.println();
+        }
+        return new Result(messages * 1000 / DURATION_MILLIS, (double) bytes / messages);
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private interface Codec {
+        void deliver(long messageId, String clientMessage) throws IOException;
+        // returns the message id
+        long pingback(String pingback) throws IOException;
+    }
+
+    // what flush(), StreamingComet.encode() and doCometPingback() used to do
+    private static class StringCodec implements Codec {
+        private final OutputStream out = new NullOutputStream();
+        // the container reuses its writer across requests
+        private final PrintWriter writer =
+                new PrintWriter(new OutputStreamWriter(new NullOutputStream(), "UTF-8"));
+        private StringCodec() throws IOException {}
+        @Override
+        public void deliver(long messageId, String clientMessage) throws IOException {
+            StringBuilder body = new StringBuilder();
+            body.append(messageId).append(':').append(clientMessage);
+            byte[] payload = body.toString().getBytes("UTF-8");
+            out.write(payload);
+            byte[] length = (payload.length + "\n").getBytes("US-ASCII");
+            byte[] chunk = new byte[length.length + payload.length];
+            System.arraycopy(length, 0, chunk, 0, length.length);
+            System.arraycopy(payload, 0, chunk, length.length, payload.length);
+            out.write(chunk);
+        }
+        @Override
+        public long pingback(String pingback) {
+            String[] pingbackParts = pingback.split(":");
+            long messageId = Long.parseLong(pingbackParts[0]);
+            writer.print(pingbackParts[1]);
+            return messageId;
+        }
+    }
+
+    // what they do now
+    private static class ByteCodec implements Codec {
+        private final OutputStream out = new NullOutputStream();
+        @Override
+        public void deliver(long messageId, String clientMessage) throws IOException {
+            MessageCodec.Encoder body =
+                    MessageCodec.messageEncoder().appendMessage(messageId, clientMessage);
+            body.writeTo(out);
+            MessageCodec.chunkEncoder().appendLong(body.getLength()).append('\n')
+                    .append(body.getBuffer(), 0, body.getLength()).writeTo(out);
+        }
+        @Override
+        public long pingback(String pingback) throws IOException {
+            int separatorIndex = MessageCodec.separatorIndex(pingback, 0, pingback.length());
+            long messageId = MessageCodec.parseMessageId(pingback, 0, separatorIndex);
+            MessageCodec.messageEncoder().append(pingback, separatorIndex + 1, pingback.length())
+                    .writeTo(out);
+            return messageId;
+        }
+    }
+
+    private static class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {}
+        @Override
+        public void write(byte[] b, int off, int len) {}
+    }
+
+    private static class Result {
+        private final long messagesPerSec;
+        private final double bytesPerMessage;
+        private Result(long messagesPerSec, double bytesPerMessage) {
+            this.messagesPerSec = messagesPerSec;
+            this.bytesPerMessage = bytesPerMessage;
+        }
+    }
+}
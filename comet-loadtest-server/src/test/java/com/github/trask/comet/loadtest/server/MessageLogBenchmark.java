@@ -0,0 +1,109 @@
+/**
+ * Copyright 2011 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.trask.comet.loadtest.server;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Measures message log append throughput, and how long it takes to build the replay for a client
+ * that missed 1k and 10k messages, both when every message is on the client's channel and when
+ * the client's channel is one of 100 (so the replay has to skip over the other channels'
+ * messages).
+ *
+ * Usage: run main() from the comet-loadtest-server directory, e.g. from the IDE.
+ *
+ * @author Trask Stalnaker
+ */
+public class MessageLogBenchmark {
+
+    private static final int APPEND_MESSAGES = 1000000;
+    private static final int SEGMENT_BYTES = 16 * 1024 * 1024;
+    private static final int[] MISSED = { 1000, 10000 };
+    private static final int CHANNELS = 100;
+    private static final int REPLAY_ITERATIONS = 50;
+
+    public static void main(String... args) throws IOException {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "message-log-benchmark");
+        try {
+            // warm up before measuring
+            replayMicros(append(new File(dir, "warmup"), APPEND_MESSAGES / 10, 1), MISSED[0], 1);
+            MessageLog messageLog = append(new File(dir, "shared"), APPEND_MESSAGES, 1);
+            System.out.println("missed messages   replay micros   replay micros (1 of " + CHANNELS
+                    + " channels)");
+            for (int missed : MISSED) {
+                long sharedMicros = replayMicros(messageLog, missed, 1);
+                MessageLog channelsMessageLog =
+                        append(new File(dir, "channels-" + missed), missed * CHANNELS, CHANNELS);
+                long channelMicros = replayMicros(channelsMessageLog, missed, CHANNELS);
+                System.out.format("%15d %15d %15d\n", missed, sharedMicros, channelMicros);
+            }
+        } finally {
+            deleteDir(dir);
+        }
+    }
+
+    // the messages are spread round-robin over the channels "0", "1", ...
+    private static MessageLog append(File dir, int nMessages, int nChannels) throws IOException {
+        MessageLog messageLog = new MessageLog(dir, SEGMENT_BYTES, Long.MAX_VALUE, Long.MAX_VALUE);
+        String[] channelNames = new String[nChannels];
+        for (int i = 0; i < nChannels; i++) {
+            channelNames[i] = Integer.toString(i);
+        }
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < nMessages; i++) {
+            messageLog.append(channelNames[i % nChannels], "message " + i);
+        }
+        long nanos = System.nanoTime() - startNanos;
+        if (nChannels == 1) {
+            System.out.format("appended %d messages: %d messages/sec, %d segments\n", nMessages,
+                    nMessages * 1000000000L / nanos, messageLog.getSegmentCount());
+        }
+        return messageLog;
+    }
+
+    // the last missed messages on channel "0" were written but never acknowledged
+    private static long replayMicros(MessageLog messageLog, int missed, int nChannels)
+            throws IOException {
+
+        long lastSeq = messageLog.getLastSeq();
+        long afterSeq = lastSeq - (long) missed * nChannels;
+        for (long seq = afterSeq + 1; seq <= lastSeq; seq++) {
+            messageLog.markWritten(seq);
+        }
+        long totalNanos = 0;
+        for (int i = 0; i < REPLAY_ITERATIONS; i++) {
+            long startNanos = System.nanoTime();
+            int replayed = messageLog.replay("0", afterSeq, missed, 0,
+                    MessageCodec.messageEncoder());
+            totalNanos += System.nanoTime() - startNanos;
+            if (replayed != missed) {
+                throw new IllegalStateException("Replayed " + replayed + ", expected " + missed);
+            }
+        }
+        return totalNanos / REPLAY_ITERATIONS / 1000;
+    }
+
+    private static void deleteDir(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                deleteDir(file);
+            }
+        }
+        dir.delete();
+    }
+}